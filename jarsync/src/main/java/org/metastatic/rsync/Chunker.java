@@ -0,0 +1,261 @@
+/* Chunker -- content-defined chunking (FastCDC).
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of Jarsync.
+
+Jarsync is free software; you can redistribute it and/or modify it under
+the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Jarsync is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along
+with Jarsync; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA
+
+Linking Jarsync statically or dynamically with other modules is making a
+combined work based on Jarsync.  Thus, the terms and conditions of the
+GNU General Public License cover the whole combination.
+
+As a special exception, the copyright holders of Jarsync give you
+permission to link Jarsync with independent modules to produce an
+executable, regardless of the license terms of these independent
+modules, and to copy and distribute the resulting executable under terms
+of your choice, provided that you also meet, for each linked independent
+module, the terms and conditions of the license of that module.  An
+independent module is a module which is not derived from or based on
+Jarsync.  If you modify Jarsync, you may extend this exception to your
+version of it, but you are not obligated to do so.  If you do not wish
+to do so, delete this exception statement from your version.  */
+
+
+package org.metastatic.rsync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cuts data into variable-size chunks at content-defined boundaries,
+ * after FastCDC: a Gear hash is rolled over the bytes, and a chunk ends
+ * where the hash has enough zero bits. Since a boundary depends only on
+ * the 64 bytes before it, an insertion or deletion moves the boundaries
+ * near it and no others, where fixed-size blocks would all shift.
+ * Boundaries are normalized: a stricter mask is used before the average
+ * size and a looser one after, so that chunk sizes cluster around the
+ * average.
+ *
+ * <p>This is an alternative to the fixed blocks of {@link Generator}
+ * and the rolling search of {@link Matcher}. Both sides chunk their
+ * data, and {@link #match(List,byte[],int,int)} compares the chunks by
+ * their sums in one pass, with no rolling.
+ *
+ * @version $Revision$
+ */
+public class Chunker
+{
+
+  // Constants and fields.
+  // -------------------------------------------------------------------------
+
+  /** The Gear table: a fixed random value for each byte. */
+  private static final long[] GEAR = new long[256];
+
+  static
+  {
+    // SplitMix64, so the table is the same everywhere.
+    long x = 0x4a617273796e6343L;
+    for (int i = 0; i < GEAR.length; i++)
+      {
+        long z = (x += 0x9e3779b97f4a7c15L);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        GEAR[i] = z ^ (z >>> 31);
+      }
+  }
+
+  protected final Configuration config;
+  protected final Generator generator;
+
+  private final int minSize;
+  private final int avgSize;
+  private final int maxSize;
+
+  /** The masks used before and after the average size. */
+  private final long maskS, maskL;
+
+  // Constructors.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Create a chunker whose average chunk size is the configuration's
+   * block length, with chunks from a quarter to eight times that.
+   *
+   * @param config The configuration, for the block length and sums.
+   */
+  public Chunker(Configuration config)
+  {
+    this(config, Math.max(1, config.blockLength / 4), config.blockLength,
+         config.blockLength * 8);
+  }
+
+  /**
+   * Create a chunker with the given chunk sizes.
+   *
+   * @param config  The configuration, for the sums.
+   * @param minSize The smallest chunk, except at the end of the data.
+   * @param avgSize The average chunk size wanted.
+   * @param maxSize The largest chunk.
+   * @throws IllegalArgumentException If the sizes are out of order.
+   */
+  public Chunker(Configuration config, int minSize, int avgSize, int maxSize)
+  {
+    if (minSize < 1 || minSize > avgSize || avgSize > maxSize)
+      throw new IllegalArgumentException("bad chunk sizes");
+    this.config = config;
+    generator = new Generator(config);
+    this.minSize = minSize;
+    this.avgSize = avgSize;
+    this.maxSize = maxSize;
+    int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+    maskS = topBits(Math.min(bits + 2, 63));
+    maskL = topBits(Math.max(bits - 2, 1));
+  }
+
+  // Instance methods.
+  // -------------------------------------------------------------------------
+
+  public int getMinSize()
+  {
+    return minSize;
+  }
+
+  public int getAverageSize()
+  {
+    return avgSize;
+  }
+
+  public int getMaxSize()
+  {
+    return maxSize;
+  }
+
+  /**
+   * Find the end of the chunk that starts at <i>off</i>.
+   *
+   * @param buf The data.
+   * @param off Where the chunk starts.
+   * @param len The number of bytes left in <i>buf</i>.
+   * @return The length of the chunk, at most <i>len</i>.
+   */
+  public int nextChunk(byte[] buf, int off, int len)
+  {
+    if (len <= minSize)
+      return len;
+    int n = Math.min(len, maxSize);
+    int normal = Math.min(avgSize, n);
+    long fp = 0;
+    int i = minSize;
+    for (; i < normal; i++)
+      {
+        fp = (fp << 1) + GEAR[buf[off+i] & 0xff];
+        if ((fp & maskS) == 0)
+          return i + 1;
+      }
+    for (; i < n; i++)
+      {
+        fp = (fp << 1) + GEAR[buf[off+i] & 0xff];
+        if ((fp & maskL) == 0)
+          return i + 1;
+      }
+    return n;
+  }
+
+  /**
+   * Chunk a whole array and generate the sums of its chunks.
+   *
+   * @param buf The data.
+   * @return The sums, in order, with their offsets and lengths.
+   */
+  public List<ChecksumPair> generateSums(byte[] buf)
+  {
+    return generateSums(buf, 0, buf.length, 0);
+  }
+
+  /**
+   * Chunk part of an array and generate the sums of its chunks.
+   *
+   * @param buf        The data.
+   * @param off        Where in <i>buf</i> to start.
+   * @param len        The number of bytes to chunk.
+   * @param baseOffset Added to the offset recorded in each sum.
+   * @return The sums, in order, with their offsets and lengths.
+   */
+  public List<ChecksumPair> generateSums(byte[] buf, int off, int len,
+                                         long baseOffset)
+  {
+    List<ChecksumPair> sums = new ArrayList<ChecksumPair>(len / avgSize + 1);
+    int end = off + len;
+    while (off < end)
+      {
+        int n = nextChunk(buf, off, end - off);
+        ChecksumPair p = generator.generateSum(buf, off, n, off + baseOffset);
+        p.seq = sums.size();
+        sums.add(p);
+        off += n;
+      }
+    return sums;
+  }
+
+  /**
+   * Chunk new data and compare its chunks against the sums of the old
+   * data, in time linear in the size of both. Each chunk that the old
+   * data has too becomes an {@link Offsets}, and each that it does not
+   * a {@link DataBlock}.
+   *
+   * @param sums The sums of the old data, from {@link #generateSums}.
+   * @param buf  The new data.
+   * @param off  Where in <i>buf</i> to start.
+   * @param len  The number of bytes of new data.
+   * @return The deltas, in order, covering the new data.
+   */
+  public List<Delta> match(List<ChecksumPair> sums, byte[] buf, int off,
+                           int len)
+  {
+    Map<ChecksumPair,ChecksumPair> old =
+      new HashMap<ChecksumPair,ChecksumPair>(sums.size() * 2);
+    for (ChecksumPair p : sums)
+      if (!old.containsKey(p))
+        old.put(p, p);
+    List<Delta> deltas = new ArrayList<Delta>();
+    for (ChecksumPair p : generateSums(buf, off, len, -off))
+      {
+        ChecksumPair q = old.get(p);
+        if (q != null && q.length == p.length)
+          deltas.add(new Offsets(q.offset, p.offset, p.length));
+        else
+          deltas.add(new DataBlock(p.offset, buf, (int) p.offset + off,
+                                   p.length));
+      }
+    return deltas;
+  }
+
+  // Own methods.
+  // -------------------------------------------------------------------------
+
+  private static long topBits(int n)
+  {
+    return -1L << (64 - n);
+  }
+}
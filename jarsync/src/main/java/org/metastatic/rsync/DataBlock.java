@@ -114,7 +114,7 @@ public class DataBlock implements Delta, java.io.Serializable {
          this.data = (byte[]) data.clone();
       } else {
          this.data = new byte[len];
-         System.arraycopy(data, 0, this.data, off, len);
+         System.arraycopy(data, off, this.data, 0, len);
       }
    }
 
@@ -88,6 +88,11 @@ public class GeneratorStream
    */
   protected long count;
 
+  /**
+   * When the first byte of the current data set arrived, or 0.
+   */
+  protected long started;
+
   // Constructor.
   // -----------------------------------------------------------------------
 
@@ -129,6 +134,7 @@ public class GeneratorStream
   public void reset() {
     ndx = 0;
     count = 0L;
+    started = 0L;
   }
 
   /**
@@ -142,6 +148,8 @@ public class GeneratorStream
         System.out.printf("[GENERATOR] update %b", b & 0xff);
       }
     ListenerException exception = null, current = null;
+    if (started == 0L)
+      started = System.nanoTime();
     buffer[ndx++] = b;
     if (ndx == buffer.length) {
       ChecksumPair p = generateSum(buffer, 0, buffer.length);
@@ -177,6 +185,8 @@ public class GeneratorStream
         System.out.printf("[GENERATOR] update %s %d %d%n", buf, off, len);
       }
     ListenerException exception = null, current = null;
+    if (started == 0L)
+      started = System.nanoTime();
     int i = off;
     do {
       int l = Math.min(len - (i - off), buffer.length - ndx);
@@ -250,6 +260,8 @@ public class GeneratorStream
         if (exception != null)
           throw exception;
       }
+    if (started != 0L)
+      Metrics.GLOBAL.signatureTime.recordSince(started);
     reset();
   }
 
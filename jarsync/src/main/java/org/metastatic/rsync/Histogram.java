@@ -0,0 +1,212 @@
+/* Histogram -- a concurrent log-linear histogram.
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of Jarsync.
+
+Jarsync is free software; you can redistribute it and/or modify it under
+the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Jarsync is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along
+with Jarsync; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA
+
+Linking Jarsync statically or dynamically with other modules is making a
+combined work based on Jarsync.  Thus, the terms and conditions of the
+GNU General Public License cover the whole combination.
+
+As a special exception, the copyright holders of Jarsync give you
+permission to link Jarsync with independent modules to produce an
+executable, regardless of the license terms of these independent
+modules, and to copy and distribute the resulting executable under terms
+of your choice, provided that you also meet, for each linked independent
+module, the terms and conditions of the license of that module.  An
+independent module is a module which is not derived from or based on
+Jarsync.  If you modify Jarsync, you may extend this exception to your
+version of it, but you are not obligated to do so.  If you do not wish
+to do so, delete this exception statement from your version.  */
+
+
+package org.metastatic.rsync;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative long values (typically nanoseconds), in
+ * the style of HdrHistogram: each power of two is split into a fixed
+ * number of linear sub-buckets, so every recorded value is kept to
+ * within about three percent no matter its magnitude. Recording is a
+ * couple of shifts and one atomic add, and may be done from any number
+ * of threads at once.
+ *
+ * @version $Revision$
+ */
+public class Histogram
+{
+
+  // Constants and fields.
+  // -------------------------------------------------------------------------
+
+  /** log2 of the number of sub-buckets per power of two. */
+  private static final int SUB_BITS = 5;
+
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+
+  /** Enough buckets for every non-negative long. */
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+  private final String name;
+  private final AtomicLongArray counts;
+  private final LongAdder total;
+  private final LongAdder sum;
+  private final AtomicLong max;
+
+  // Constructor.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Create a new, empty histogram.
+   *
+   * @param name A short name, used by {@link #toString()}.
+   */
+  public Histogram(String name)
+  {
+    this.name = name;
+    counts = new AtomicLongArray(BUCKETS);
+    total = new LongAdder();
+    sum = new LongAdder();
+    max = new AtomicLong();
+  }
+
+  // Instance methods.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Record a value. Negative values are recorded as zero.
+   *
+   * @param value The value to record.
+   */
+  public void record(long value)
+  {
+    if (value < 0)
+      value = 0;
+    counts.incrementAndGet(bucket(value));
+    total.increment();
+    sum.add(value);
+    long m;
+    while (value > (m = max.get()) && !max.compareAndSet(m, value));
+  }
+
+  /**
+   * Record the time elapsed since <i>startNanos</i>, a value obtained
+   * from {@link System#nanoTime()}.
+   */
+  public void recordSince(long startNanos)
+  {
+    record(System.nanoTime() - startNanos);
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public long getCount()
+  {
+    return total.sum();
+  }
+
+  public long getMax()
+  {
+    return max.get();
+  }
+
+  public double getMean()
+  {
+    long n = total.sum();
+    return n == 0 ? 0.0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * Return an upper bound on the given percentile of recorded values.
+   *
+   * @param percentile The percentile, between 0 and 100.
+   * @return The highest value in the bucket containing that percentile.
+   */
+  public long getValueAtPercentile(double percentile)
+  {
+    long n = total.sum();
+    if (n == 0)
+      return 0;
+    long rank = (long) Math.ceil(Math.min(100.0, percentile) / 100.0 * n);
+    if (rank < 1)
+      rank = 1;
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+      {
+        seen += counts.get(i);
+        if (seen >= rank)
+          return Math.min(highestValue(i), max.get());
+      }
+    return max.get();
+  }
+
+  /**
+   * Discard all recorded values.
+   */
+  public void reset()
+  {
+    for (int i = 0; i < BUCKETS; i++)
+      counts.set(i, 0);
+    total.reset();
+    sum.reset();
+    max.set(0);
+  }
+
+  /**
+   * Return a one-line summary, with times given in microseconds.
+   */
+  public String toString()
+  {
+    return name + ": n=" + getCount()
+      + " mean=" + (long) (getMean() / 1000)
+      + "us p50=" + getValueAtPercentile(50) / 1000
+      + "us p99=" + getValueAtPercentile(99) / 1000
+      + "us max=" + getMax() / 1000 + "us";
+  }
+
+  // Own methods.
+  // -------------------------------------------------------------------------
+
+  private static int bucket(long value)
+  {
+    if (value < SUB_COUNT)
+      return (int) value;
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    int sub = (int) (value >>> shift) - SUB_COUNT;
+    return (shift + 1) * SUB_COUNT + sub;
+  }
+
+  private static long highestValue(int bucket)
+  {
+    if (bucket < SUB_COUNT)
+      return bucket;
+    int shift = bucket / SUB_COUNT - 1;
+    int sub = bucket % SUB_COUNT;
+    return ((long) (SUB_COUNT + sub + 1) << shift) - 1;
+  }
+}
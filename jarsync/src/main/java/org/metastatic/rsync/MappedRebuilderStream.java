@@ -159,6 +159,8 @@ public class MappedRebuilderStream extends RebuilderStream {
          super.update(delta);
       } else {
          RebuilderEvent event = null;
+         if (started == 0L)
+            started = System.nanoTime();
          if (delta instanceof DataBlock) {
             event = new RebuilderEvent(((DataBlock) delta).getData(),
                delta.getWriteOffset());
@@ -41,6 +41,7 @@ to do so, delete this exception statement from your version.  */
 
 package org.metastatic.rsync;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -83,6 +84,38 @@ public class MatcherStream
    */
   protected final TwoKeyMap<Long> hashtable;
 
+  /**
+   * The fewest and the most bits in a tag; see {@link #tags}.
+   */
+  protected static final int MIN_TAG_BITS = 16, MAX_TAG_BITS = 22;
+
+  /**
+   * How many tag hits are counted before deciding whether the tag
+   * bitmap lets through too many weak sums that are not in the table.
+   */
+  protected static final int TAG_WINDOW = 4096;
+
+  /**
+   * A bitmap of the tags of the weak sums in {@link #hashtable}, like
+   * the tag table in rsync's match.c. At 16 bits it is 8 kilobytes and
+   * stays in the cache, and most weak sums that are not in the table
+   * are turned away by a single bit test, without boxing the sum or
+   * walking the table. When more than half of the tag hits in a window
+   * of {@link #TAG_WINDOW} turn out not to be in the table, as happens
+   * when the table holds many sums, the bitmap is doubled, up to
+   * {@link #MAX_TAG_BITS} bits.
+   */
+  protected long[] tags;
+
+  /** The number of bits in a tag. */
+  protected int tagBits;
+
+  /** The sums in {@link #hashtable}, to rebuild {@link #tags} from. */
+  protected List<ChecksumPair> sums;
+
+  /** Tag hits, and those not in the table, in the current window. */
+  protected int windowHits, windowMisses;
+
   /**
    * The intermediate byte buffer.
    */
@@ -98,6 +131,25 @@ public class MatcherStream
    */
   protected long count;
 
+  /**
+   * When the first byte of the current data set arrived, by {@link
+   * System#nanoTime()}, or 0 if none has.
+   */
+  protected long started;
+
+  /**
+   * Counts of how hash searches went for the current data set. These
+   * are plain fields, and are added to {@link Metrics#GLOBAL} once per
+   * data set in {@link #doFinal()}.
+   */
+  protected long searches, tagHits, weakHits, strongHits, matched;
+
+  /**
+   * Weak-sum matches that failed the strong check in the last finished
+   * data set.
+   */
+  protected long lastCollisions;
+
   // Constructor.
   // -------------------------------------------------------------------------
 
@@ -111,6 +163,8 @@ public class MatcherStream
     this.config = config;
     this.listeners = new LinkedList<MatcherListener>();
     this.hashtable = new TwoKeyMap<Long>();
+    tagBits = MIN_TAG_BITS;
+    tags = new long[(1 << MIN_TAG_BITS) / 64];
     buffer = new byte[config.chunkSize];
     reset();
   }
@@ -149,18 +203,30 @@ public class MatcherStream
   public void setChecksums(List<ChecksumPair> sums)
   {
     hashtable.clear();
+    this.sums = sums;
     if (sums != null)
-      {
-        for (ChecksumPair p : sums)
-          hashtable.put(p, p.getOffset());
-      }
-    
+      for (ChecksumPair p : sums)
+        hashtable.put(p, p.getOffset());
+    fillTags();
+
     if (config.debug)
       {
         System.out.printf("[MATCHER] setChecksums hashtable: %s%n", hashtable);
       }
    }
 
+  /**
+   * Return how many weak-sum matches in the last data set passed to
+   * {@link #doFinal()} turned out to be collisions, failing the strong
+   * check.
+   *
+   * @return The number of collisions.
+   */
+  public long getCollisions()
+  {
+    return lastCollisions;
+  }
+
   /**
    * Reset this matcher, to be used for another data set.
    */
@@ -168,7 +234,12 @@ public class MatcherStream
   {
     ndx = 0;
     count = 0L;
+    started = 0L;
+    searches = tagHits = weakHits = strongHits = matched = 0L;
+    windowHits = windowMisses = 0;
     hashtable.clear();
+    sums = null;
+    Arrays.fill(tags, 0L);
   }
 
   /**
@@ -183,6 +254,8 @@ public class MatcherStream
         System.out.printf("[MATCHER] update %x%n", b & 0xFF);
       }
     ListenerException exception = null, current = null;
+    if (started == 0L)
+      started = System.nanoTime();
     buffer[ndx++] = b;
     count++;
     if (ndx < config.blockLength)
@@ -309,6 +382,8 @@ public class MatcherStream
     ListenerException exception = null, current = null;
     Long oldOffset;
     int i = off;
+    if (started == 0L && len > 0)
+      started = System.nanoTime();
 
     while (i < len + off)
       {
@@ -527,12 +602,83 @@ public class MatcherStream
               throw exception;
           }
       }
+    publish();
     reset();
   }
 
   // Own methods.
   // -------------------------------------------------------------------------
 
+  /**
+   * Return the tag of a weak sum. At 16 bits it is the sum of its two
+   * halves as in rsync; wider tags take the high bits of the sum times
+   * an odd constant, which spreads nearby sums.
+   */
+  private int tag(int weak)
+  {
+    if (tagBits == MIN_TAG_BITS)
+      return (weak + (weak >>> 16)) & 0xffff;
+    return (weak * 0x9E3779B1) >>> (32 - tagBits);
+  }
+
+  /**
+   * Set the bit of every sum in {@link #sums} in {@link #tags}.
+   */
+  private void fillTags()
+  {
+    Arrays.fill(tags, 0L);
+    if (sums == null)
+      return;
+    for (ChecksumPair p : sums)
+      {
+        int tag = tag(p.getWeak());
+        tags[tag >>> 6] |= 1L << tag;
+      }
+  }
+
+  /**
+   * Count a tag hit, and whether its weak sum was in the table. If too
+   * many in the current window were not, double the tag bitmap.
+   */
+  private void countTagHit(boolean inTable)
+  {
+    windowHits++;
+    if (!inTable)
+      windowMisses++;
+    if (windowHits < TAG_WINDOW)
+      return;
+    if (windowMisses > windowHits / 2 && tagBits < MAX_TAG_BITS
+        && sums != null)
+      {
+        tagBits++;
+        tags = new long[(1 << tagBits) / 64];
+        fillTags();
+        if (config.debug)
+          System.out.printf("[MATCHER] %d of %d tag hits missed; tags now %d bits%n",
+                            windowMisses, windowHits, tagBits);
+      }
+    windowHits = windowMisses = 0;
+  }
+
+  /**
+   * Add this data set's counts and match time to the global metrics.
+   */
+  private void publish()
+  {
+    lastCollisions = weakHits - strongHits;
+    if (started == 0L)
+      return;
+    Metrics m = Metrics.GLOBAL;
+    m.searches.add(searches);
+    m.tagHits.add(tagHits);
+    m.weakHits.add(weakHits);
+    m.strongHits.add(strongHits);
+    m.falsePositives.add(lastCollisions);
+    m.matchedBytes.add(matched);
+    m.literalBytes.add(count - matched);
+    m.matchTime.recordSince(started);
+  }
+
   /**
    * Search if a portion of the given byte array is in the map,
    * returning its original offset if it is.
@@ -545,15 +691,22 @@ public class MatcherStream
    */
   protected Long hashSearch(byte[] block, int off, int len)
   {
-    Integer weakSum = new Integer(config.weakSum.getValue());
-    if (hashtable.containsKey(weakSum.intValue()))
+    int weak = config.weakSum.getValue();
+    int tag = tag(weak);
+    searches++;
+    if ((tags[tag >>> 6] & (1L << tag)) != 0)
       {
+        Integer weakSum = new Integer(weak);
+        tagHits++;
         if (config.debug)
           {
             System.out.printf("[MATCHER] hashSearch weakSum 2: %x%n", weakSum);
           }
-        if (hashtable.containsKey(weakSum))
+        boolean inTable = hashtable.containsKey(weakSum);
+        countTagHit(inTable);
+        if (inTable)
           {
+            weakHits++;
             if (config.debug)
               {
                 System.out.printf("[MATCHER] hashSearch strongSum%n");
@@ -580,6 +733,11 @@ public class MatcherStream
                 else
                   System.out.printf("[MATCHER] not found%n");
               }
+            if (offset != null)
+              {
+                strongHits++;
+                matched += len;
+              }
             return offset;
           }
       }
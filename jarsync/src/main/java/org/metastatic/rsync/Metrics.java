@@ -0,0 +1,262 @@
+/* Metrics -- counters and timings for the sync pipeline.
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of Jarsync.
+
+Jarsync is free software; you can redistribute it and/or modify it under
+the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Jarsync is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along
+with Jarsync; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA
+
+Linking Jarsync statically or dynamically with other modules is making a
+combined work based on Jarsync.  Thus, the terms and conditions of the
+GNU General Public License cover the whole combination.
+
+As a special exception, the copyright holders of Jarsync give you
+permission to link Jarsync with independent modules to produce an
+executable, regardless of the license terms of these independent
+modules, and to copy and distribute the resulting executable under terms
+of your choice, provided that you also meet, for each linked independent
+module, the terms and conditions of the license of that module.  An
+independent module is a module which is not derived from or based on
+Jarsync.  If you modify Jarsync, you may extend this exception to your
+version of it, but you are not obligated to do so.  If you do not wish
+to do so, delete this exception statement from your version.  */
+package org.metastatic.rsync;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide counters and latency histograms for the rsync
+ * pipeline. The streams in this package record into {@link #GLOBAL} as
+ * they finish each file: {@link GeneratorStream} the signature time,
+ * {@link MatcherStream} the match time and how its hash searches
+ * went, and {@link RebuilderStream} the rebuild time. Counters are
+ * {@link LongAdder}s, so concurrent sessions do not contend on them.
+ *
+ * <p>The metrics can be read through JMX, once {@link #register()} has
+ * been called, under the name {@value #OBJECT_NAME}.
+ *
+ * @version $Revision$
+ */
+public final class Metrics implements MetricsMBean
+{
+
+  // Constants and fields.
+  // -------------------------------------------------------------------------
+
+  public static final String OBJECT_NAME = "org.metastatic.rsync:type=Metrics";
+
+  /** The metrics for this process. */
+  public static final Metrics GLOBAL = new Metrics();
+
+  /** Calls to the matcher's hash search (one per rolled byte). */
+  public final LongAdder searches = new LongAdder();
+
+  /** Searches where the 16-bit tag of the weak sum was present. */
+  public final LongAdder tagHits = new LongAdder();
+
+  /** Searches where the full 32-bit weak sum was present. */
+  public final LongAdder weakHits = new LongAdder();
+
+  /** Searches where the strong sum matched too. */
+  public final LongAdder strongHits = new LongAdder();
+
+  /** Weak hits whose strong sum did not match. */
+  public final LongAdder falsePositives = new LongAdder();
+
+  /**
+   * Files whose first pass failed the whole-file checksum, because a
+   * short strong sum matched the wrong block, and had to be redone.
+   */
+  public final LongAdder redoneFiles = new LongAdder();
+
+  public final LongAdder literalBytes = new LongAdder();
+  public final LongAdder matchedBytes = new LongAdder();
+
+  /** Bytes sent in the first pass and in the retry pass. */
+  private final LongAdder[] phaseBytes = { new LongAdder(), new LongAdder() };
+
+  public final Histogram signatureTime = new Histogram("signature");
+  public final Histogram matchTime = new Histogram("match");
+  public final Histogram rebuildTime = new Histogram("rebuild");
+  public final Histogram selectorLatency = new Histogram("selector");
+
+  private static boolean registered;
+
+  // Constructor.
+  // -------------------------------------------------------------------------
+
+  public Metrics() { }
+
+  // Class methods.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Register {@link #GLOBAL} with the platform MBean server. Calling
+   * this more than once is harmless.
+   */
+  public static synchronized void register()
+  {
+    if (registered)
+      return;
+    try
+      {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(GLOBAL, new ObjectName(OBJECT_NAME));
+        registered = true;
+      }
+    catch (JMException jme)
+      {
+        // Leave the metrics unpublished.
+      }
+  }
+
+  // Instance methods.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Count bytes of file data handled in the given phase. Phases past
+   * the retry phase are counted with it.
+   */
+  public void addPhaseBytes(int phase, long n)
+  {
+    phaseBytes[Math.min(Math.max(phase, 0), 1)].add(n);
+  }
+
+  public long getSearches()
+  {
+    return searches.sum();
+  }
+
+  public long getTagHits()
+  {
+    return tagHits.sum();
+  }
+
+  public long getWeakHits()
+  {
+    return weakHits.sum();
+  }
+
+  public long getStrongHits()
+  {
+    return strongHits.sum();
+  }
+
+  public long getFalsePositives()
+  {
+    return falsePositives.sum();
+  }
+
+  public double getFalsePositiveRate()
+  {
+    long weak = weakHits.sum();
+    return weak == 0 ? 0.0 : (double) falsePositives.sum() / weak;
+  }
+
+  public long getRedoneFiles()
+  {
+    return redoneFiles.sum();
+  }
+
+  public long getLiteralBytes()
+  {
+    return literalBytes.sum();
+  }
+
+  public long getMatchedBytes()
+  {
+    return matchedBytes.sum();
+  }
+
+  public long getPhase0Bytes()
+  {
+    return phaseBytes[0].sum();
+  }
+
+  public long getPhase1Bytes()
+  {
+    return phaseBytes[1].sum();
+  }
+
+  public String getSignatureTime()
+  {
+    return signatureTime.toString();
+  }
+
+  public String getMatchTime()
+  {
+    return matchTime.toString();
+  }
+
+  public String getRebuildTime()
+  {
+    return rebuildTime.toString();
+  }
+
+  public String getSelectorLatency()
+  {
+    return selectorLatency.toString();
+  }
+
+  /**
+   * Return a human-readable report of all metrics.
+   */
+  public String report()
+  {
+    StringBuffer buf = new StringBuffer();
+    buf.append("Hash searches: " + getSearches() + ", tag hits: "
+               + getTagHits() + ", weak hits: " + getWeakHits()
+               + ", strong hits: " + getStrongHits()
+               + ", false positives: " + getFalsePositives()
+               + ", files redone: " + getRedoneFiles() + "\n");
+    buf.append("Literal data: " + getLiteralBytes() + " bytes, matched data: "
+               + getMatchedBytes() + " bytes\n");
+    buf.append("Phase 0: " + getPhase0Bytes() + " bytes, phase 1: "
+               + getPhase1Bytes() + " bytes\n");
+    buf.append(signatureTime).append('\n');
+    buf.append(matchTime).append('\n');
+    buf.append(rebuildTime).append('\n');
+    buf.append(selectorLatency).append('\n');
+    return buf.toString();
+  }
+
+  public void reset()
+  {
+    searches.reset();
+    tagHits.reset();
+    weakHits.reset();
+    strongHits.reset();
+    falsePositives.reset();
+    redoneFiles.reset();
+    literalBytes.reset();
+    matchedBytes.reset();
+    phaseBytes[0].reset();
+    phaseBytes[1].reset();
+    signatureTime.reset();
+    matchTime.reset();
+    rebuildTime.reset();
+    selectorLatency.reset();
+  }
+}
@@ -91,6 +91,9 @@ public class RebuilderStream
   /** The list of {@link RebuilderListener}s. */
   protected final LinkedList<RebuilderListener> listeners;
 
+  /** When the first delta of the current file arrived, or 0. */
+  protected long started;
+
   // Constructors.
   // -----------------------------------------------------------------------
 
@@ -163,12 +166,17 @@ public class RebuilderStream
   }
 
   /**
-   *
+   * Finish rebuilding the current file, closing the basis file.
    */
   public void doFinal() throws IOException
   {
     if (basisFile != null)
       basisFile.close();
+    if (started != 0L)
+      {
+        Metrics.GLOBAL.rebuildTime.recordSince(started);
+        started = 0L;
+      }
   }
 
   /**
@@ -182,6 +190,8 @@ public class RebuilderStream
   {
     ListenerException exception = null, current = null;
     RebuilderEvent e = null;
+    if (started == 0L)
+      started = System.nanoTime();
     if (delta instanceof DataBlock)
       {
         e = new RebuilderEvent(((DataBlock) delta).getData(),
@@ -189,15 +199,13 @@ public class RebuilderStream
       }
     else
       {
-        if (basisFile == null)
-          throw new IOException("offsets found but no basis file specified");
-        int len = Math.min(delta.getBlockLength(),
-                           (int) (basisFile.length() - ((Offsets) delta).getOldOffset()));
+        long oldOffset = ((Offsets) delta).getOldOffset();
+        int len = (int) Math.min(delta.getBlockLength(),
+                                 basisLength() - oldOffset);
         if (len < 0)
           return;
         byte[] buf = new byte[len];
-        basisFile.seek(((Offsets) delta).getOldOffset());
-        len = basisFile.read(buf);
+        len = readBasis(oldOffset, buf, 0, len);
         e = new RebuilderEvent(buf, 0, len, delta.getWriteOffset());
       }
     for (RebuilderListener l : listeners)
@@ -223,4 +231,40 @@ public class RebuilderStream
     if (exception != null)
       throw exception;
   }
+
+  // Own methods.
+  // -----------------------------------------------------------------------
+
+  /**
+   * Return the length of the basis. Subclasses that read their basis
+   * from somewhere other than {@link #basisFile} override this and
+   * {@link #readBasis(long,byte[],int,int)}.
+   *
+   * @throws IOException If no basis file has been specified.
+   */
+  protected long basisLength() throws IOException
+  {
+    if (basisFile == null)
+      throw new IOException("offsets found but no basis file specified");
+    return basisFile.length();
+  }
+
+  /**
+   * Read basis data for a copy command.
+   *
+   * @param offset Where in the basis to read.
+   * @param buf    The buffer to read into.
+   * @param off    Where in <i>buf</i> to store the data.
+   * @param len    How many bytes to read.
+   * @return The number of bytes read.
+   * @throws IOException If the basis cannot be read.
+   */
+  protected int readBasis(long offset, byte[] buf, int off, int len)
+    throws IOException
+  {
+    if (basisFile == null)
+      throw new IOException("offsets found but no basis file specified");
+    basisFile.seek(offset);
+    return basisFile.read(buf, off, len);
+  }
 }
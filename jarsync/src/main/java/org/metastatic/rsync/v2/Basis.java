@@ -0,0 +1,382 @@
+/* Basis -- a basis made of pieces of several files.
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of Jarsync.
+
+Jarsync is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Jarsync is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jarsync; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA  */
+
+package org.metastatic.rsync.v2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.metastatic.rsync.GeneratorStream;
+import org.metastatic.rsync.ListenerException;
+
+/**
+ * The basis a file is rebuilt from, made of ranges of one or more
+ * local files laid end to end. The protocol knows a basis only as a
+ * run of equal blocks and one short last block, so every range but the
+ * last is cut to whole blocks; that way block <i>k</i> of the basis
+ * always lies within a single file, and the segment holding it is
+ * the block's basis id. The sender sees one basis and one index of
+ * sums; only the receiver needs to know which file a block came from.
+ *
+ * <p>The receiver sums the basis with {@link
+ * #generate(GeneratorStream,byte[])}, and later reads the blocks the
+ * sender refers to with {@link #read(long,byte[],int,int)}. Both sides
+ * must build the basis the same way, so both receivers make it with
+ * {@link #open(File,int,File,Options)}.
+ *
+ * @version $Revision$
+ */
+public class Basis
+{
+
+  // Constants and fields.
+  // -------------------------------------------------------------------------
+
+  private static final Logger logger =
+    Logger.getLogger(Basis.class.getName());
+
+  private final int blockLength;
+  private final List<Segment> segments;
+  private long length;
+
+  // Constructor.
+  // -------------------------------------------------------------------------
+
+  public Basis(int blockLength)
+  {
+    this.blockLength = blockLength;
+    segments = new ArrayList<Segment>();
+    length = 0;
+  }
+
+  // Class methods.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Make the basis for a file. If partial files are kept and one was
+   * left by an earlier transfer, its whole blocks come first, in place
+   * of the front of the first basis file; the basis files from {@link
+   * #basisFiles(File,File,Options)} follow.
+   *
+   * @param f           The file.
+   * @param blockLength The block length.
+   * @param destination The destination directory, or null.
+   * @param options     The options in effect.
+   */
+  static Basis open(File f, int blockLength, File destination,
+                    Options options)
+  {
+    Basis basis = new Basis(blockLength);
+    long from = 0;
+    if (options.keep_partial)
+      {
+        PartialFile p = PartialFile.read(f);
+        if (p != null && p.getPrefix() >= blockLength)
+          {
+            from = p.getPrefix() - p.getPrefix() % blockLength;
+            basis.add(p.getData(), 0, from);
+            logger.debug("resuming " + f.getName() + " from " + from
+                         + " bytes of " + p.getData().getName());
+          }
+      }
+    List<File> bases = basisFiles(f, destination, options);
+    for (int i = 0; i < bases.size(); i++)
+      basis.add(bases.get(i), i == 0 ? from : 0, bases.get(i).length());
+    if (bases.size() > 1 || (bases.size() == 1 && !bases.get(0).equals(f)))
+      logger.debug("basis for " + f.getName() + " is " + bases);
+    return basis;
+  }
+
+  /**
+   * Return about how long the basis for a file will be, for choosing
+   * its block length before the basis itself can be made.
+   */
+  static long expectedLength(File f, File destination, Options options)
+  {
+    long length = 0;
+    if (options.keep_partial)
+      {
+        PartialFile p = PartialFile.read(f);
+        if (p != null)
+          length = p.getPrefix();
+      }
+    List<File> bases = basisFiles(f, destination, options);
+    for (int i = 0; i < bases.size(); i++)
+      {
+        long l = bases.get(i).length();
+        length += i == 0 ? Math.max(0, l - length) : l;
+      }
+    return length;
+  }
+
+  /**
+   * Return the local files whose blocks the sender may match for
+   * <i>f</i>. That is <i>f</i> itself if it exists and is not empty.
+   * Otherwise it is every one of these that exists: the file under
+   * --compare-dest, and with --fuzzy, the file in the same directory
+   * with the nearest name. A relative --compare-dest is taken from the
+   * destination directory, as rsync does.
+   */
+  static List<File> basisFiles(File f, File destination, Options options)
+  {
+    List<File> bases = new ArrayList<File>(3);
+    if (f.isFile() && f.length() > 0)
+      {
+        bases.add(f);
+        return bases;
+      }
+    if (options.compare_dest != null)
+      {
+        File dir = new File(options.compare_dest);
+        if (!dir.isAbsolute() && destination != null)
+          dir = new File(destination, options.compare_dest);
+        addBasis(bases, new File(dir, destinationName(f, destination)));
+      }
+    if (options.fuzzy_basis)
+      addBasis(bases, RsyncUtil.findFuzzyBasis(f));
+    return bases;
+  }
+
+  /**
+   * Return the name of <i>f</i> relative to the destination, as rsync
+   * looks it up under --compare-dest.
+   */
+  private static String destinationName(File f, File destination)
+  {
+    if (destination != null)
+      {
+        Path root = destination.toPath().toAbsolutePath().normalize();
+        Path p = f.toPath().toAbsolutePath().normalize();
+        if (p.startsWith(root) && !p.equals(root))
+          return root.relativize(p).toString();
+      }
+    return f.isAbsolute() ? f.getName() : f.getPath();
+  }
+
+  private static void addBasis(List<File> bases, File f)
+  {
+    if (f == null || !f.isFile() || f.length() == 0)
+      return;
+    try
+      {
+        File c = f.getCanonicalFile();
+        for (File b : bases)
+          if (b.getCanonicalFile().equals(c))
+            return;
+      }
+    catch (IOException ioe)
+      {
+        return;
+      }
+    bases.add(f);
+  }
+
+  // Instance methods.
+  // -------------------------------------------------------------------------
+
+  public int getBlockLength()
+  {
+    return blockLength;
+  }
+
+  /**
+   * Append bytes <i>start</i> up to <i>end</i> of <i>file</i>. If the
+   * range before this one did not end on a block boundary, its tail is
+   * dropped.
+   *
+   * @param file  The file.
+   * @param start The first byte of the range.
+   * @param end   The byte after the range.
+   */
+  public void add(File file, long start, long end)
+  {
+    if (end <= start)
+      return;
+    if (!segments.isEmpty())
+      {
+        Segment last = segments.get(segments.size() - 1);
+        long trim = last.length % blockLength;
+        last.length -= trim;
+        length -= trim;
+        if (last.length == 0)
+          segments.remove(segments.size() - 1);
+      }
+    segments.add(new Segment(file, start, end - start, length));
+    length += end - start;
+  }
+
+  public boolean isEmpty()
+  {
+    return length == 0;
+  }
+
+  public long length()
+  {
+    return length;
+  }
+
+  /** Return the number of blocks, counting a short last block. */
+  public int blockCount()
+  {
+    return (int) ((length + blockLength - 1) / blockLength);
+  }
+
+  /** Return the length of the short last block, or 0. */
+  public int remainder()
+  {
+    return (int) (length % blockLength);
+  }
+
+  /**
+   * Feed the whole basis to a generator, without finishing it.
+   *
+   * @param gen The generator.
+   * @param buf The buffer to read through.
+   * @throws IOException If a file cannot be read.
+   * @throws ListenerException If a listener of the generator fails.
+   */
+  public void generate(GeneratorStream gen, byte[] buf)
+    throws IOException, ListenerException
+  {
+    for (Segment s : segments)
+      {
+        for (long pos = 0; pos < s.length; )
+          {
+            int n = s.read(pos, buf, 0, (int) Math.min(buf.length, s.length - pos));
+            if (n <= 0)
+              throw new IOException(s.file + " got shorter while being read");
+            gen.update(buf, 0, n);
+            pos += n;
+          }
+      }
+  }
+
+  /**
+   * Read from the basis.
+   *
+   * @param offset Where in the basis to begin.
+   * @param buf    The buffer to read into.
+   * @param off    Where in <i>buf</i> to store the data.
+   * @param len    The most bytes to read.
+   * @return The number of bytes read, which is less than <i>len</i>
+   *    only at the end of the basis.
+   * @throws IOException If a file cannot be read.
+   */
+  public int read(long offset, byte[] buf, int off, int len)
+    throws IOException
+  {
+    int total = 0;
+    while (total < len && offset < length)
+      {
+        Segment s = segmentAt(offset);
+        long pos = offset - s.base;
+        int n = s.read(pos, buf, off + total,
+                       (int) Math.min(len - total, s.length - pos));
+        if (n <= 0)
+          break;
+        total += n;
+        offset += n;
+      }
+    return total;
+  }
+
+  /**
+   * Close any files opened by reading.
+   */
+  public void close()
+  {
+    for (Segment s : segments)
+      s.close();
+  }
+
+  // Own methods.
+  // -------------------------------------------------------------------------
+
+  private Segment segmentAt(long offset)
+  {
+    int lo = 0, hi = segments.size() - 1;
+    while (lo < hi)
+      {
+        int mid = (lo + hi + 1) >>> 1;
+        if (segments.get(mid).base <= offset)
+          lo = mid;
+        else
+          hi = mid - 1;
+      }
+    return segments.get(lo);
+  }
+
+  // Inner class.
+  // -------------------------------------------------------------------------
+
+  /**
+   * A range of one file, and where it starts in the basis.
+   */
+  private static class Segment
+  {
+    final File file;
+    final long start;
+    final long base;
+    long length;
+    RandomAccessFile in;
+
+    Segment(File file, long start, long length, long base)
+    {
+      this.file = file;
+      this.start = start;
+      this.length = length;
+      this.base = base;
+    }
+
+    int read(long pos, byte[] buf, int off, int len) throws IOException
+    {
+      if (in == null)
+        in = new RandomAccessFile(file, "r");
+      in.seek(start + pos);
+      return in.read(buf, off, len);
+    }
+
+    void close()
+    {
+      if (in == null)
+        return;
+      try
+        {
+          in.close();
+        }
+      catch (IOException ignore)
+        {
+        }
+      in = null;
+    }
+  }
+}
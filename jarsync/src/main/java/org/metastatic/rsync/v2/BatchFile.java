@@ -0,0 +1,212 @@
+/* BatchFile -- recorded transfers, for replay to many replicas.
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of Jarsync.
+
+Jarsync is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Jarsync is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jarsync; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA  */
+
+package org.metastatic.rsync.v2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A batch file: everything a receiver read from the sender in one
+ * transfer -- the file list, the deltas and the whole-file checksums --
+ * after a short header giving the protocol version, checksum seed and
+ * options that stream was written with. Since the deltas refer only to the
+ * receiver's old files, the same batch can be replayed into any number
+ * of replicas that were identical to the first one, with no sender, no
+ * network and no searching for matches. Files whose checksums do not
+ * come out right in a replica are left unchanged there.
+ *
+ * <p>Batches are written with <code>--write-batch=FILE</code> while
+ * receiving, and replayed with <code>--read-batch=FILE DEST</code>.
+ * The options that decide how the file list is encoded are taken from
+ * the batch when it is replayed, as rsync does, not from the command
+ * line.
+ *
+ * @version $Revision$
+ */
+public class BatchFile
+{
+
+  // Constants and fields.
+  // -------------------------------------------------------------------------
+
+  /** "JRB2". */
+  private static final int MAGIC = 0x4a524232;
+
+  /** "JRB1", whose header has no options. */
+  private static final int MAGIC_1 = 0x4a524231;
+
+  // The options recorded in the header, like write_stream_flags in
+  // batch.c.
+  private static final int FLAG_RECURSE = 1 << 0;
+  private static final int FLAG_OWNER = 1 << 1;
+  private static final int FLAG_GROUP = 1 << 2;
+  private static final int FLAG_LINKS = 1 << 3;
+  private static final int FLAG_DEVICES = 1 << 4;
+  private static final int FLAG_HARD_LINKS = 1 << 5;
+  private static final int FLAG_CHECKSUM = 1 << 6;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final int remoteVersion;
+  private final byte[] checksumSeed;
+  private final int flags;
+  private final InputStream in;
+
+  // Constructor.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Open a batch file for replay.
+   *
+   * @param name The file name.
+   * @throws IOException If the file cannot be read, or is not a batch.
+   */
+  public BatchFile(String name) throws IOException
+  {
+    DataInputStream din = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(name), BUFFER_SIZE));
+    try
+      {
+        int magic = din.readInt();
+        if (magic != MAGIC && magic != MAGIC_1)
+          throw new IOException(name + ": not a batch file");
+        remoteVersion = din.readInt();
+        checksumSeed = new byte[4];
+        din.readFully(checksumSeed);
+        flags = magic == MAGIC ? din.readInt() : -1;
+      }
+    catch (IOException ioe)
+      {
+        din.close();
+        throw ioe;
+      }
+    in = din;
+  }
+
+  // Class methods.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Create a batch file and write its header; the caller then records
+   * the sender's data into the returned stream (see {@link
+   * MultiplexedInputStream#setRecorder(OutputStream)}) and closes it.
+   *
+   * @param name          The file name.
+   * @param remoteVersion The protocol version in use.
+   * @param checksumSeed  The checksum seed in use.
+   * @param options       The options the transfer runs with.
+   * @return The stream to record into.
+   * @throws IOException If the file cannot be written.
+   */
+  public static OutputStream create(String name, int remoteVersion,
+                                    byte[] checksumSeed, Options options)
+    throws IOException
+  {
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(name), BUFFER_SIZE));
+    out.writeInt(MAGIC);
+    out.writeInt(remoteVersion);
+    out.write(checksumSeed, 0, 4);
+    out.writeInt(flagsOf(options));
+    return out;
+  }
+
+  private static int flagsOf(Options options)
+  {
+    int f = 0;
+    if (options.recurse)
+      f |= FLAG_RECURSE;
+    if (options.preserve_uid)
+      f |= FLAG_OWNER;
+    if (options.preserve_gid)
+      f |= FLAG_GROUP;
+    if (options.preserve_links)
+      f |= FLAG_LINKS;
+    if (options.preserve_devices)
+      f |= FLAG_DEVICES;
+    if (options.preserve_hard_links)
+      f |= FLAG_HARD_LINKS;
+    if (options.always_checksum)
+      f |= FLAG_CHECKSUM;
+    return f;
+  }
+
+  // Instance methods.
+  // -------------------------------------------------------------------------
+
+  public int getRemoteVersion()
+  {
+    return remoteVersion;
+  }
+
+  public byte[] getChecksumSeed()
+  {
+    return (byte[]) checksumSeed.clone();
+  }
+
+  /**
+   * Set the options that the recorded stream depends on to the values
+   * it was written with. A batch from before options were recorded
+   * leaves them as they are.
+   *
+   * @param options The options to change.
+   * @return True if any option was changed.
+   */
+  public boolean applyTo(Options options)
+  {
+    if (flags == -1)
+      return false;
+    boolean changed = flagsOf(options) != flags;
+    options.recurse = (flags & FLAG_RECURSE) != 0;
+    options.preserve_uid = (flags & FLAG_OWNER) != 0;
+    options.preserve_gid = (flags & FLAG_GROUP) != 0;
+    options.preserve_links = (flags & FLAG_LINKS) != 0;
+    options.preserve_devices = (flags & FLAG_DEVICES) != 0;
+    options.preserve_hard_links = (flags & FLAG_HARD_LINKS) != 0;
+    options.always_checksum = (flags & FLAG_CHECKSUM) != 0;
+    return changed;
+  }
+
+  /**
+   * Return the recorded stream, positioned after the header.
+   */
+  public InputStream getInputStream()
+  {
+    return in;
+  }
+
+  public void close() throws IOException
+  {
+    in.close();
+  }
+}
@@ -78,12 +78,15 @@ class BlockingDaemon implements Runnable, Constants {
 
    private String motdFile;
 
+   private RateLimiter limiter;
+
    private int remoteVersion;
 
    // Constructors.
    // -----------------------------------------------------------------------
 
-   BlockingDaemon(Socket socket, Map modules, String motdFile)
+   BlockingDaemon(Socket socket, Map modules, String motdFile,
+                  RateLimiter limiter)
    throws IOException
    {
       this.socket = socket;
@@ -93,6 +96,7 @@ class BlockingDaemon implements Runnable, Constants {
       out = socket.getOutputStream();
       this.modules = modules;
       this.motdFile = motdFile;
+      this.limiter = limiter;
    }
 
    // Instance methods.
@@ -199,6 +203,8 @@ class BlockingDaemon implements Runnable, Constants {
          MultiplexedInputStream min = new MultiplexedInputStream(in, false);
          MultiplexedOutputStream mout = new MultiplexedOutputStream(out,
             remoteVersion >= 17);
+         mout.setRateLimiter(RateLimiter.forKBps(options != null
+            ? options.bwlimit : 0, module.getRateLimiter(limiter)));
 
          if (options == null) {
             mout.writeMessage(MultiplexedIO.FERROR, "...");
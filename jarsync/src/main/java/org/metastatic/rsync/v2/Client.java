@@ -30,7 +30,12 @@ import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.security.KeyManagementException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -298,7 +303,9 @@ public class Client
       }
     try
       {
-        socket = new Socket(remoteHost, remotePort);
+        SocketChannel channel = SocketChannel.open(
+            new InetSocketAddress(remoteHost, remotePort));
+        socket = channel.socket();
         if (options.io_timeout > 0)
           socket.setSoTimeout(options.io_timeout);
         // socket.setKeepAlive(true);
@@ -307,8 +314,14 @@ public class Client
             socket.getInputStream()), false);
         out = new MultiplexedOutputStream(new BufferedOutputStream(
             socket.getOutputStream()), false);
+        out.setChannel(channel);
         in.setStats(stats);
         out.setStats(stats);
+        if (!options.no_whole_file && isFastPeer(socket.getInetAddress()))
+          {
+            logger.debug("peer is local; sending whole files");
+            options.whole_file = true;
+          }
       } catch (IOException ioe)
       {
         logger.error("cannot connect to " + remoteHost + ":" + remotePort
@@ -342,6 +355,15 @@ public class Client
   {
     logger.debug("starting shell client to " + remoteHost);
     logger.debug("using shell " + options.shell_cmd);
+    try
+      {
+        if (!options.no_whole_file
+            && isFastPeer(InetAddress.getByName(remoteHost)))
+          options.whole_file = true;
+      } catch (IOException ioe)
+      {
+        // Let the shell report unknown hosts.
+      }
     serverArgs();
     server_argv.add(path);
     for (int i = optind; i < argv.length - 1; i++)
@@ -426,7 +448,72 @@ public class Client
   public int localClient(String[] argv, int optind)
   {
     logger.debug("starting local client");
-    return 1;
+    if (argv.length - optind < 2)
+      {
+        logger.error("too few arguments.");
+        return 1;
+      }
+    LocalTransfer transfer = new LocalTransfer(options, config, stats);
+    int ret = transfer.run(argv, optind);
+    // Nothing crosses a wire; count what had to be copied as written.
+    stats.total_written = stats.literal_data;
+    if (ret == 0)
+      ret = readStats();
+    return ret;
+  }
+
+  /**
+   * Replay a batch file, written by an earlier transfer with
+   * --write-batch, into the destination given as the last argument.
+   *
+   * @param argv
+   *          The command line arguments.
+   * @param optind
+   *          The index into the argument array of the first non-option
+   *          argument.
+   * @return Zero on success, nonzero on failure.
+   */
+  public int readBatch(String[] argv, int optind)
+  {
+    logger.debug("replaying batch " + options.read_batch);
+    try
+      {
+        BatchFile batch = new BatchFile(options.read_batch);
+        try
+          {
+            remoteVersion = batch.getRemoteVersion();
+            config.checksumSeed = batch.getChecksumSeed();
+            if (batch.applyTo(options))
+              logger.info("using the options recorded in "
+                  + options.read_batch);
+            in = new MultiplexedInputStream(batch.getInputStream(), false);
+            in.setStats(stats);
+            FileList flist = new FileList(in, null, remoteVersion, false,
+                options);
+            flist.setStatistics(stats);
+            List files = flist.receiveFileList();
+            flist.toLocalList(files, argv[argv.length - 1]);
+            Receiver recv = new Receiver(in, null, config, remoteVersion, false);
+            recv.setStatistics(stats);
+            recv.setOptions(options);
+            recv.setDestination(argv[argv.length - 1]);
+            int failed = recv.replayFiles(files);
+            if (failed > 0)
+              {
+                logger.error(failed + " files could not be rebuilt from "
+                    + options.read_batch);
+                return 1;
+              }
+            return 0;
+          } finally
+          {
+            batch.close();
+          }
+      } catch (IOException ioe)
+      {
+        logger.error(ioe.getMessage());
+        return 1;
+      }
   }
 
   public int clientRun(String[] argv, int optind)
@@ -440,6 +527,7 @@ public class Client
           in.setMultiplex(true);
         stats.total_read = 0;
         stats.total_written = 0;
+        out.setRateLimiter(RateLimiter.forKBps(options.bwlimit, null));
         if (listOnly && !options.recurse)
           excludeList.add("/*/*");
         if (!options.am_sender
@@ -477,6 +565,13 @@ public class Client
             return readStats();
           } else
           {
+            OutputStream batch = null;
+            if (options.write_batch != null && !listOnly)
+              {
+                batch = BatchFile.create(options.write_batch, remoteVersion,
+                    config.checksumSeed, options);
+                in.setRecorder(batch);
+              }
             final List files = flist.receiveFileList();
             stats.flist_size = (int) stats.total_read;
             if (listOnly)
@@ -507,6 +602,8 @@ public class Client
             final Receiver recv = new Receiver(in, out, config, remoteVersion,
                 false);
             recv.setStatistics(stats);
+            recv.setOptions(options);
+            recv.setDestination(argv[argv.length - 1]);
             Thread generator = new Thread(new Runnable() {
               public void run()
               {
@@ -521,7 +618,17 @@ public class Client
               }
             }, "generator");
             generator.start();
-            recv.receiveFiles(files);
+            try
+              {
+                recv.receiveFiles(files);
+              } finally
+              {
+                if (batch != null)
+                  {
+                    in.setRecorder(null);
+                    batch.close();
+                  }
+              }
             if (remoteVersion >= 24)
               out.write(-1);
             return readStats();
@@ -592,7 +699,10 @@ public class Client
           logger.setLevel(Level.INFO);
         else if (options.verbose >= 2)
           logger.setLevel(Level.DEBUG);
-        ret = client.startClient(argv, optind);
+        if (options.read_batch != null)
+          ret = client.readBatch(argv, optind);
+        else
+          ret = client.startClient(argv, optind);
       }
 
     System.exit(ret);
@@ -601,6 +711,28 @@ public class Client
   // Own methods.
   // -------------------------------------------------------------------------
 
+  /**
+   * Tell whether the peer is this host or on a directly-attached link,
+   * where the network is fast enough that the delta algorithm costs
+   * more than it saves, so whole files should be sent (as rsync does
+   * for local copies).
+   */
+  private static boolean isFastPeer(InetAddress addr)
+  {
+    if (addr == null)
+      return false;
+    if (addr.isLoopbackAddress() || addr.isAnyLocalAddress()
+        || addr.isLinkLocalAddress())
+      return true;
+    try
+      {
+        return NetworkInterface.getByInetAddress(addr) != null;
+      } catch (IOException ioe)
+      {
+        return false;
+      }
+  }
+
   /**
    * Sets up a socket connection.
    */
@@ -685,6 +817,7 @@ public class Client
         socket = newSocket;
         in.setInputStream(socket.getInputStream());
         out.setOutputStream(socket.getOutputStream());
+        out.setChannel(null); // Everything must go through TLS now.
       }
 
     while (true)
@@ -835,6 +968,15 @@ public class Client
         server_argv.add(options.backup_suffix);
       }
 
+    if (options.compare_dest != null)
+      {
+        server_argv.add("--compare-dest");
+        server_argv.add(options.compare_dest);
+      }
+
+    if (options.fuzzy_basis)
+      server_argv.add("--fuzzy");
+
     if (options.delete_mode && !options.delete_excluded)
       server_argv.add("--delete");
 
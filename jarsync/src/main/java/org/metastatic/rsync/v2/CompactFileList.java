@@ -0,0 +1,542 @@
+/* CompactFileList -- memory-efficient storage for large file lists.
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of Jarsync.
+
+Jarsync is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Jarsync is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jarsync; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA  */
+
+package org.metastatic.rsync.v2;
+
+import java.io.UnsupportedEncodingException;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A file list that stores its entries column-wise instead of as one
+ * {@link FileInfo} object per file. Directory names are interned into
+ * a single table and referred to by index, base names are stored
+ * prefix-compressed against the previous entry (just as they are sent
+ * over the wire), and the numeric attributes live in parallel
+ * primitive arrays. A list of a few million files thus costs tens of
+ * bytes per entry rather than several hundred.
+ *
+ * <p>{@link #get(int)} returns a freshly-populated {@link FileInfo},
+ * so the rest of the code can keep working with that class. Changes
+ * made to a returned object are <em>not</em> reflected in this list
+ * until it is passed back to {@link #set(int,FileInfo)}.
+ *
+ * <p>Concurrent reads are safe; writes must be externally
+ * synchronized.
+ *
+ * @version $Revision$
+ */
+public class CompactFileList extends AbstractList<FileInfo>
+  implements RandomAccess
+{
+
+  // Constants and fields.
+  // -------------------------------------------------------------------------
+
+  /**
+   * The longest run of prefix-compressed names; every this-many
+   * entries a name is stored in full, which bounds the work done by
+   * {@link #get(int)}.
+   */
+  private static final int MAX_CHAIN = 16;
+
+  /** The longest prefix that will be shared with the previous name. */
+  private static final int MAX_PREFIX = 255;
+
+  private static final String ENCODING = "UTF-8";
+
+  private int size;
+
+  // Names.
+  private byte[] names;
+  private int namesLength;
+  private int[] nameOffset;
+  private short[] nameLength;
+  private byte[] prefix;
+
+  // Interned directory names.
+  private int[] dir;
+  private String[] dirTable;
+  private int dirCount;
+  private final Map<String, Integer> dirIndex;
+
+  // Attributes.
+  private int[] flags;
+  private int[] modtime;
+  private long[] length;
+  private int[] inode;
+  private int[] rdev;
+  private int[] mode;
+  private int[] uid;
+  private int[] gid;
+
+  // Rarely present; kept out of the per-entry columns.
+  private Map<Integer, String> links;
+  private byte[][] sums;
+
+  // Constructors.
+  // -------------------------------------------------------------------------
+
+  public CompactFileList()
+  {
+    this(64);
+  }
+
+  public CompactFileList(int capacity)
+  {
+    if (capacity < 1)
+      capacity = 1;
+    names = new byte[capacity * 16];
+    nameOffset = new int[capacity];
+    nameLength = new short[capacity];
+    prefix = new byte[capacity];
+    dir = new int[capacity];
+    dirTable = new String[16];
+    dirIndex = new HashMap<String, Integer>();
+    flags = new int[capacity];
+    modtime = new int[capacity];
+    length = new long[capacity];
+    inode = new int[capacity];
+    rdev = new int[capacity];
+    mode = new int[capacity];
+    uid = new int[capacity];
+    gid = new int[capacity];
+  }
+
+  // List implementation.
+  // -------------------------------------------------------------------------
+
+  public int size()
+  {
+    return size;
+  }
+
+  public FileInfo get(int index)
+  {
+    checkIndex(index);
+    FileInfo file = new FileInfo();
+    file.basename = basename(index);
+    file.dirname = dirname(index);
+    file.flags = flags[index];
+    file.modtime = modtime[index];
+    file.length = length[index];
+    file.inode = inode[index];
+    file.rdev = rdev[index];
+    file.mode = mode[index];
+    file.uid = uid[index];
+    file.gid = gid[index];
+    if (links != null)
+      file.link = links.get(index);
+    if (sums != null)
+      file.sum = sums[index];
+    return file;
+  }
+
+  public void add(int index, FileInfo file)
+  {
+    if (index < 0 || index > size)
+      throw new IndexOutOfBoundsException(index + " (size " + size + ")");
+    ensureCapacity(size + 1);
+    if (index == size)
+      {
+        size++;
+        store(index, file);
+      }
+    else
+      {
+        String[] tail = decodeChain(index);
+        shift(index, 1);
+        size++;
+        store(index, file);
+        reencode(index + 1, tail);
+      }
+    modCount++;
+  }
+
+  public FileInfo set(int index, FileInfo file)
+  {
+    checkIndex(index);
+    FileInfo old = get(index);
+    if (old.basename.equals(file.basename))
+      {
+        // Only the attributes changed; leave the name table alone.
+        storeAttributes(index, file);
+        return old;
+      }
+    String[] tail = decodeChain(index + 1);
+    store(index, file);
+    reencode(index + 1, tail);
+    return old;
+  }
+
+  public FileInfo remove(int index)
+  {
+    checkIndex(index);
+    FileInfo old = get(index);
+    String[] tail = decodeChain(index + 1);
+    shift(index + 1, -1);
+    size--;
+    reencode(index, tail);
+    modCount++;
+    return old;
+  }
+
+  public void clear()
+  {
+    size = 0;
+    namesLength = 0;
+    links = null;
+    sums = null;
+    modCount++;
+  }
+
+  // Instance methods.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Returns the base name of the given entry, without building a
+   * whole {@link FileInfo}.
+   */
+  public String basename(int index)
+  {
+    checkIndex(index);
+    int start = index;
+    while (prefix[start] != 0)
+      start--;
+    int len = 0;
+    for (int i = start; i <= index; i++)
+      len = Math.max(len, (prefix[i] & 0xFF) + nameLength[i]);
+    byte[] buf = new byte[len];
+    int n = 0;
+    for (int i = start; i <= index; i++)
+      {
+        n = (prefix[i] & 0xFF) + nameLength[i];
+        System.arraycopy(names, nameOffset[i], buf, prefix[i] & 0xFF,
+                         nameLength[i]);
+      }
+    return decode(buf, n);
+  }
+
+  /**
+   * Returns the (interned) directory name of the given entry, or null.
+   */
+  public String dirname(int index)
+  {
+    checkIndex(index);
+    return dir[index] < 0 ? null : dirTable[dir[index]];
+  }
+
+  public long length(int index)
+  {
+    checkIndex(index);
+    return length[index];
+  }
+
+  public int mode(int index)
+  {
+    checkIndex(index);
+    return mode[index];
+  }
+
+  public int modtime(int index)
+  {
+    checkIndex(index);
+    return modtime[index];
+  }
+
+  /**
+   * Returns the number of distinct directory names in this list.
+   */
+  public int directoryCount()
+  {
+    return dirCount;
+  }
+
+  /**
+   * Shrinks the backing arrays to the current size.
+   */
+  public void trimToSize()
+  {
+    resize(Math.max(size, 1));
+    compactNames(-1);
+    names = Arrays.copyOf(names, Math.max(namesLength, 1));
+  }
+
+  // Own methods.
+  // -------------------------------------------------------------------------
+
+  private void checkIndex(int index)
+  {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException(index + " (size " + size + ")");
+  }
+
+  private void store(int index, FileInfo file)
+  {
+    putName(index, encode(file.basename != null ? file.basename : ""));
+    storeAttributes(index, file);
+  }
+
+  private void storeAttributes(int index, FileInfo file)
+  {
+    dir[index] = intern(file.dirname);
+    flags[index] = file.flags;
+    modtime[index] = file.modtime;
+    length[index] = file.length;
+    inode[index] = file.inode;
+    rdev[index] = file.rdev;
+    mode[index] = file.mode;
+    uid[index] = file.uid;
+    gid[index] = file.gid;
+
+    if (file.link != null)
+      {
+        if (links == null)
+          links = new HashMap<Integer, String>();
+        links.put(index, file.link);
+      }
+    else if (links != null)
+      links.remove(index);
+    if (file.sum != null && sums == null)
+      sums = new byte[nameOffset.length][];
+    if (sums != null)
+      sums[index] = file.sum;
+  }
+
+  /**
+   * Returns how many entries, ending at <i>index</i>, are linked by
+   * shared prefixes.
+   */
+  private int chainLength(int index)
+  {
+    int n = 0;
+    while (index >= 0 && prefix[index] != 0)
+      {
+        index--;
+        n++;
+      }
+    return n;
+  }
+
+  /**
+   * Decodes the base names of the entries starting at <i>from</i> that
+   * depend on the entry before them, up to (but not including) the
+   * next entry stored in full.
+   */
+  private String[] decodeChain(int from)
+  {
+    int to = from;
+    while (to < size && prefix[to] != 0)
+      to++;
+    String[] chain = new String[to - from];
+    for (int i = from; i < to; i++)
+      chain[i - from] = basename(i);
+    return chain;
+  }
+
+  /**
+   * Re-stores the names previously returned by {@link #decodeChain}
+   * after the entries before them have changed.
+   */
+  private void reencode(int from, String[] chain)
+  {
+    for (int i = 0; i < chain.length; i++)
+      putName(from + i, encode(chain[i]));
+  }
+
+  /**
+   * Appends the given name to the name table as entry <i>index</i>,
+   * sharing as much of a prefix with the entry before it as allowed.
+   */
+  private void putName(int index, byte[] name)
+  {
+    int l1 = 0;
+    if (index > 0 && chainLength(index - 1) < MAX_CHAIN - 1)
+      {
+        byte[] last = encode(basename(index - 1));
+        while (l1 < last.length && l1 < name.length && l1 < MAX_PREFIX
+               && last[l1] == name[l1])
+          l1++;
+      }
+    int l2 = name.length - l1;
+    if (l2 > Short.MAX_VALUE)
+      throw new IllegalArgumentException("file name too long");
+    if (namesLength + l2 > names.length)
+      {
+        // Entries re-stored by set, add or remove leave their old bytes
+        // behind; reclaim them before growing if they are most of it.
+        if (liveNameBytes(index) < namesLength / 2)
+          compactNames(index);
+        if (namesLength + l2 > names.length)
+          names = Arrays.copyOf(names, Math.max(names.length * 2,
+                                                namesLength + l2));
+      }
+    System.arraycopy(name, l1, names, namesLength, l2);
+    nameOffset[index] = namesLength;
+    nameLength[index] = (short) l2;
+    prefix[index] = (byte) l1;
+    namesLength += l2;
+  }
+
+  /**
+   * Returns the number of name table bytes in use by entries other
+   * than <i>skip</i>.
+   */
+  private int liveNameBytes(int skip)
+  {
+    int n = 0;
+    for (int i = 0; i < size; i++)
+      if (i != skip)
+        n += nameLength[i];
+    return n;
+  }
+
+  /**
+   * Copies the names of all entries but <i>skip</i>, which is about to
+   * be re-stored, to the front of a fresh name table.
+   */
+  private void compactNames(int skip)
+  {
+    byte[] b = new byte[names.length];
+    int off = 0;
+    for (int i = 0; i < size; i++)
+      {
+        if (i == skip)
+          continue;
+        System.arraycopy(names, nameOffset[i], b, off, nameLength[i]);
+        nameOffset[i] = off;
+        off += nameLength[i];
+      }
+    names = b;
+    namesLength = off;
+  }
+
+  private int intern(String dirname)
+  {
+    if (dirname == null)
+      return -1;
+    Integer i = dirIndex.get(dirname);
+    if (i != null)
+      return i.intValue();
+    if (dirCount == dirTable.length)
+      dirTable = Arrays.copyOf(dirTable, dirCount * 2);
+    dirTable[dirCount] = dirname.intern();
+    dirIndex.put(dirTable[dirCount], dirCount);
+    return dirCount++;
+  }
+
+  /**
+   * Moves entries <i>from</i>..size-1 by <i>delta</i> places.
+   */
+  private void shift(int from, int delta)
+  {
+    int n = size - from;
+    if (n <= 0)
+      return;
+    int to = from + delta;
+    System.arraycopy(nameOffset, from, nameOffset, to, n);
+    System.arraycopy(nameLength, from, nameLength, to, n);
+    System.arraycopy(prefix, from, prefix, to, n);
+    System.arraycopy(dir, from, dir, to, n);
+    System.arraycopy(flags, from, flags, to, n);
+    System.arraycopy(modtime, from, modtime, to, n);
+    System.arraycopy(length, from, length, to, n);
+    System.arraycopy(inode, from, inode, to, n);
+    System.arraycopy(rdev, from, rdev, to, n);
+    System.arraycopy(mode, from, mode, to, n);
+    System.arraycopy(uid, from, uid, to, n);
+    System.arraycopy(gid, from, gid, to, n);
+    if (sums != null)
+      System.arraycopy(sums, from, sums, to, n);
+    if (links != null && !links.isEmpty())
+      {
+        Map<Integer, String> moved = new HashMap<Integer, String>();
+        for (Map.Entry<Integer, String> e : links.entrySet())
+          {
+            int i = e.getKey().intValue();
+            if (i < from)
+              {
+                if (delta > 0 || i < to)
+                  moved.put(i, e.getValue());
+              }
+            else
+              moved.put(i + delta, e.getValue());
+          }
+        links = moved;
+      }
+  }
+
+  private void ensureCapacity(int capacity)
+  {
+    if (capacity > nameOffset.length)
+      resize(Math.max(capacity, nameOffset.length + (nameOffset.length >> 1)));
+  }
+
+  private void resize(int capacity)
+  {
+    nameOffset = Arrays.copyOf(nameOffset, capacity);
+    nameLength = Arrays.copyOf(nameLength, capacity);
+    prefix = Arrays.copyOf(prefix, capacity);
+    dir = Arrays.copyOf(dir, capacity);
+    flags = Arrays.copyOf(flags, capacity);
+    modtime = Arrays.copyOf(modtime, capacity);
+    length = Arrays.copyOf(length, capacity);
+    inode = Arrays.copyOf(inode, capacity);
+    rdev = Arrays.copyOf(rdev, capacity);
+    mode = Arrays.copyOf(mode, capacity);
+    uid = Arrays.copyOf(uid, capacity);
+    gid = Arrays.copyOf(gid, capacity);
+    if (sums != null)
+      sums = Arrays.copyOf(sums, capacity);
+  }
+
+  private static byte[] encode(String s)
+  {
+    try
+      {
+        return s.getBytes(ENCODING);
+      }
+    catch (UnsupportedEncodingException uee)
+      {
+        throw new Error(uee);
+      }
+  }
+
+  private static String decode(byte[] b, int len)
+  {
+    try
+      {
+        return new String(b, 0, len, ENCODING);
+      }
+    catch (UnsupportedEncodingException uee)
+      {
+        throw new Error(uee);
+      }
+  }
+}
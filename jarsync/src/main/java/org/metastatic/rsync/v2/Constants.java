@@ -45,6 +45,15 @@ public interface Constants
   /** The size of MD4 checksums. */
   public static final int SUM_LENGTH = HASH_ALGORITHM.DIGEST_LENGTH;
 
+  /** The strong sum length used in the first pass. */
+  public static final int SHORT_SUM_LENGTH = 2;
+
+  /**
+   * Bits of safety margin when sizing strong sums; see
+   * sum_sizes_sqroot in generator.c.
+   */
+  public static final int BLOCKSUM_BIAS = 10;
+
   /** The default port for rsyncd connections. */
   public static final int RSYNCD_PORT = 873;
 
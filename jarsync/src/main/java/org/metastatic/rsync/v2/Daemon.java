@@ -120,6 +120,7 @@ public class Daemon implements Constants, Runnable
   protected String pidFile;
   protected String logFile;
   protected Map modules;
+  protected RateLimiter limiter;
 
   protected boolean ssl;
   protected String ssl_keystore;
@@ -249,6 +250,7 @@ public class Daemon implements Constants, Runnable
   public void run()
   {
     ServerSocket socket = null;
+    Metrics.register();
     logger.info("binding to " + address + ":" + port);
     try
       {
@@ -269,7 +271,7 @@ public class Daemon implements Constants, Runnable
         try
           {
             BlockingDaemon d = new BlockingDaemon(socket.accept(),
-                                                  modules, motdFile);
+                                                  modules, motdFile, limiter);
             Thread t = new Thread(d);
             t.setDaemon(true);
             t.start();
@@ -294,6 +296,7 @@ public class Daemon implements Constants, Runnable
     pidFile = config.getPIDFile();
     logFile = config.getLogFile();
     modules = config.getModules();
+    limiter = RateLimiter.forKBps(config.getBwLimit(), null);
 
     for (Iterator i = modules.values().iterator(); i.hasNext(); )
       {
@@ -26,17 +26,43 @@
 
 package org.metastatic.rsync.v2;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
+/**
+ * The output side of a nonblocking session. Data are written straight
+ * into the socket's output buffer: primitives in place, in the
+ * little-endian byte order of the protocol, and, once multiplexing is
+ * on, into a frame whose four-byte header is left blank and filled in
+ * when the frame is closed, so that no data is staged and copied
+ * twice.
+ *
+ * <p>If a burst of output does not fit, the buffer is replaced by a
+ * larger direct buffer, up to a limit. Since the buffer can change,
+ * callers should fetch it with {@link #getBuffer()} each time rather
+ * than keep a reference to it.
+ *
+ * @version $Revision$
+ */
 public class DuplexByteBuffer implements MultiplexedIO
 {
 
    // Constants and fields.
    // -----------------------------------------------------------------------
 
-   protected final ByteBuffer buffer;
+   /** The largest data frame; IO_BUFFER_SIZE in io.c. */
+   public static final int MAX_FRAME = 4092;
 
-   protected final ByteBuffer outputBuffer;
+   /** The default limit on the buffer's growth. */
+   public static final int MAX_CAPACITY = 256 * 1024;
+
+   protected ByteBuffer buffer;
+
+   protected final int maxCapacity;
+
+   /** Where the open frame's header is, or -1 if no frame is open. */
+   protected int frameStart;
 
    protected boolean duplex;
 
@@ -44,28 +70,78 @@ public class DuplexByteBuffer implements MultiplexedIO
    // -----------------------------------------------------------------------
 
    public DuplexByteBuffer(ByteBuffer buffer) {
+      this(buffer, MAX_CAPACITY);
+   }
+
+   /**
+    * @param buffer      The initial output buffer.
+    * @param maxCapacity The size beyond which the buffer may not grow.
+    */
+   public DuplexByteBuffer(ByteBuffer buffer, int maxCapacity) {
       this.buffer = buffer;
-      outputBuffer = ByteBuffer.allocate(4092);
+      this.maxCapacity = Math.max(maxCapacity, buffer.capacity());
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      frameStart = -1;
       duplex = false;
    }
 
    // Instance methods.
    // -----------------------------------------------------------------------
 
+   /**
+    * Return the current output buffer, which holds only complete
+    * frames after {@link #flush()}.
+    */
+   public ByteBuffer getBuffer() {
+      return buffer;
+   }
+
+   /**
+    * Return how many bytes of data may be put without the buffer
+    * growing, allowing for the header of each frame they would open.
+    */
+   public int writable() {
+      int room = buffer.remaining();
+      if (!duplex)
+         return room;
+      int n = 0;
+      if (frameStart >= 0) {
+         n = Math.min(room, MAX_FRAME - (buffer.position() - frameStart - 4));
+         room -= n;
+      }
+      int frames = room / (4 + MAX_FRAME);
+      n += frames * MAX_FRAME;
+      room -= frames * (4 + MAX_FRAME);
+      if (room > 4)
+         n += room - 4;
+      return n;
+   }
+
    public void setDuplex(boolean duplex) {
       flush();
       this.duplex = duplex;
    }
 
    public void put(byte[] buf, int off, int len) {
-      int i = 0;
-      while (i < len) {
-         int r = outputBuffer.remaining();
-         outputBuffer.put(buf, i+off, Math.min(r, len-i));
-         i += Math.min(r, len);
-         if (!outputBuffer.hasRemaining()) {
-            flush();
-         }
+      while (len > 0) {
+         int n = reserve(len);
+         buffer.put(buf, off, n);
+         off += n;
+         len -= n;
+      }
+   }
+
+   /**
+    * Put all remaining bytes of <i>buf</i>, e.g. a direct buffer filled
+    * from a file channel, without copying them into a temporary array.
+    */
+   public void put(ByteBuffer buf) {
+      int limit = buf.limit();
+      while (buf.hasRemaining()) {
+         int n = reserve(buf.remaining());
+         buf.limit(buf.position() + n);
+         buffer.put(buf);
+         buf.limit(limit);
       }
    }
 
@@ -74,18 +150,13 @@ public class DuplexByteBuffer implements MultiplexedIO
    }
 
    public void put(byte b) {
-      outputBuffer.put(b);
-      if (!outputBuffer.hasRemaining())
-         flush();
+      reserve(1);
+      buffer.put(b);
    }
 
    public void putInt(int i) {
-      byte[] b = new byte[4];
-      b[0] = (byte) (i & 0xFF);
-      b[1] = (byte) (i >>>  8 & 0xFF);
-      b[2] = (byte) (i >>> 16 & 0xFF);
-      b[3] = (byte) (i >>> 24 & 0xFF);
-      put(b);
+      reserveWhole(4);
+      buffer.putInt(i);
    }
 
    public void putLong(long l) {
@@ -94,69 +165,124 @@ public class DuplexByteBuffer implements MultiplexedIO
          return;
       }
       putInt(0xFFFFFFFF);
-      byte[] b = new byte[8];
-      b[0] = (byte) (l & 0xff);
-      b[1] = (byte) (l >>>  8 & 0xff);
-      b[2] = (byte) (l >>> 16 & 0xff);
-      b[3] = (byte) (l >>> 24 & 0xff);
-      b[4] = (byte) (l >>> 32 & 0xff);
-      b[5] = (byte) (l >>> 40 & 0xff);
-      b[6] = (byte) (l >>> 48 & 0xff);
-      b[7] = (byte) (l >>> 56 & 0xff);
-      put(b);
+      reserveWhole(8);
+      buffer.putLong(l);
    }
 
    public void putString(String string) {
-      try {
-         putInt(string.length());
-         put(string.getBytes("ISO-8859-1"));
-      } catch (java.io.UnsupportedEncodingException x) {
-      }
+      putInt(string.length());
+      putChars(string);
    }
 
    public void putShortString(String string) {
-      try {
-         put((byte) string.length());
-         put(string.getBytes("ISO-8859-1"));
-      } catch (java.io.UnsupportedEncodingException x) {
-      }
+      put((byte) string.length());
+      putChars(string);
    }
 
    public void putString(int logcode, String message) {
       if (duplex) {
          flush();
-         try {
-            byte[] buf = message.getBytes("ISO-8859-1");
-            putLogcode(logcode, buf.length);
-            buffer.put(buf);
-         } catch (java.io.UnsupportedEncodingException x) {
-         }
+         int len = message.length();
+         ensure(4 + len);
+         buffer.putInt(header(logcode, len));
+         for (int i = 0; i < len; i++)
+            buffer.put(latin1(message.charAt(i)));
       }
    }
 
    public String toString() {
-      return "pre_buf=" + outputBuffer.toString() + " buf=" +
-         buffer.toString() + " duplex=" + duplex;
+      return "buf=" + buffer.toString() + " frame=" + frameStart +
+         " duplex=" + duplex;
    }
 
+   /**
+    * Close the open frame, if any, so that everything written so far
+    * may be sent.
+    */
    public void flush() {
-      outputBuffer.flip();
-      if (outputBuffer.hasRemaining()) {
-         putLogcode(FNONE, outputBuffer.remaining());
-         buffer.put(outputBuffer);
-      }
-      outputBuffer.compact();
+      if (frameStart < 0)
+         return;
+      int len = buffer.position() - frameStart - 4;
+      if (len == 0)
+         buffer.position(frameStart);
+      else
+         buffer.putInt(frameStart, header(FNONE, len));
+      frameStart = -1;
    }
 
    // Own methods.
    // -----------------------------------------------------------------------
 
-   protected void putLogcode(int logcode, int len) {
-      if (duplex) {
-         buffer.put((byte) (len & 0xFF));
-         buffer.put((byte) (len >>>  8 & 0xFF));
-         buffer.put((byte) (len >>> 16 & 0xFF));
-         buffer.put((byte) (logcode + MPLEX_BASE & 0xFF));
+   private static int header(int logcode, int len) {
+      return (len & 0xFFFFFF) | (logcode + MPLEX_BASE) << 24;
+   }
+
+   private static byte latin1(char c) {
+      return c < 0x100 ? (byte) c : (byte) '?';
+   }
+
+   private void putChars(String s) {
+      for (int off = 0; off < s.length(); ) {
+         int n = reserve(s.length() - off);
+         for (int end = off + n; off < end; off++)
+            buffer.put(latin1(s.charAt(off)));
       }
    }
+
+   /**
+    * Make room for up to <i>len</i> bytes of data, opening a new frame
+    * if needed, and return how many may be written now.
+    */
+   private int reserve(int len) {
+      if (!duplex) {
+         int n = Math.min(len, MAX_FRAME);
+         ensure(n);
+         return n;
+      }
+      if (frameStart >= 0 && buffer.position() - frameStart - 4 >= MAX_FRAME)
+         flush();
+      if (frameStart < 0) {
+         int n = Math.min(len, MAX_FRAME);
+         ensure(4 + n);
+         frameStart = buffer.position();
+         buffer.position(frameStart + 4);
+         return n;
+      }
+      int n = Math.min(len, MAX_FRAME - (buffer.position() - frameStart - 4));
+      ensure(n);
+      return n;
+   }
+
+   /**
+    * Make room for <i>len</i> bytes that must not be split across
+    * frames.
+    */
+   private void reserveWhole(int len) {
+      if (reserve(len) < len) {
+         flush();
+         reserve(len);
+      }
+   }
+
+   /**
+    * Grow the buffer if fewer than <i>len</i> bytes remain in it.
+    *
+    * @throws BufferOverflowException If the buffer would grow past its
+    *    limit.
+    */
+   private void ensure(int len) {
+      if (buffer.remaining() >= len)
+         return;
+      int need = buffer.position() + len;
+      if (need > maxCapacity)
+         throw new BufferOverflowException();
+      int capacity = buffer.capacity();
+      while (capacity < need)
+         capacity *= 2;
+      ByteBuffer bigger = ByteBuffer.allocateDirect(Math.min(capacity, maxCapacity));
+      bigger.order(ByteOrder.LITTLE_ENDIAN);
+      buffer.flip();
+      bigger.put(buffer);
+      buffer = bigger;
+   }
 }
@@ -38,8 +38,8 @@ import java.io.File;
 import java.io.IOException;
 
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 
 import org.apache.log4j.Logger;
 
@@ -68,6 +68,7 @@ public class FileList implements Constants
   private int last_gid;
   private String lastname = "";
   private String lastdir  = "";
+  private boolean io_error;
 
   // Constrctor.
   // -----------------------------------------------------------------------
@@ -98,7 +99,7 @@ public class FileList implements Constants
 
   public List receiveFileList() throws IOException
   {
-    List flist = new LinkedList();
+    List flist = new CompactFileList();
     byte flags;
 
     for (flags = (byte)in.read(); flags != 0; flags = (byte)in.read())
@@ -117,13 +118,13 @@ public class FileList implements Constants
             logger.debug("uidList " + id + " -> " + in.readString(len));
           }
       }
-    if (options.preserve_uid)
+    if (options.preserve_gid)
       {
         int id;
         while ((id = in.readInt()) != 0)
           {
             int len = in.read();
-            logger.debug("uidList " + id + " -> " + in.readString(len));
+            logger.debug("gidList " + id + " -> " + in.readString(len));
           }
       }
     logger.debug("io error flag="+in.readInt());
@@ -143,47 +144,17 @@ public class FileList implements Constants
     if (options.preserve_gid)
       out.writeInt(0); // Dummy gid list.
     if (remoteVersion >= 17)
-      out.writeInt(0); // io_error flag
+      out.writeInt(io_error ? 1 : 0);
     out.flush();
   }
 
   public List createFileList(String[] argv, int off, int len)
     throws IOException
   {
-    LinkedList files = new LinkedList();
-    LinkedList dirs  = new LinkedList();
-    Glob exclude = new Glob(options.exclude, false,
-                            System.getProperty("user.dir"));
     logger.debug("createFileList off=" + off + " len=" + len);
-    for (int i = 0; i < len; i++)
-      {
-        File f = new File(argv[i+off]);
-        if (!f.exists())
-          {
-            logger.warn(argv[i+off] + ": no such file or directory");
-            continue;
-          }
-        if (f.isDirectory())
-          dirs.add(f);
-        else
-          files.add(new FileInfo(f));
-      }
-
-    if (options.recurse)
-      {
-        while (dirs.size() > 0)
-          {
-            File dir = (File) dirs.removeFirst();
-            File[] f = dir.listFiles(exclude);
-            for (int i = 0; i < f.length; i++)
-              {
-                if (f[i].isDirectory())
-                  dirs.add(f[i]);
-                else
-                  files.add(new FileInfo(f[i]));
-              }
-          }
-      }
+    FileListBuilder builder = new FileListBuilder(options);
+    List files = builder.createFileList(argv, off, len);
+    io_error |= builder.hasIOError();
     stats.num_files = files.size();
     return files;
   }
@@ -198,13 +169,16 @@ public class FileList implements Constants
     if (dest.exists() && !dest.isDirectory() && flist.size() > 1)
       throw new IllegalArgumentException(dest + " is not a directory");
 
-    for (Iterator i = flist.iterator(); i.hasNext(); )
+    for (ListIterator i = flist.listIterator(); i.hasNext(); )
       {
         FileInfo file = (FileInfo) i.next();
         if (options.only_existing)
           if (dest.exists() && dest.isDirectory() &&
               !new File(dest, file.basename).exists())
-            i.remove();
+            {
+              i.remove();
+              continue;
+            }
         if (!dest.exists() || !dest.isDirectory())
           file.basename = dest.getName();
         if (!options.relative_paths)
@@ -214,6 +188,8 @@ public class FileList implements Constants
             else
               file.dirname = dest.getParent();
           }
+        // The list may hold copies rather than the entries themselves.
+        i.set(file);
       }
   }
 
@@ -256,7 +232,8 @@ public class FileList implements Constants
     int p;
     if ((p = thisname.lastIndexOf(File.separatorChar)) >= 0)
       {
-        if (thisname.startsWith(lastdir))
+        if (thisname.regionMatches(0, lastdir, 0, p)
+            && lastdir.length() == p)
           {
             file.dirname = lastdir;
           }
@@ -278,7 +255,7 @@ public class FileList implements Constants
     if (options.preserve_uid)
       file.uid = (flags & SAME_UID) != 0 ? last_uid : in.readInt();
     if (options.preserve_gid)
-      file.uid = (flags & SAME_GID) != 0 ? last_gid : in.readInt();
+      file.gid = (flags & SAME_GID) != 0 ? last_gid : in.readInt();
     /* preserve devices XXX */
     if (options.preserve_links && file.S_ISLNK()) {
       int l = in.readInt();
@@ -291,11 +268,8 @@ public class FileList implements Constants
     /* XXX hard links */
 
     if (options.always_checksum) {
-      if (remoteVersion < 21) {
-        in.read(file.sum, 0, 2);
-      } else {
-        in.read(file.sum);
-      }
+      file.sum = new byte[remoteVersion < 21 ? 2 : SUM_LENGTH];
+      in.read(file.sum);
     }
 
     last_mode = file.mode;
@@ -364,15 +338,24 @@ public class FileList implements Constants
       out.writeInt(file.uid);
     if (options.preserve_gid && (flags & SAME_GID) == 0)
       out.writeInt(file.gid);
+    if (options.preserve_links && file.S_ISLNK())
+      {
+        byte[] link = file.link.getBytes("US-ASCII");
+        out.writeInt(link.length);
+        out.write(link);
+      }
 
     if (options.always_checksum)
       {
+        // Only regular files have contents to sum; the rest send zeros.
         if (file.sum == null)
-          file.sum = RsyncUtil.fileChecksum(file.filename());
+          file.sum = file.S_ISREG()
+            ? RsyncUtil.fileChecksum(file.filename()) : new byte[SUM_LENGTH];
+        // The sum is cut to the length the receiver reads.
         if (remoteVersion < 21)
           out.write(file.sum, 0, 2);
         else
-          out.write(file.sum);
+          out.write(file.sum, 0, SUM_LENGTH);
       }
 
     out.flush();
@@ -0,0 +1,356 @@
+/* FileListBuilder -- parallel scanning of local file trees.
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of Jarsync.
+
+Jarsync is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Jarsync is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jarsync; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA  */
+
+package org.metastatic.rsync.v2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Builds the list of local files to send. Each directory is read with
+ * a single {@link DirectoryStream}, all attributes of an entry are
+ * fetched with one call (using the "unix" attribute view where the
+ * platform has it, and {@link PosixFileAttributes} otherwise), and
+ * subdirectories are scanned in parallel on a fork/join pool. The
+ * result is sorted by the bytes of each file name, so the order does
+ * not depend on the order in which the scans finish. Files and
+ * directories that cannot be read are logged and left out, and
+ * {@link #hasIOError()} then returns true, as rsync sets its io_error
+ * flag.
+ *
+ * @version $Revision$
+ */
+public class FileListBuilder implements Constants
+{
+
+  // Constants and fields.
+  // -------------------------------------------------------------------------
+
+  private static final Logger logger = Logger.getLogger(FileListBuilder.class.getName());
+
+  private static final String UNIX_ATTRIBUTES =
+    "unix:mode,ino,uid,gid,rdev,size,lastModifiedTime,isDirectory,isSymbolicLink";
+
+  /**
+   * The sort order of the file list: unsigned bytes of the name, as
+   * with file_compare in flist.c.
+   */
+  private static final Comparator<Named> FILE_ORDER = new Comparator<Named>()
+  {
+    public int compare(Named a, Named b)
+    {
+      int n = Math.min(a.name.length, b.name.length);
+      for (int i = 0; i < n; i++)
+        {
+          int c = (a.name[i] & 0xFF) - (b.name[i] & 0xFF);
+          if (c != 0)
+            return c;
+        }
+      return a.name.length - b.name.length;
+    }
+  };
+
+  private static final String ENCODING = "UTF-8";
+
+  private final Options options;
+  private final ForkJoinPool pool;
+  private final Glob exclude;
+  private final boolean unixView;
+  private final boolean posixView;
+  private final LinkOption[] linkOptions;
+  private volatile boolean ioError;
+
+  // Constructors.
+  // -------------------------------------------------------------------------
+
+  public FileListBuilder(Options options)
+  {
+    this(options, ForkJoinPool.commonPool());
+  }
+
+  public FileListBuilder(Options options, ForkJoinPool pool)
+  {
+    this.options = options;
+    this.pool = pool;
+    exclude = new Glob(options.exclude, false, System.getProperty("user.dir"));
+    Set<String> views = Paths.get("").getFileSystem().supportedFileAttributeViews();
+    unixView = views.contains("unix");
+    posixView = views.contains("posix");
+    if (options.preserve_links && !options.copy_links)
+      linkOptions = new LinkOption[] { LinkOption.NOFOLLOW_LINKS };
+    else
+      linkOptions = new LinkOption[0];
+  }
+
+  // Instance methods.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Scan the given paths (descending into directories if recursion is
+   * enabled) and return the sorted list of files found. Paths that
+   * cannot be read are logged and skipped.
+   *
+   * @param argv The argument vector.
+   * @param off  The index of the first path in <i>argv</i>.
+   * @param len  The number of paths.
+   * @return The file list, as {@link FileInfo} objects.
+   */
+  public List createFileList(String[] argv, int off, int len)
+  {
+    List<FileInfo> files = new ArrayList<FileInfo>();
+    List<Scan> scans = new ArrayList<Scan>();
+    for (int i = 0; i < len; i++)
+      {
+        Path p = Paths.get(argv[i+off]);
+        if (!Files.exists(p, linkOptions))
+          {
+            logger.warn(argv[i+off] + ": no such file or directory");
+            ioError = true;
+            continue;
+          }
+        FileInfo f = readInfo(p);
+        if (f == null)
+          continue;
+        if (!f.S_ISDIR())
+          files.add(f);
+        else if (options.recurse)
+          scans.add(new Scan(p));
+      }
+
+    for (Scan s : scans)
+      pool.execute(s);
+    for (Scan s : scans)
+      files.addAll(s.join());
+
+    List<Named> named = new ArrayList<Named>(files.size());
+    for (FileInfo f : files)
+      named.add(new Named(f));
+    Collections.sort(named, FILE_ORDER);
+    CompactFileList flist = new CompactFileList(Math.max(files.size(), 1));
+    for (Named n : named)
+      flist.add(n.file);
+    return flist;
+  }
+
+  /**
+   * Returns true if any file or directory could not be read by the
+   * scans so far.
+   */
+  public boolean hasIOError()
+  {
+    return ioError;
+  }
+
+  // Own methods.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Read all attributes of <i>path</i> at once, or log the failure and
+   * return null if they cannot be read.
+   */
+  FileInfo readInfo(Path path)
+  {
+    try
+      {
+        return readAttributes(path);
+      }
+    catch (IOException ioe)
+      {
+        logger.warn(path + ": " + ioe);
+        ioError = true;
+        return null;
+      }
+  }
+
+  private FileInfo readAttributes(Path path) throws IOException
+  {
+    FileInfo file = new FileInfo();
+    Path parent = path.getParent();
+    file.dirname = parent != null ? parent.toString() : null;
+    file.basename = path.getFileName() != null ? path.getFileName().toString()
+      : path.toString();
+    if (unixView)
+      {
+        Map<String,Object> attr = Files.readAttributes(path, UNIX_ATTRIBUTES,
+                                                       linkOptions);
+        file.mode = ((Integer) attr.get("mode")).intValue();
+        file.inode = (int) ((Long) attr.get("ino")).longValue();
+        file.uid = ((Integer) attr.get("uid")).intValue();
+        file.gid = ((Integer) attr.get("gid")).intValue();
+        file.rdev = (int) ((Long) attr.get("rdev")).longValue();
+        file.length = ((Long) attr.get("size")).longValue();
+        file.modtime = seconds((FileTime) attr.get("lastModifiedTime"));
+      }
+    else if (posixView)
+      {
+        PosixFileAttributes attr =
+          Files.readAttributes(path, PosixFileAttributes.class, linkOptions);
+        file.mode = typeBits(attr) | permissionBits(attr.permissions());
+        file.length = attr.size();
+        file.modtime = seconds(attr.lastModifiedTime());
+      }
+    else
+      {
+        BasicFileAttributes attr =
+          Files.readAttributes(path, BasicFileAttributes.class, linkOptions);
+        file.mode = typeBits(attr) | 0444;
+        if (Files.isWritable(path))
+          file.mode |= 0222;
+        file.length = attr.size();
+        file.modtime = seconds(attr.lastModifiedTime());
+      }
+    if (file.S_ISLNK())
+      file.link = Files.readSymbolicLink(path).toString();
+    return file;
+  }
+
+  private static int seconds(FileTime t)
+  {
+    return (int) (t.toMillis() / 1000L);
+  }
+
+  private static int typeBits(BasicFileAttributes attr)
+  {
+    if (attr.isSymbolicLink())
+      return _S_IFLNK;
+    if (attr.isDirectory())
+      return _S_IFDIR;
+    return _S_IFREG;
+  }
+
+  private static int permissionBits(Set<PosixFilePermission> perms)
+  {
+    int mode = 0;
+    for (PosixFilePermission p : perms)
+      mode |= 0400 >>> p.ordinal();
+    return mode;
+  }
+
+  // Inner classes.
+  // -------------------------------------------------------------------------
+
+  /**
+   * A file with its name as sent, encoded once for sorting.
+   */
+  private static class Named
+  {
+    final FileInfo file;
+    final byte[] name;
+
+    Named(FileInfo file)
+    {
+      this.file = file;
+      String s = file.filename().replace(File.separatorChar, '/');
+      byte[] b;
+      try
+        {
+          b = s.getBytes(ENCODING);
+        }
+      catch (UnsupportedEncodingException shouldNotHappen)
+        {
+          b = s.getBytes();
+        }
+      name = b;
+    }
+  }
+
+  /**
+   * Scans one directory, forking a new task for each subdirectory.
+   */
+  private class Scan extends RecursiveTask<List<FileInfo>>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final Path dir;
+
+    Scan(Path dir)
+    {
+      this.dir = dir;
+    }
+
+    protected List<FileInfo> compute()
+    {
+      List<FileInfo> files = new ArrayList<FileInfo>();
+      List<Scan> subdirs = new ArrayList<Scan>();
+      File parent = dir.toFile();
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir))
+        {
+          for (Path p : entries)
+            {
+              if (!exclude.accept(parent, p.getFileName().toString()))
+                continue;
+              FileInfo f = readInfo(p);
+              if (f == null)
+                continue;
+              if (f.S_ISDIR())
+                {
+                  Scan s = new Scan(p);
+                  s.fork();
+                  subdirs.add(s);
+                }
+              else
+                files.add(f);
+            }
+        }
+      catch (IOException ioe)
+        {
+          // Keep what was read before the error, as rsync does.
+          logger.warn(dir + ": " + ioe);
+          ioError = true;
+        }
+      catch (DirectoryIteratorException die)
+        {
+          logger.warn(dir + ": " + die.getCause());
+          ioError = true;
+        }
+      for (Scan s : subdirs)
+        files.addAll(s.join());
+      return files;
+    }
+  }
+}
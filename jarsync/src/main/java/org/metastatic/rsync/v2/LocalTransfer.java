@@ -0,0 +1,679 @@
+/* LocalTransfer -- synchronizing files within one machine.
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of Jarsync.
+
+Jarsync is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Jarsync is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jarsync; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA  */
+
+package org.metastatic.rsync.v2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import org.metastatic.rsync.ChecksumPair;
+import org.metastatic.rsync.Configuration;
+import org.metastatic.rsync.Delta;
+import org.metastatic.rsync.GeneratorEvent;
+import org.metastatic.rsync.GeneratorListener;
+import org.metastatic.rsync.GeneratorStream;
+import org.metastatic.rsync.ListenerException;
+import org.metastatic.rsync.MatcherEvent;
+import org.metastatic.rsync.MatcherListener;
+import org.metastatic.rsync.MatcherStream;
+import org.metastatic.rsync.Offsets;
+import org.metastatic.rsync.RebuilderEvent;
+import org.metastatic.rsync.RebuilderListener;
+import org.metastatic.rsync.RebuilderStream;
+
+/**
+ * A transfer from one local directory to another, with the generator,
+ * sender and receiver as three threads of one process. Rather than
+ * encoding sums and deltas onto multiplexed streams and decoding them
+ * again, the threads hand each other {@link ChecksumPair} lists and
+ * {@link Delta} objects through bounded queues, so the three stages run
+ * at once on different files.
+ *
+ * <p>Files whose old version is missing, and (unless
+ * <code>--no-whole-file</code> is given) files whose old version is on
+ * the same file store as the new one, are not worth the delta algorithm:
+ * reading both versions costs about as much as copying. Those are copied
+ * whole with {@link FileChannel#transferTo}, which leaves the copying to
+ * the operating system.
+ *
+ * @version $Revision$
+ */
+public class LocalTransfer implements Constants
+{
+
+  // Constants and fields.
+  // -------------------------------------------------------------------------
+
+  private static final Logger logger = Logger.getLogger(LocalTransfer.class.getName());
+
+  /** How many files may have their sums waiting for the sender. */
+  private static final int SUM_QUEUE_SIZE = 4;
+
+  /** How many deltas may be waiting for the receiver. */
+  private static final int DELTA_QUEUE_SIZE = 1024;
+
+  /** Ends the queue of files. */
+  private static final Job NO_MORE_FILES = new Job(null, null, null);
+
+  /** Ends the deltas of one file. */
+  private static final Object END_OF_FILE = new Object();
+
+  /** Ends the deltas of a file whose new version could not be read. */
+  private static final Object FILE_FAILED = new Object();
+
+  private final Options options;
+  private final Configuration config;
+  private final Statistics stats;
+  private final BlockingQueue<Job> sumQueue;
+  private final BlockingQueue<Object> deltaQueue;
+  private volatile Throwable failure;
+
+  /** How many files failed; one failure does not stop the others. */
+  private final AtomicInteger failedFiles = new AtomicInteger();
+
+  /** The write buffer, shared by whole-file copies and rebuilds. */
+  private ByteBuffer writeBuffer;
+
+  // Constructor.
+  // -------------------------------------------------------------------------
+
+  public LocalTransfer(Options options, Configuration config, Statistics stats)
+  {
+    this.options = options;
+    this.config = config;
+    this.stats = stats;
+    sumQueue = new ArrayBlockingQueue<Job>(SUM_QUEUE_SIZE);
+    deltaQueue = new ArrayBlockingQueue<Object>(DELTA_QUEUE_SIZE);
+  }
+
+  // Instance methods.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Copy the sources named in <i>argv</i> to the destination named by
+   * its last argument, as the sender and receiver would over a
+   * connection.
+   *
+   * @param argv   The arguments.
+   * @param optind The index of the first source.
+   * @return Zero on success, nonzero on failure.
+   */
+  public int run(String[] argv, int optind)
+  {
+    File dest = new File(argv[argv.length - 1]);
+    List<Job> jobs = new ArrayList<Job>();
+    FileListBuilder builder = new FileListBuilder(options);
+    int nsources = argv.length - 1 - optind;
+    // As rsync does, a lone source that is not a directory is copied
+    // to the destination's own name, even when recursing.
+    boolean intoDir = dest.isDirectory() || nsources > 1
+      || (nsources == 1 && new File(argv[optind]).isDirectory());
+    for (int i = optind; i < argv.length - 1; i++)
+      {
+        Path base = basePath(argv[i]);
+        List files = builder.createFileList(argv, i, 1);
+        for (int j = 0; j < files.size(); j++)
+          {
+            FileInfo f = (FileInfo) files.get(j);
+            File source = new File(f.filename());
+            File target = intoDir
+              ? new File(dest, relativeName(base, source)) : dest;
+            jobs.add(new Job(f, source, target));
+          }
+      }
+    stats.num_files = jobs.size();
+
+    List<Job> deltas = new ArrayList<Job>();
+    int errors = builder.hasIOError() ? 1 : 0;
+    for (Job job : jobs)
+      {
+        try
+          {
+            stats.total_size += job.info.length;
+            if (!prepare(job))
+              continue;
+            logger.info(job.info.filename());
+            stats.num_transferred_files++;
+            stats.total_transferred_size += job.info.length;
+            if (wholeFile(job))
+              copyWholeFile(job);
+            else
+              deltas.add(job);
+          }
+        catch (IOException ioe)
+          {
+            fileFailed(job, ioe);
+          }
+      }
+    if (!deltas.isEmpty())
+      {
+        try
+          {
+            transferDeltas(deltas);
+          }
+        catch (IOException ioe)
+          {
+            logger.error(ioe.getMessage());
+            errors++;
+          }
+      }
+    return errors > 0 || failedFiles.get() > 0 ? 1 : 0;
+  }
+
+  // Own methods.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Return the directory that source names are taken relative to:
+   * with a trailing slash, a directory's contents are copied, and
+   * otherwise the directory itself.
+   */
+  private static Path basePath(String arg)
+  {
+    Path p = Paths.get(arg).toAbsolutePath().normalize();
+    if (arg.endsWith("/") || arg.endsWith(File.separator))
+      return p;
+    Path parent = p.getParent();
+    return parent != null ? parent : p;
+  }
+
+  private static String relativeName(Path base, File source)
+  {
+    Path p = source.toPath().toAbsolutePath().normalize();
+    if (p.startsWith(base) && !p.equals(base))
+      return base.relativize(p).toString();
+    return source.getName();
+  }
+
+  /**
+   * Handle everything about a file short of its contents: skip it if it
+   * is up to date, make its directory, and make links.
+   *
+   * @return True if the contents must be transferred.
+   */
+  private boolean prepare(Job job) throws IOException
+  {
+    if (job.info.S_ISLNK())
+      {
+        if (!options.preserve_links || options.dry_run)
+          return false;
+        Path link = job.target.toPath();
+        if (Files.isSymbolicLink(link)
+            && Files.readSymbolicLink(link).toString().equals(job.info.link))
+          return false;
+        Files.createDirectories(link.toAbsolutePath().getParent());
+        Files.deleteIfExists(link);
+        Files.createSymbolicLink(link, Paths.get(job.info.link));
+        return false;
+      }
+    if (!job.info.S_ISREG())
+      {
+        logger.info("skipping non-regular file " + job.info.filename());
+        return false;
+      }
+    if (options.always_checksum && job.info.sum == null
+        && job.target.isFile() && job.target.length() == job.info.length)
+      {
+        // Only the network sender fills in sums, so make the source's
+        // here; it is only needed when the lengths agree.
+        job.info.sum = RsyncUtil.fileChecksum(job.source);
+      }
+    if (RsyncUtil.skipFile(job.target, job.info, options))
+      {
+        logger.debug(job.info.filename() + " is uptodate");
+        return false;
+      }
+    if (options.dry_run)
+      {
+        logger.info(job.info.filename());
+        return false;
+      }
+    Files.createDirectories(job.target.getAbsoluteFile().getParentFile().toPath());
+    return true;
+  }
+
+  /**
+   * Tell if a file is better copied whole than by deltas.
+   */
+  private boolean wholeFile(Job job) throws IOException
+  {
+    if (options.whole_file && !options.no_whole_file)
+      return true;
+    if (!job.target.isFile() || job.target.length() == 0)
+      return true;
+    if (options.no_whole_file)
+      return false;
+    FileStore from = Files.getFileStore(job.source.toPath());
+    FileStore to = Files.getFileStore(job.target.getAbsoluteFile().toPath());
+    return from.equals(to);
+  }
+
+  private void copyWholeFile(Job job) throws IOException
+  {
+    TargetWriter w = new TargetWriter(job.target, job.info.length,
+                                      options.sparse_files, writeBuffer());
+    FileInputStream in = new FileInputStream(job.source);
+    try
+      {
+        FileChannel src = in.getChannel();
+        long len = src.size();
+        if (options.sparse_files)
+          {
+            byte[] buf = new byte[CHUNK_SIZE];
+            long off = 0;
+            int n;
+            while ((n = in.read(buf)) > 0)
+              {
+                w.write(off, buf, 0, n);
+                off += n;
+              }
+          }
+        else
+          w.transferFrom(src, len);
+        stats.literal_data += len;
+      }
+    catch (IOException ioe)
+      {
+        w.abort();
+        throw ioe;
+      }
+    finally
+      {
+        in.close();
+      }
+    finish(job, w);
+  }
+
+  /**
+   * Run the generator and sender threads over <i>jobs</i>, and rebuild
+   * files from their deltas in this thread.
+   */
+  private void transferDeltas(final List<Job> jobs) throws IOException
+  {
+    Thread generator = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          try
+            {
+              for (Job job : jobs)
+                {
+                  try
+                    {
+                      generateSums(job);
+                    }
+                  catch (IOException ioe)
+                    {
+                      fileFailed(job, ioe);
+                      continue;
+                    }
+                  sumQueue.put(job);
+                }
+              sumQueue.put(NO_MORE_FILES);
+            }
+          catch (Throwable t)
+            {
+              failure = t;
+              sumQueue.clear();
+              sumQueue.offer(NO_MORE_FILES);
+            }
+        }
+      }, "generator");
+    Thread sender = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          try
+            {
+              Job job;
+              while ((job = sumQueue.take()) != NO_MORE_FILES)
+                {
+                  deltaQueue.put(job);
+                  Object end = END_OF_FILE;
+                  try
+                    {
+                      matchFile(job);
+                    }
+                  catch (InterruptedIOException iioe)
+                    {
+                      throw iioe;
+                    }
+                  catch (IOException ioe)
+                    {
+                      fileFailed(job, ioe);
+                      end = FILE_FAILED;
+                    }
+                  deltaQueue.put(end);
+                }
+              deltaQueue.put(NO_MORE_FILES);
+            }
+          catch (Throwable t)
+            {
+              failure = t;
+              deltaQueue.clear();
+              deltaQueue.offer(NO_MORE_FILES);
+            }
+        }
+      }, "sender");
+    generator.setDaemon(true);
+    sender.setDaemon(true);
+    generator.start();
+    sender.start();
+    try
+      {
+        rebuildFiles();
+      }
+    finally
+      {
+        generator.interrupt();
+        sender.interrupt();
+      }
+    if (failure instanceof IOException)
+      throw (IOException) failure;
+    if (failure != null)
+      throw new IOException(failure.toString());
+  }
+
+  /**
+   * Generate the sums of a file's old version. The old version is
+   * local, so the full strong sum costs nothing to send.
+   */
+  private void generateSums(final Job job) throws IOException
+  {
+    Configuration c = (Configuration) config.clone();
+    c.strongSumLength = SUM_LENGTH;
+    c.blockLength = RsyncUtil.adaptBlockSize(job.target, config.blockLength);
+    job.blockLength = c.blockLength;
+    job.sums = new ArrayList<ChecksumPair>((int) (job.target.length()
+                                                  / c.blockLength + 1));
+    GeneratorStream gen = new GeneratorStream(c);
+    gen.addListener(new GeneratorListener()
+      {
+        public void update(GeneratorEvent e)
+        {
+          job.sums.add(e.getChecksumPair());
+        }
+      });
+    FileInputStream in = new FileInputStream(job.target);
+    try
+      {
+        byte[] buf = new byte[CHUNK_SIZE];
+        int n;
+        while ((n = in.read(buf)) > 0)
+          gen.update(buf, 0, n);
+        gen.doFinal();
+      }
+    catch (ListenerException le)
+      {
+        throw new IOException(le.getMessage());
+      }
+    finally
+      {
+        in.close();
+      }
+  }
+
+  /**
+   * Match a file's new version against the sums of its old one, and
+   * queue the deltas for the receiver.
+   */
+  private void matchFile(Job job) throws IOException
+  {
+    Configuration c = (Configuration) config.clone();
+    c.strongSumLength = SUM_LENGTH;
+    c.blockLength = job.blockLength;
+    MatcherStream match = new MatcherStream(c);
+    match.setChecksums(job.sums);
+    job.sums = null;
+    match.addListener(new MatcherListener()
+      {
+        public void update(MatcherEvent e) throws ListenerException
+        {
+          try
+            {
+              deltaQueue.put(e.getDelta());
+            }
+          catch (InterruptedException ie)
+            {
+              throw new ListenerException(new InterruptedIOException());
+            }
+        }
+      });
+    FileInputStream in = new FileInputStream(job.source);
+    try
+      {
+        byte[] buf = new byte[CHUNK_SIZE];
+        int n;
+        while ((n = in.read(buf)) > 0)
+          match.update(buf, 0, n);
+        match.doFinal();
+      }
+    catch (ListenerException le)
+      {
+        Throwable cause = le.getCause();
+        throw cause instanceof IOException ? (IOException) cause
+          : new IOException(le.getMessage());
+      }
+    finally
+      {
+        in.close();
+      }
+  }
+
+  /**
+   * Take deltas from the queue and apply them, until the sender says
+   * there are no more files. A file that cannot be written is dropped,
+   * and its remaining deltas skipped.
+   */
+  private void rebuildFiles() throws IOException
+  {
+    RebuilderStream rebuilder = null;
+    TargetWriter writer = null;
+    Job job = null;
+    try
+      {
+        while (true)
+          {
+            Object o = deltaQueue.take();
+            if (o == NO_MORE_FILES)
+              break;
+            try
+              {
+                if (o instanceof Job)
+                  {
+                    job = (Job) o;
+                    writer = new TargetWriter(job.target, job.info.length,
+                                              options.sparse_files,
+                                              writeBuffer());
+                    rebuilder = new RebuilderStream();
+                    rebuilder.addListener(new Writer(writer));
+                    rebuilder.setBasisFile(job.target);
+                  }
+                else if (writer == null)
+                  continue;
+                else if (o == END_OF_FILE)
+                  {
+                    rebuilder.doFinal();
+                    finish(job, writer);
+                    writer = null;
+                  }
+                else if (o == FILE_FAILED)
+                  {
+                    rebuilder.doFinal();
+                    writer.abort();
+                    writer = null;
+                  }
+                else
+                  {
+                    Delta d = (Delta) o;
+                    if (d instanceof Offsets)
+                      stats.matched_data += d.getBlockLength();
+                    else
+                      stats.literal_data += d.getBlockLength();
+                    rebuilder.update(d);
+                  }
+              }
+            catch (IOException ioe)
+              {
+                dropFile(job, rebuilder, writer, ioe);
+                writer = null;
+              }
+            catch (ListenerException le)
+              {
+                Throwable cause = le.getCause();
+                dropFile(job, rebuilder, writer,
+                         cause instanceof IOException ? (IOException) cause
+                         : new IOException(le.getMessage()));
+                writer = null;
+              }
+          }
+      }
+    catch (InterruptedException ie)
+      {
+        throw new InterruptedIOException("interrupted while rebuilding");
+      }
+    finally
+      {
+        if (writer != null)
+          {
+            if (rebuilder != null)
+              rebuilder.doFinal();
+            writer.abort();
+          }
+      }
+  }
+
+  /**
+   * Give up on the file being rebuilt, leaving its target as it was.
+   */
+  private void dropFile(Job job, RebuilderStream rebuilder,
+                        TargetWriter writer, IOException ioe)
+  {
+    if (writer != null)
+      {
+        try
+          {
+            rebuilder.doFinal();
+          }
+        catch (IOException ignore)
+          {
+          }
+        writer.abort();
+      }
+    fileFailed(job, ioe);
+  }
+
+  /**
+   * Log a file that could not be transferred, and go on to the next,
+   * as rsync does.
+   */
+  private void fileFailed(Job job, IOException ioe)
+  {
+    logger.error(job.target + ": " + ioe.getMessage());
+    failedFiles.incrementAndGet();
+  }
+
+  /**
+   * Put a finished file in place, and give it the sender's time.
+   */
+  private void finish(Job job, TargetWriter w) throws IOException
+  {
+    w.commit();
+    if (options.preserve_times)
+      job.target.setLastModified(job.info.modtime * 1000L);
+  }
+
+  private ByteBuffer writeBuffer()
+  {
+    if (writeBuffer == null)
+      writeBuffer = ByteBuffer.allocateDirect(TargetWriter.BUFFER_SIZE);
+    return writeBuffer;
+  }
+
+  // Inner classes.
+  // -------------------------------------------------------------------------
+
+  /**
+   * One file to transfer, and what the generator learned about it.
+   */
+  private static class Job
+  {
+    final FileInfo info;
+    final File source;
+    final File target;
+    int blockLength;
+    List<ChecksumPair> sums;
+
+    Job(FileInfo info, File source, File target)
+    {
+      this.info = info;
+      this.source = source;
+      this.target = target;
+    }
+  }
+
+  /**
+   * Writes rebuilt data to a target.
+   */
+  private static class Writer implements RebuilderListener
+  {
+    private final TargetWriter target;
+
+    Writer(TargetWriter target)
+    {
+      this.target = target;
+    }
+
+    public void update(RebuilderEvent e) throws ListenerException
+    {
+      try
+        {
+          byte[] data = e.getData();
+          target.write(e.getOffset(), data, 0, data.length);
+        }
+      catch (IOException ioe)
+        {
+          throw new ListenerException(ioe);
+        }
+    }
+  }
+}
@@ -60,6 +60,9 @@ public class Module implements Comparable {
    public int totalConnections = 0;
    public int maxConnections = 0;
    public int connections = 0;
+   public int bwlimit = 0;
+
+   private RateLimiter limiter;
 
    // Contstructor.
    // -----------------------------------------------------------------------
@@ -103,6 +106,21 @@ public class Module implements Comparable {
       return true;
    }
 
+   /**
+    * Return the limiter shared by all connections to this module, or
+    * <i>global</i> if this module has no limit of its own.
+    *
+    * @param global The server-wide limiter, or null.
+    * @return The limiter to use for this module, or null.
+    */
+   public synchronized RateLimiter getRateLimiter(RateLimiter global) {
+      if (bwlimit <= 0)
+         return global;
+      if (limiter == null)
+         limiter = RateLimiter.forKBps(bwlimit, global);
+      return limiter;
+   }
+
    public int compareTo(Object o) {
       return name.compareTo(((Module) o).name);
    }
@@ -28,6 +28,7 @@ package org.metastatic.rsync.v2;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import org.apache.log4j.Logger;
 
@@ -59,6 +60,9 @@ public class MultiplexedInputStream extends InputStream
 
   protected Statistics stats;
 
+  /** Where to copy everything read, or null. */
+  protected OutputStream recorder;
+
   // Constructors.
   // -----------------------------------------------------------------------
 
@@ -92,6 +96,18 @@ public class MultiplexedInputStream extends InputStream
     this.multiplex = multiplex;
   }
 
+  /**
+   * Copy all data read from now on, after demultiplexing, to
+   * <i>recorder</i>; or stop copying if it is null. This is how batch
+   * files are written.
+   *
+   * @param recorder The stream to copy to.
+   */
+  public void setRecorder(OutputStream recorder)
+  {
+    this.recorder = recorder;
+  }
+
   public int read() throws IOException
   {
     byte[] b = new byte[1];
@@ -126,6 +142,8 @@ public class MultiplexedInputStream extends InputStream
       }
     //logger.debug("read " + total + " bytes");
     stats.total_read += total;
+    if (recorder != null)
+      recorder.write(buf, off, total);
     return total;
   }
 
@@ -26,9 +26,14 @@ along with Jarsync; see the file COPYING.  If not, write to the
 
 package org.metastatic.rsync.v2;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
 import org.apache.log4j.Logger;
 
 import org.metastatic.rsync.*;
@@ -60,6 +65,12 @@ public class MultiplexedOutputStream extends OutputStream
   /** Whether or not to actually multiplex. */
   private boolean multiplex;
 
+  /** The channel beneath the output stream, if there is one. */
+  private WritableByteChannel channel;
+
+  /** The bandwidth limit, if any. */
+  private RateLimiter limiter;
+
   protected Statistics stats;
 
   // Constructors.
@@ -82,6 +93,29 @@ public class MultiplexedOutputStream extends OutputStream
     this.out = out;
   }
 
+  /**
+   * Set the channel that the underlying output stream writes to. When
+   * we are not multiplexing, {@link #transferFrom} will write file
+   * data directly to this channel.
+   *
+   * @param channel The channel, or null.
+   */
+  public void setChannel(WritableByteChannel channel)
+  {
+    this.channel = channel;
+  }
+
+  /**
+   * Limit the rate at which bytes are written to the underlying
+   * stream. Writers block as needed.
+   *
+   * @param limiter The limiter, or null for no limit.
+   */
+  public void setRateLimiter(RateLimiter limiter)
+  {
+    this.limiter = limiter;
+  }
+
   public void setStats(Statistics stats)
   {
     if (stats != null) this.stats = stats;
@@ -180,12 +214,64 @@ public class MultiplexedOutputStream extends OutputStream
         // We automatically flush the output if we are not multiplexing
         // (we must explicitly flush multiplexed output because the tag
         // bytes would clutter the stream if we did it automatically).
+        if (limiter != null)
+          limiter.acquire(len);
         out.write(buf, off, len);
         //        out.flush();
         stats.total_written += len;
       }
   }
 
+  /**
+   * Copy a region of a file to the stream. If this stream is not
+   * multiplexed and has a channel, the bytes are handed to the kernel
+   * with {@link FileChannel#transferTo}; otherwise they are read into a
+   * buffer and written as usual.
+   *
+   * @param file     The file to read from.
+   * @param position The offset in the file to start at.
+   * @param count    The number of bytes to copy.
+   * @throws IOException If an I/O error occurs, or the file is shorter
+   *   than expected.
+   */
+  public void transferFrom(FileChannel file, long position, long count)
+    throws IOException
+  {
+    if (!multiplex && channel != null)
+      {
+        flush();
+        while (count > 0)
+          {
+            long want = count;
+            if (limiter != null)
+              {
+                want = Math.min(count, limiter.getBurst());
+                limiter.acquire((int) want);
+              }
+            long n = file.transferTo(position, want, channel);
+            if (n <= 0 && position >= file.size())
+              throw new EOFException("file truncated during transfer");
+            position += n;
+            count -= n;
+            stats.total_written += n;
+          }
+        return;
+      }
+    byte[] buf = new byte[(int) Math.min(count, 65536)];
+    ByteBuffer bb = ByteBuffer.wrap(buf);
+    while (count > 0)
+      {
+        bb.clear();
+        bb.limit((int) Math.min(count, buf.length));
+        int n = file.read(bb, position);
+        if (n < 0)
+          throw new EOFException("file truncated during transfer");
+        write(buf, 0, n);
+        position += n;
+        count -= n;
+      }
+  }
+
   /**
    * Write a single byte to the stream.
    *
@@ -263,6 +349,8 @@ public class MultiplexedOutputStream extends OutputStream
     code[2] = (byte) (len >>> 16 & 0xff);
     code[3] = (byte) (logcode + MPLEX_BASE & 0xff);
 
+    if (limiter != null)
+      limiter.acquire(len + 4);
     out.write(code, 0, 4);
     out.write(buf, off, len);
     //logger.debug("Wrote " + (len+4) + " byte packet:");
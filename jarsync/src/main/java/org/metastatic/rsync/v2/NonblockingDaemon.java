@@ -38,9 +38,12 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
+import org.metastatic.rsync.Metrics;
 import org.metastatic.rsync.version;
 
 public class NonblockingDaemon extends Daemon
@@ -49,6 +52,12 @@ public class NonblockingDaemon extends Daemon
   // Constants and fields.
   // -----------------------------------------------------------------------
 
+  /** The least a rate-limited connection may write at once. */
+  private static final int MIN_QUANTUM = 1460;
+
+  /** Keys whose writes are held back by a bandwidth limit. */
+  private final Map throttled = new HashMap();
+
   // Constructors.
   // -----------------------------------------------------------------------
 
@@ -63,6 +72,7 @@ public class NonblockingDaemon extends Daemon
     Selector selector = null;
     ServerSocketChannel server = null;
     SelectionKey acceptKey = null;
+    Metrics.register();
     try
       {
         selector = Selector.open();
@@ -130,12 +140,18 @@ public class NonblockingDaemon extends Daemon
         SocketChannel client;
         try
           {
-            selector.select();
+            long timeout = nextWakeup();
+            if (timeout > 0)
+              selector.select(timeout);
+            else
+              selector.select();
           } catch (IOException ioe)
           {
             logger.warn(ioe.toString());
             continue;
           }
+        long selected = System.nanoTime();
+        wakeThrottled();
         Set keys = selector.selectedKeys();
 
         for (Iterator i = keys.iterator(); i.hasNext();)
@@ -152,9 +168,10 @@ public class NonblockingDaemon extends Daemon
                         SocketChannel c = server.accept();
                         c.configureBlocking(false);
                         InetAddress host = c.socket().getInetAddress();
+                        Protocol p = new Protocol(motd, modules, host);
+                        p.setGlobalRateLimiter(limiter);
                         SelectionKey newKey = c.register(selector,
-                            SelectionKey.OP_READ | SelectionKey.OP_WRITE,
-                            new Protocol(motd, modules, host));
+                            SelectionKey.OP_READ | SelectionKey.OP_WRITE, p);
                         logger.info("connection made by " + host.getHostName()
                             + " (" + host.getHostAddress() + ") on port "
                             + c.socket().getPort());
@@ -180,11 +197,18 @@ public class NonblockingDaemon extends Daemon
                     ByteBuffer in = prot.getInputBuffer();
                     if (key.isWritable())
                       {
-                        prot.updateOutput();
+                        // Don't produce more output while a throttled
+                        // connection still has plenty buffered.
+                        if (out.position() < out.capacity() / 2)
+                          {
+                            prot.updateOutput();
+                            out = prot.getOutputBuffer();
+                          }
                         out.flip();
                         if (out.hasRemaining())
                           {
-                            int len = client.write(out);
+                            int len = write(key, client, out,
+                                prot.getRateLimiter(), selector.keys().size() - 1);
                             stats.total_written += len;
                             if (statsMod != null)
                               statsMod.bytesWritten += len;
@@ -207,6 +231,7 @@ public class NonblockingDaemon extends Daemon
                     if (in.hasRemaining())
                       {
                         prot.updateInput();
+                        out = prot.getOutputBuffer();
                       }
                     if (len == -1)
                       {
@@ -287,6 +312,87 @@ public class NonblockingDaemon extends Daemon
                   }
               }
           }
+        Metrics.GLOBAL.selectorLatency.recordSince(selected);
+      }
+  }
+
+  // Own methods.
+  // -----------------------------------------------------------------------
+
+  /**
+   * Write as much of <i>out</i> as the bandwidth limit allows. A
+   * connection may take no more than its fair share of the limiter's
+   * bucket in one go, so that concurrent sessions under the same
+   * module or server limit interleave. If nothing may be written now,
+   * the key stops selecting for writes until enough tokens will have
+   * accumulated; the selector thread never sleeps.
+   *
+   * @return The number of bytes written.
+   */
+  private int write(SelectionKey key, SocketChannel client, ByteBuffer out,
+                    RateLimiter limit, int sessions) throws IOException
+  {
+    if (limit == null)
+      return client.write(out);
+    long quantum = Math.max(MIN_QUANTUM, limit.getBurst() / Math.max(1, sessions));
+    int allowed = (int) Math.min(out.remaining(),
+                                 Math.min(quantum, limit.available()));
+    if (allowed <= 0)
+      {
+        long delay = limit.delay(Math.min(out.remaining(), quantum));
+        if (delay > 0)
+          {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            throttled.put(key, Long.valueOf(System.nanoTime() + delay));
+          }
+        return 0;
+      }
+    int oldLimit = out.limit();
+    out.limit(out.position() + allowed);
+    int len;
+    try
+      {
+        len = client.write(out);
+      }
+    finally
+      {
+        out.limit(oldLimit);
+      }
+    limit.consume(len);
+    return len;
+  }
+
+  /**
+   * Return the number of milliseconds until the next throttled
+   * connection may write again, or 0 if none are throttled.
+   */
+  private long nextWakeup()
+  {
+    if (throttled.isEmpty())
+      return 0;
+    long next = Long.MAX_VALUE;
+    for (Iterator i = throttled.values().iterator(); i.hasNext(); )
+      next = Math.min(next, ((Long) i.next()).longValue());
+    return Math.max(1, (next - System.nanoTime() + 999999) / 1000000);
+  }
+
+  /**
+   * Resume writing on throttled connections whose time has come.
+   */
+  private void wakeThrottled()
+  {
+    long now = System.nanoTime();
+    for (Iterator i = throttled.entrySet().iterator(); i.hasNext(); )
+      {
+        Map.Entry e = (Map.Entry) i.next();
+        SelectionKey key = (SelectionKey) e.getKey();
+        if (!key.isValid())
+          i.remove();
+        else if (((Long) e.getValue()).longValue() <= now)
+          {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            i.remove();
+          }
       }
   }
 }
@@ -421,7 +421,7 @@ final class NonblockingFileList implements NonblockingTool, Constants {
          if (remoteVersion < 21)
             outBuffer.put(file.sum, 0, 2);
          else
-            outBuffer.put(file.sum);
+            outBuffer.put(file.sum, 0, SUM_LENGTH);
       }
 
       if (f.isDirectory() && options.recurse)
@@ -26,17 +26,19 @@ along with Jarsync; see the file COPYING.  If not, write to the
 package org.metastatic.rsync.v2;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
+import org.metastatic.HASH_ALGORITHM;
 import org.metastatic.rsync.ChecksumPair;
 import org.metastatic.rsync.Configuration;
 import org.metastatic.rsync.DataBlock;
@@ -44,10 +46,10 @@ import org.metastatic.rsync.GeneratorEvent;
 import org.metastatic.rsync.GeneratorListener;
 import org.metastatic.rsync.GeneratorStream;
 import org.metastatic.rsync.ListenerException;
-import org.metastatic.rsync.MappedRebuilderStream;
 import org.metastatic.rsync.Offsets;
 import org.metastatic.rsync.RebuilderEvent;
 import org.metastatic.rsync.RebuilderListener;
+import org.metastatic.rsync.RebuilderStream;
 
 final class NonblockingReceiver implements NonblockingTool, Constants,
 	GeneratorListener, RebuilderListener {
@@ -55,8 +57,15 @@ final class NonblockingReceiver implements NonblockingTool, Constants,
 	// Constants and fields.
 	// -------------------------------------------------------------------------
 
-	private static final int MAP_LIMIT = 32768;
-	private static final int MAP_SIZE = 1048576;
+	/** How much of the basis file is summed at a time. */
+	private static final int GEN_READ_SIZE = 32768;
+
+	/**
+	 * The most encoded sums held between the generator and the output
+	 * buffer. When it is full the basis is not read any further until
+	 * the socket takes some output.
+	 */
+	private static final int SIG_RING_SIZE = 65536;
 
 	private final Configuration config;
 	private final Options options;
@@ -76,23 +85,26 @@ final class NonblockingReceiver implements NonblockingTool, Constants,
 
 	// Generator process's data.
 	private FileInfo genFile;
-	private File sigFile;
-	private FileInputStream sigIn;
-	private byte[] genBuffer;
+	private Basis genBasis;
+	private long genPos;
+	private ByteBuffer genBuffer;
+	private final ByteBuffer sigRing = ByteBuffer.allocate(SIG_RING_SIZE);
 
 	// Receiver process's data.
 	private FileInfo recvFile;
-	private File basisFile;
-	private RandomAccessFile basisIn;
-	private File targetFile;
-	private File tempfile;
-	private RandomAccessFile targetOut;
-	private MappedByteBuffer targetMap;
+	private Basis recvBasis;
+	private int recvBlockLength;
+	private TargetWriter target;
+	private ByteBuffer writeBuffer;
+	private final List<TargetWriter> received = new ArrayList<TargetWriter>();
 	private long recvOffset = 0L;
+	private int residue;
+	private boolean recvSum;
+	private MessageDigest fileSum;
 	private final byte[] recvBuffer = new byte[8192];
 
 	private final GeneratorStream generator;
-	private final MappedRebuilderStream rebuilder;
+	private final RebuilderStream rebuilder;
 
 	private DuplexByteBuffer outBuffer;
 	private ByteBuffer inBuffer;
@@ -121,7 +133,18 @@ final class NonblockingReceiver implements NonblockingTool, Constants,
 		state = RECV_SEND_INDEX;
 		generator = new GeneratorStream(config);
 		generator.addListener(this);
-		rebuilder = new MappedRebuilderStream();
+		rebuilder = new RebuilderStream() {
+			protected long basisLength() throws IOException {
+				if (recvBasis == null || recvBasis.isEmpty())
+					throw new IOException("offsets found but no basis file specified");
+				return recvBasis.length();
+			}
+
+			protected int readBasis(long offset, byte[] buf, int off, int len)
+				throws IOException {
+				return recvBasis.read(offset, buf, off, len);
+			}
+		};
 		rebuilder.addListener(this);
 		origBlockLength = config.blockLength;
 	}
@@ -141,6 +164,9 @@ final class NonblockingReceiver implements NonblockingTool, Constants,
 				if (recvIndex == -1) {
 					if (phase > 0) {
 						state = (state & OUTPUT_MASK) | RECV_RECEIVE_DONE;
+						for (TargetWriter w : received)
+							w.commit();
+						received.clear();
 						return false;
 					} // else in-state is still RECV_RECEIVE_INDEX.
 				} else {
@@ -164,6 +190,22 @@ final class NonblockingReceiver implements NonblockingTool, Constants,
 		switch (state & OUTPUT_MASK) {
 			case RECV_SEND_INDEX:
 				if (phase == 0) {
+					while (genIndex < files.size()) {
+						File f = new File(path, files.get(genIndex).filename());
+						if (!files.get(genIndex).S_ISREG()) {
+							genIndex++;
+						} else if (RsyncUtil.skipFile(f, files.get(genIndex), options)) {
+							if (options.verbose > 1)
+								logger.info(files.get(genIndex).filename()
+									+ " is uptodate");
+							genIndex++;
+						} else if (needsFullSums(f)) {
+							// Sent in the second pass, with full-length sums.
+							retries[nRetries++] = genIndex++;
+						} else {
+							break;
+						}
+					}
 					if (genIndex < files.size()) {
 						outBuffer.putInt(genIndex);
 						state = RECV_SEND_SUMS | RECV_RECEIVE_INDEX;
@@ -207,137 +249,206 @@ final class NonblockingReceiver implements NonblockingTool, Constants,
 		ChecksumPair pair = event.getChecksumPair();
 		if (options.verbose > 3)
 			logger.info("updating sum=" + pair);
-		outBuffer.putInt(pair.getWeak());
-		outBuffer.put(pair.getStrong());
+		sigRing.putInt(pair.getWeak());
+		sigRing.put(pair.getStrong());
 	}
 
 	// ReceiverListener interface.
 	// -----------------------------------------------------------------------
 
 	public void update(RebuilderEvent event) throws IOException {
-		long off = event.getOffset();
 		byte[] buf = event.getData();
-		long mapOffset = event.getOffset();
-		if (targetMap != null) {
-			if (mapOffset < off
-				|| mapOffset + buf.length > mapOffset + targetMap.capacity()) {
-				targetMap =
-					targetOut.getChannel().map(FileChannel.MapMode.READ_WRITE,
-						off, MAP_SIZE);
-				mapOffset = off;
-			}
-			targetMap.put(buf, buf.length, (int) (off - mapOffset));
-		} else {
-			targetOut.seek(off);
-			targetOut.write(buf);
-		}
+		target.write(event.getOffset(), buf, 0, buf.length);
+		fileSum.update(buf);
 	}
 
 	// Own methods.
 	// -----------------------------------------------------------------------
 
+	/**
+	 * Tell if short strong sums would make a collision too likely in
+	 * a basis this large.
+	 */
+	private boolean needsFullSums(File f) {
+		if (config.strongSumLength >= SUM_LENGTH
+			|| (options.whole_file && !options.no_whole_file))
+			return false;
+		long length = Basis.expectedLength(f, path, options);
+		if (length == 0)
+			return false;
+		int blength = RsyncUtil.adaptBlockSize(length, origBlockLength);
+		return RsyncUtil.strongSumLength(length, blength,
+			SHORT_SUM_LENGTH, BLOCKSUM_BIAS) > config.strongSumLength;
+	}
+
+	/**
+	 * Send the sums for the basis of the current file. The basis is
+	 * made as the blocking {@link Receiver} makes it, so --compare-dest,
+	 * --fuzzy and partial files work here too. The sums go from the
+	 * generator into {@link #sigRing}, and from there into the output
+	 * buffer only as fast as the socket drains it; the basis is read
+	 * only while the ring has room for what the next read yields.
+	 */
 	private void sendSums() throws IOException, ListenerException {
 		if (genFile == null) {
 			genFile = files.get(genIndex);
-			try {
-				config.blockLength = origBlockLength;
-				sigFile =
-					new File(path, genFile.dirname + File.separator
-						+ genFile.basename);
-				sigIn = new FileInputStream(basisFile);
-				config.blockLength =
-					RsyncUtil.adaptBlockSize(sigFile, config.blockLength);
-				if (genBuffer == null || genBuffer.length != config.blockLength)
-					genBuffer = new byte[Math.min(config.blockLength, 1024)];
-				int count =
-					(int) (sigFile.length() + config.blockLength - 1)
-						/ config.blockLength;
-				int remainder = (int) (basisFile.length() % config.blockLength);
-				if (options.verbose > 3)
-					logger
-						.info("count=" + count + " rem=" + remainder + " n="
-							+ config.blockLength + " flength="
-							+ basisFile.length());
-				outBuffer.putInt(count);
+			if (options.whole_file && !options.no_whole_file) {
+				// Ask for the whole file by sending no sums at all.
+				genFile = null;
+				outBuffer.putInt(0);
 				outBuffer.putInt(config.blockLength);
-				outBuffer.putInt(remainder);
-			} catch (FileNotFoundException ioe) {
+				outBuffer.putInt(0);
+				state = (state & INPUT_MASK) | RECV_SEND_INDEX;
+				return;
+			}
+			File f = new File(path, genFile.filename());
+			config.blockLength = RsyncUtil.adaptBlockSize(
+				Basis.expectedLength(f, path, options), origBlockLength);
+			genBasis = Basis.open(f, config.blockLength, path, options);
+			if (genBasis.isEmpty()) {
+				genBasis = null;
 				genFile = null;
-				sigFile = null;
 				outBuffer.putInt(0);
 				outBuffer.putInt(config.blockLength);
 				outBuffer.putInt(0);
 				state = (state & INPUT_MASK) | RECV_SEND_INDEX;
+				return;
+			}
+			genPos = 0;
+			int count = genBasis.blockCount();
+			int remainder = genBasis.remainder();
+			if (options.verbose > 3)
+				logger.info("count=" + count + " rem=" + remainder + " n="
+					+ config.blockLength + " blength=" + genBasis.length());
+			outBuffer.putInt(count);
+			outBuffer.putInt(config.blockLength);
+			outBuffer.putInt(remainder);
+			if (genBuffer == null) {
+				genBuffer = ByteBuffer.allocate(GEN_READ_SIZE);
+				sigRing.order(ByteOrder.LITTLE_ENDIAN);
 			}
+			sigRing.clear();
+			return;
+		}
+
+		// Drain what the output buffer has room for, frame headers and
+		// all, so that it does not have to grow.
+		sigRing.flip();
+		int room = outBuffer.writable();
+		if (sigRing.remaining() > room) {
+			int limit = sigRing.limit();
+			sigRing.limit(sigRing.position() + room);
+			outBuffer.put(sigRing);
+			sigRing.limit(limit);
 		} else {
-			int len = basisIn.read(genBuffer);
-			if (len == -1) {
-				basisIn.close();
+			outBuffer.put(sigRing);
+		}
+		sigRing.compact();
+
+		if (genBasis == null) {
+			if (sigRing.position() == 0) {
 				genFile = null;
 				state = (state & INPUT_MASK) | RECV_SEND_INDEX;
-				return;
 			}
-			generator.update(genBuffer, 0, len);
+			return;
+		}
+		int sumSize = 4 + config.strongSumLength;
+		int most = (GEN_READ_SIZE / config.blockLength + 2) * sumSize;
+		if (sigRing.remaining() < most)
+			return;
+		int len = genBasis.read(genPos, genBuffer.array(), 0, GEN_READ_SIZE);
+		if (len <= 0) {
+			generator.doFinal();
+			genBasis.close();
+			genBasis = null;
+			return;
 		}
+		genPos += len;
+		generator.update(genBuffer.array(), 0, len);
 	}
 
+	/**
+	 * Read the sender's reply for the current file: the block length it
+	 * matched with, then tokens, each a run of literal bytes, a block of
+	 * the basis, or the end, which is followed by the file's sum.
+	 */
 	private void receiveDeltas() throws IOException, ListenerException {
 		if (recvFile == null) {
+			if (inBuffer.remaining() < 12)
+				throw new BufferUnderflowException();
+			inBuffer.getInt(); // count
+			recvBlockLength = inBuffer.getInt();
+			inBuffer.getInt(); // remainder
 			recvFile = files.get(recvIndex);
-			basisFile = new File(path, recvFile.filename());
-			if (basisFile.exists())
-				rebuilder.setBasisFile(basisFile);
-			else
-				rebuilder.setBasisFile((File) null);
-			tempfile = File.createTempFile("." + recvFile.basename, "", path);
-			targetOut = new RandomAccessFile(tempfile, "rw");
-			targetOut.setLength(recvFile.length);
-			if (recvFile.length > MAP_LIMIT) {
-				targetMap =
-					targetOut.getChannel().map(FileChannel.MapMode.READ_WRITE,
-						0, MAP_SIZE);
-				// ??? commented the next line
-				// mapOffset = 0L;
+			File f = new File(path, recvFile.filename());
+			recvBasis = Basis.open(f, recvBlockLength, path, options);
+			recvOffset = 0L;
+			residue = 0;
+			recvSum = false;
+			if (writeBuffer == null)
+				writeBuffer = ByteBuffer.allocateDirect(TargetWriter.BUFFER_SIZE);
+			try {
+				fileSum = MessageDigest.getInstance(HASH_ALGORITHM.DIGEST_NAME);
+			} catch (NoSuchAlgorithmException nsae) {
+				throw new IOException("could not create message digest");
 			}
+			if (config.checksumSeed != null)
+				fileSum.update(config.checksumSeed);
+			target = new TargetWriter(f, recvFile.length,
+				options.sparse_files, writeBuffer, options.keep_partial);
+		} else if (recvSum) {
+			byte[] sum1 = fileSum.digest();
+			if (inBuffer.remaining() < sum1.length)
+				throw new BufferUnderflowException();
+			byte[] sum2 = new byte[sum1.length];
+			inBuffer.get(sum2);
+			finishFile(Arrays.equals(sum1, sum2));
+		} else if (residue > 0) {
+			if (!inBuffer.hasRemaining())
+				throw new BufferUnderflowException();
+			int len = Math.min(residue,
+				Math.min(inBuffer.remaining(), recvBuffer.length));
+			inBuffer.get(recvBuffer, 0, len);
+			residue -= len;
+			rebuilder.update(new DataBlock(recvOffset, recvBuffer, 0, len));
+			recvOffset += len;
 		} else {
-			// ??? added the next line
-			int residue = 0;
-			
-			if (residue > 0) {
-				int len =
-					Math.min(residue,
-						Math.min(inBuffer.remaining(), recvBuffer.length));
-
+			int tag = inBuffer.getInt();
+			if (tag < 0) {
+				long offset = -(tag + 1) * (long) recvBlockLength;
+				int len = (int) Math.min(recvBlockLength,
+					recvBasis.length() - offset);
+				rebuilder.update(new Offsets(offset, recvOffset, len));
+				recvOffset += len;
+			} else if (tag > 0) {
+				residue = tag;
+			} else if (remoteVersion >= 14) {
+				recvSum = true;
 			} else {
-				int tag = inBuffer.getInt();
-				if (tag < 0) {
-					// ??? added next line
-					int token = 0;
-					long offset = (-token  + 1) * (long) config.blockLength;
-					int len =
-						(int) (basisFile.length() - offset) < config.blockLength
-							? (int) (basisFile.length() - offset)
-							: config.blockLength;
-					rebuilder.update(new Offsets(offset, recvOffset, len));
-					recvOffset += len;
-				} else if (tag > 0) {
-					residue = tag;
-					int len =
-						Math.min(residue,
-							Math.min(inBuffer.remaining(), recvBuffer.length));
-					inBuffer.get(recvBuffer, 0, len);
-					if (len <= residue)
-						residue -= len;
-					else
-						residue = 0;
-					rebuilder.update(new DataBlock(recvOffset, recvBuffer, 0,
-						len));
-					recvOffset += len;
-				} else {
-					targetOut.close();
-					tempfile.renameTo(basisFile);
-				}
+				finishFile(true);
 			}
 		}
 	}
+
+	/**
+	 * Finish the current file, keeping it to be committed with the
+	 * others if its sum matched, and wait for the next index.
+	 */
+	private void finishFile(boolean matched) throws IOException {
+		rebuilder.doFinal();
+		recvBasis.close();
+		recvBasis = null;
+		target.close();
+		if (matched) {
+			received.add(target);
+		} else {
+			target.discard();
+			logger.error("File corruption in " + recvFile.filename()
+				+ "; left unchanged");
+		}
+		target = null;
+		recvFile = null;
+		recvSum = false;
+		state = (state & OUTPUT_MASK) | RECV_RECEIVE_INDEX;
+	}
 }
@@ -45,6 +45,7 @@ import org.metastatic.rsync.ListenerException;
 import org.metastatic.rsync.MatcherEvent;
 import org.metastatic.rsync.MatcherListener;
 import org.metastatic.rsync.MatcherStream;
+import org.metastatic.rsync.Metrics;
 import org.metastatic.rsync.Offsets;
 
 final class NonblockingSender implements NonblockingTool, Constants,
@@ -54,6 +55,12 @@ final class NonblockingSender implements NonblockingTool, Constants,
   // Constants and fields.
   // -------------------------------------------------------------------------
 
+  /**
+   * The largest literal token sent per step in whole-file mode; this
+   * must leave room in the (CHUNK_SIZE) protocol buffer.
+   */
+  private static final int WHOLE_FILE_CHUNK = CHUNK_SIZE / 2;
+
   private final Options options;
   private final Configuration config;
   private final List files;
@@ -73,6 +80,7 @@ final class NonblockingSender implements NonblockingTool, Constants,
   private FileInfo file;
   private FileInputStream fin;
   private final byte[] buf = new byte[4096];
+  private ByteBuffer wholeBuf;
   private Statistics stats;
 
   private DuplexByteBuffer outBuffer;
@@ -258,6 +266,8 @@ final class NonblockingSender implements NonblockingTool, Constants,
             logger.debug("about to match " + fname);
             try
               {
+                if (!file.S_ISREG())
+                  throw new IOException("not a regular file");
                 fin = new FileInputStream(fname);
                 if (count > 0)
                   matcher.setChecksums(sums);
@@ -281,45 +291,72 @@ final class NonblockingSender implements NonblockingTool, Constants,
 
   private void sendDeltas() throws IOException
   {
-    int len = fin.read(buf);
-    if (len == -1)
+    if (count == 0)
       {
-        if (count > 0)
-          {
-            try
-              {
-                matcher.doFinal();
-              }
-            catch (ListenerException le)
-              {
-              }
-          }
-        if (options.verbose > 2)
-          logger.info("sending file_sum");
-        file.sum = file_sum.digest();
-        outBuffer.putInt(0);
-        outBuffer.put(file.sum);
-        outBuffer.flush();
-        fin.close();
-        state = SENDER_RECEIVE_INDEX;
+        sendWholeFile();
         return;
       }
-    stats.total_size += len;
-    file_sum.update(buf, 0, len);
-    if (count > 0)
+    int len = fin.read(buf);
+    if (len == -1)
       {
         try
           {
-            matcher.update(buf, 0, len);
+            matcher.doFinal();
           }
         catch (ListenerException le)
           {
           }
+        finishFile();
+        return;
       }
-    else
+    stats.total_size += len;
+    Metrics.GLOBAL.addPhaseBytes(phase, len);
+    file_sum.update(buf, 0, len);
+    try
+      {
+        matcher.update(buf, 0, len);
+      }
+    catch (ListenerException le)
+      {
+      }
+  }
+
+  /**
+   * Send the next piece of a file that the receiver has no basis for
+   * (or asked for whole), as a single literal token. The data goes
+   * from the file channel through a direct buffer, never through the
+   * matcher.
+   */
+  private void sendWholeFile() throws IOException
+  {
+    if (wholeBuf == null)
+      wholeBuf = ByteBuffer.allocateDirect(WHOLE_FILE_CHUNK);
+    wholeBuf.clear();
+    int len = fin.getChannel().read(wholeBuf);
+    if (len == -1)
       {
-        outBuffer.putInt(len);
-        outBuffer.put(buf, 0, len);
+        finishFile();
+        return;
       }
+    wholeBuf.flip();
+    stats.total_size += len;
+    stats.literal_data += len;
+    Metrics.GLOBAL.addPhaseBytes(phase, len);
+    Metrics.GLOBAL.literalBytes.add(len);
+    file_sum.update(wholeBuf.duplicate());
+    outBuffer.putInt(len);
+    outBuffer.put(wholeBuf);
+  }
+
+  private void finishFile() throws IOException
+  {
+    if (options.verbose > 2)
+      logger.info("sending file_sum");
+    file.sum = file_sum.digest();
+    outBuffer.putInt(0);
+    outBuffer.put(file.sum);
+    outBuffer.flush();
+    fin.close();
+    state = SENDER_RECEIVE_INDEX;
   }
 }
@@ -91,7 +91,7 @@ public class Options {
   public static final int OPT_KEYSTORE = 1042;
   public static final int OPT_KNOWN_HOSTS = 1043;
 
-  public static final String OPTSTRING = "46abce:ghlnopqrtuvxzB:CDHILRST:W";
+  public static final String OPTSTRING = "46abce:ghlnopqrtuvxyzB:CDHILRST:W";
   public static final LongOpt[] LONGOPTS = {
     new LongOpt("verbose", LongOpt.NO_ARGUMENT, null, 'v'),
     new LongOpt("quiet", LongOpt.NO_ARGUMENT, null, 'q'),
@@ -138,6 +138,7 @@ public class Options {
     new LongOpt("modify-window", LongOpt.REQUIRED_ARGUMENT, null, OPT_MODIFY_WINDOW),
     new LongOpt("temp-dir", LongOpt.REQUIRED_ARGUMENT, null, 'T'),
     new LongOpt("compare-dest", LongOpt.REQUIRED_ARGUMENT, null, OPT_COMPARE_DEST),
+    new LongOpt("fuzzy", LongOpt.NO_ARGUMENT, null, 'y'),
     new LongOpt("compress", LongOpt.NO_ARGUMENT, null, 'z'),
     new LongOpt("exclude", LongOpt.REQUIRED_ARGUMENT, null, OPT_EXCLUDE),
     new LongOpt("exclude-from", LongOpt.REQUIRED_ARGUMENT, null, OPT_EXCLUDE_FROM),
@@ -147,6 +148,8 @@ public class Options {
     new LongOpt("stats", LongOpt.NO_ARGUMENT, null, OPT_STATS),
     new LongOpt("progress", LongOpt.NO_ARGUMENT, null, OPT_PROGRESS),
     new LongOpt("password-file", LongOpt.REQUIRED_ARGUMENT, null, OPT_PASSWORD_FILE),
+    new LongOpt("write-batch", LongOpt.REQUIRED_ARGUMENT, null, OPT_WRITE_BATCH),
+    new LongOpt("read-batch", LongOpt.REQUIRED_ARGUMENT, null, OPT_READ_BATCH),
     new LongOpt("help", LongOpt.NO_ARGUMENT, null, 'h'),
     new LongOpt("server", LongOpt.NO_ARGUMENT, null, OPT_SERVER),
     new LongOpt("sender", LongOpt.NO_ARGUMENT, null, OPT_SENDER),
@@ -188,6 +191,7 @@ public class Options {
   public boolean do_stats = false;
   public boolean do_progress = false;
   public boolean keep_partial = false;
+  public boolean fuzzy_basis = false;
   public boolean safe_symlinks = false;
   public boolean copy_unsafe_links = false;
   public boolean size_only = false;
@@ -213,6 +217,8 @@ public class Options {
   public String password_file = null;
   public String rsync_path = "/usr/bin/rsync";
   public String backup_dir = null;
+  public String write_batch = null;
+  public String read_batch = null;
   public String exclude = "";
   public String exclude_from = "";
   public String include = "";
@@ -471,6 +477,10 @@ public class Options {
             compare_dest = g.getOptarg();
             break;
 
+          case 'y':
+            fuzzy_basis = true;
+            break;
+
           case 'z':
             do_compression = true;
             break;
@@ -503,6 +513,14 @@ public class Options {
             backup_dir = g.getOptarg();
             break;
 
+          case OPT_WRITE_BATCH:
+            write_batch = g.getOptarg();
+            break;
+
+          case OPT_READ_BATCH:
+            read_batch = g.getOptarg();
+            break;
+
           case OPT_USE_SSL:
             use_ssl = true;
             break;
@@ -588,6 +606,7 @@ public class Options {
     out.println("     --modify-window=NUM     Timestamp window (seconds) for file match (default=0)");
     out.println(" -T  --temp-dir=DIR          create temporary files in directory DIR");
     out.println("     --compare-dest=DIR      also compare destination files relative to DIR");
+    out.println(" -y, --fuzzy                 find similar file for basis if no dest file");
     out.println(" -P                          equivalent to --partial --progress");
     out.println(" -z, --compress              compress file data");
     out.println("     --exclude=PATTERN       exclude files matching PATTERN");
@@ -601,6 +620,8 @@ public class Options {
     out.println("     --progress              show progress during transfer");
     out.println("     --password-file=FILE    get password from FILE");
     out.println("     --bwlimit=KBPS          limit I/O bandwidth, KBytes per second");
+    out.println("     --write-batch=FILE      write a batch file of the received updates");
+    out.println("     --read-batch=FILE       apply the updates in a batch file to DEST");
     out.println("     --ssl                   make socket connections over SSL (if available)");
     out.println("     --known-hosts=FILE      specify SSH known hosts file");
     out.println("     -Joption                options to pass directly to java interpreter");
@@ -0,0 +1,208 @@
+/* PartialFile -- records of partly received files.
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of Jarsync.
+
+Jarsync is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Jarsync is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jarsync; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA  */
+
+package org.metastatic.rsync.v2;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A record of a file that was only partly received, kept when
+ * --partial is given. The data stay in the temporary file they were
+ * written to, and a small record named <code>.<i>name</i>.partial</code>
+ * next to the target says which file that is and how many bytes from
+ * its beginning are known to be written. The next transfer of the
+ * target uses those bytes as the front of its basis, so they need not
+ * be sent again.
+ *
+ * <p>A transfer that resumes from one partial file checkpoints into a
+ * new one, and the old one is still its basis until it finishes. Its
+ * records therefore also name the old data file, so that if the
+ * transfer never finishes, the next reader of the record removes the
+ * old data rather than leaving it behind.
+ *
+ * @version $Revision$
+ */
+public class PartialFile
+{
+
+  // Constants and fields.
+  // -------------------------------------------------------------------------
+
+  private static final String SUFFIX = ".partial";
+
+  private final File target;
+  private final File data;
+  private final long prefix;
+  private final File superseded;
+
+  // Constructor.
+  // -------------------------------------------------------------------------
+
+  /**
+   * @param target The file being received.
+   * @param data   The file holding what was received of it.
+   * @param prefix How many bytes at the start of <i>data</i> are good.
+   */
+  public PartialFile(File target, File data, long prefix)
+  {
+    this(target, data, prefix, null);
+  }
+
+  /**
+   * @param target     The file being received.
+   * @param data       The file holding what was received of it.
+   * @param prefix     How many bytes at the start of <i>data</i> are good.
+   * @param superseded An older data file that <i>data</i> replaces, or
+   *    null.
+   */
+  public PartialFile(File target, File data, long prefix, File superseded)
+  {
+    this.target = target;
+    this.data = data;
+    this.prefix = prefix;
+    this.superseded = superseded;
+  }
+
+  // Class methods.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Read the record for a target, if there is a usable one.
+   *
+   * @param target The file being received.
+   * @return The record, or null if there is none, it cannot be read,
+   *    or its data file is gone.
+   */
+  public static PartialFile read(File target)
+  {
+    File record = recordFor(target);
+    if (!record.isFile())
+      return null;
+    try
+      {
+        DataInputStream in = new DataInputStream(new FileInputStream(record));
+        try
+          {
+            File data = new File(record.getParentFile(), in.readUTF());
+            long prefix = in.readLong();
+            String old = in.available() > 0 ? in.readUTF() : "";
+            if (old.length() > 0 && !old.equals(data.getName()))
+              {
+                // Left by a transfer that checkpointed and then died.
+                new File(record.getParentFile(), old).delete();
+              }
+            if (!data.isFile() || prefix <= 0)
+              return null;
+            return new PartialFile(target, data, Math.min(prefix, data.length()));
+          }
+        finally
+          {
+            in.close();
+          }
+      }
+    catch (IOException ioe)
+      {
+        return null;
+      }
+  }
+
+  /**
+   * Remove the record for a target, but not the data it names.
+   */
+  public static void remove(File target)
+  {
+    recordFor(target).delete();
+  }
+
+  private static File recordFor(File target)
+  {
+    File dir = target.getAbsoluteFile().getParentFile();
+    return new File(dir, "." + target.getName() + SUFFIX);
+  }
+
+  // Instance methods.
+  // -------------------------------------------------------------------------
+
+  public File getTarget()
+  {
+    return target;
+  }
+
+  public File getData()
+  {
+    return data;
+  }
+
+  public long getPrefix()
+  {
+    return prefix;
+  }
+
+  /**
+   * Write this record, replacing any older one. The record is written
+   * to a temporary file and renamed, so a crash leaves either the old
+   * record or the new one. The data must be in the target's directory.
+   *
+   * @throws IOException If the record cannot be written.
+   */
+  public void save() throws IOException
+  {
+    File record = recordFor(target);
+    File tmp = new File(record.getPath() + ".new");
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+    try
+      {
+        out.writeUTF(data.getName());
+        out.writeLong(prefix);
+        out.writeUTF(superseded != null ? superseded.getName() : "");
+      }
+    finally
+      {
+        out.close();
+      }
+    if (!tmp.renameTo(record))
+      {
+        if (!record.delete() || !tmp.renameTo(record))
+          {
+            tmp.delete();
+            throw new IOException("cannot rename " + tmp + " to " + record);
+          }
+      }
+  }
+
+  /**
+   * Remove this record and its data.
+   */
+  public void delete()
+  {
+    remove(target);
+    data.delete();
+  }
+}
@@ -75,7 +75,6 @@ public class Protocol implements Constants
   protected InetAddress client;
 
   protected ByteBuffer inBuffer;
-  protected ByteBuffer outBuffer;
   protected DuplexByteBuffer duplex;
 
   protected CharsetEncoder encoder;
@@ -99,6 +98,12 @@ public class Protocol implements Constants
 
   protected NonblockingTool tool;
 
+  /** The server-wide bandwidth limit, if any. */
+  protected RateLimiter globalLimiter;
+
+  /** This connection's bandwidth limit, if any. */
+  protected RateLimiter limiter;
+
   // Constructors.
   // -------------------------------------------------------------------------
 
@@ -114,10 +119,8 @@ public class Protocol implements Constants
     inState = SETUP_READ_GREETING;
     outState = SETUP_WRITE_GREETING;
     inBuffer  = ByteBuffer.allocate(CHUNK_SIZE);
-    outBuffer = ByteBuffer.allocate(CHUNK_SIZE);
-    duplex = new DuplexByteBuffer(outBuffer);
+    duplex = new DuplexByteBuffer(ByteBuffer.allocateDirect(CHUNK_SIZE));
     inBuffer.order(ByteOrder.LITTLE_ENDIAN);
-    outBuffer.order(ByteOrder.LITTLE_ENDIAN);
     inBuffer.flip();
     encoder = Charset.forName("ISO-8859-1").newEncoder();
     connected = true;
@@ -139,13 +142,16 @@ public class Protocol implements Constants
   }
 
   /**
-   * Get the byte buffer for output going over the socket.
+   * Get the byte buffer for output going over the socket. The buffer
+   * may be replaced by a larger one when output is produced, so it
+   * should be fetched again after each call to {@link #updateOutput()}
+   * or {@link #updateInput()}.
    *
    * @return The output buffer.
    */
   public ByteBuffer getOutputBuffer()
   {
-    return outBuffer;
+    return duplex.getBuffer();
   }
 
   public Statistics getStatistics()
@@ -153,6 +159,30 @@ public class Protocol implements Constants
     return stats;
   }
 
+  /**
+   * Set the server-wide bandwidth limiter. This must be called before
+   * the session starts.
+   *
+   * @param globalLimiter The limiter, or null.
+   */
+  public void setGlobalRateLimiter(RateLimiter globalLimiter)
+  {
+    this.globalLimiter = globalLimiter;
+    limiter = globalLimiter;
+  }
+
+  /**
+   * Return the limiter for this connection, which takes into account
+   * the client's --bwlimit, the module's limit and the server's
+   * limit. Returns null if there is no limit at all.
+   *
+   * @return The limiter.
+   */
+  public RateLimiter getRateLimiter()
+  {
+    return limiter;
+  }
+
   /**
    * Return whether or not this protocol's connection is finished.
    *
@@ -171,6 +201,7 @@ public class Protocol implements Constants
     if (state == STATE_SETUP_PROTOCOL)
       {
         setupInput();
+        duplex.flush();
         return;
       }
     if ((state & INPUT_MASK) == 0)
@@ -277,6 +308,7 @@ public class Protocol implements Constants
       default:
         logger.debug("unknown input state " + Integer.toHexString(state));
       }
+    duplex.flush();
   }
 
   /**
@@ -288,6 +320,7 @@ public class Protocol implements Constants
     if (state == STATE_SETUP_PROTOCOL)
       {
         setupOutput();
+        duplex.flush();
         return;
       }
     if ((state & OUTPUT_MASK) == 0)
@@ -513,6 +546,8 @@ public class Protocol implements Constants
             options = new Options();
             String[] args = (String[]) argv.toArray(new String[argv.size()]);
             int optind = options.parseArguments("jarsyncd", args, null);
+            limiter = RateLimiter.forKBps(options.bwlimit,
+                                          module.getRateLimiter(globalLimiter));
             argv.clear();
             for (int i = optind; i < args.length; i++)
               {
@@ -545,6 +580,7 @@ public class Protocol implements Constants
    */
   protected void setupOutput()
   {
+    ByteBuffer outBuffer = duplex.getBuffer();
     switch (outState)
       {
       case SETUP_READ_GREETING:
@@ -0,0 +1,180 @@
+/* vim:set softtabstop=3 shiftwidth=3 tabstop=3 expandtab tw=72:
+   $Id$
+
+   RateLimiter -- token-bucket bandwidth limiting.
+   Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+   This file is a part of Jarsync.
+
+   Jarsync is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 2 of the License, or
+   (at your option) any later version.
+
+   Jarsync is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with Jarsync; if not, write to the
+
+      Free Software Foundation, Inc.,
+      59 Temple Place, Suite 330,
+      Boston, MA  02111-1307
+      USA  */
+
+package org.metastatic.rsync.v2;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A token bucket that limits the rate at which bytes are written.
+ * Limiters may be stacked: a connection's limiter can have its
+ * module's limiter as a parent, which in turn has the server-wide
+ * limiter as its parent, and bytes are only available when every level
+ * has them.
+ *
+ * <p>Blocking writers call {@link #acquire(int)}, which sleeps as
+ * needed. Nonblocking writers ask {@link #available()} how much they
+ * may write now, {@link #consume(long)} what they actually wrote, and
+ * use {@link #delay(long)} to learn when to try again.
+ *
+ * @version $Revision$
+ */
+public final class RateLimiter {
+
+   // Constants and fields.
+   // -----------------------------------------------------------------------
+
+   /** The smallest bucket, so tiny rates still allow useful writes. */
+   private static final long MIN_BURST = 4096;
+
+   private final long rate;
+   private final long burst;
+   private final RateLimiter parent;
+   private double tokens;
+   private long last;
+
+   // Constructors.
+   // -----------------------------------------------------------------------
+
+   /**
+    * Create a new limiter.
+    *
+    * @param rate   The rate, in bytes per second.
+    * @param parent The enclosing limiter, or null.
+    */
+   public RateLimiter(long rate, RateLimiter parent) {
+      if (rate <= 0)
+         throw new IllegalArgumentException("rate must be positive");
+      this.rate = rate;
+      this.parent = parent;
+      burst = Math.max(MIN_BURST, rate / 8);
+      tokens = burst;
+      last = System.nanoTime();
+   }
+
+   // Class methods.
+   // -----------------------------------------------------------------------
+
+   /**
+    * Make a limiter from a --bwlimit style value, in kilobytes per
+    * second. If <i>kbps</i> is not positive, there is no limit at this
+    * level and <i>parent</i> (which may be null) is returned.
+    */
+   public static RateLimiter forKBps(int kbps, RateLimiter parent) {
+      if (kbps <= 0)
+         return parent;
+      return new RateLimiter(kbps * 1024L, parent);
+   }
+
+   // Instance methods.
+   // -----------------------------------------------------------------------
+
+   public long getRate() {
+      return rate;
+   }
+
+   public long getBurst() {
+      return burst;
+   }
+
+   /**
+    * Return the number of bytes that may be written now.
+    */
+   public long available() {
+      long n;
+      synchronized (this) {
+         refill();
+         n = (long) tokens;
+      }
+      if (parent != null)
+         n = Math.min(n, parent.available());
+      return n;
+   }
+
+   /**
+    * Record that <i>n</i> bytes were written. This may drive the
+    * bucket negative, in which case later writers wait longer.
+    */
+   public void consume(long n) {
+      synchronized (this) {
+         refill();
+         tokens -= n;
+      }
+      if (parent != null)
+         parent.consume(n);
+   }
+
+   /**
+    * Return how many nanoseconds must pass before <i>n</i> bytes (but
+    * no more than one bucketful) may be written, or 0 if they may be
+    * written now.
+    */
+   public long delay(long n) {
+      long d;
+      synchronized (this) {
+         refill();
+         double want = Math.min(n, burst) - tokens;
+         d = want <= 0 ? 0 : (long) (want * 1000000000L / rate) + 1;
+      }
+      if (parent != null)
+         d = Math.max(d, parent.delay(n));
+      return d;
+   }
+
+   /**
+    * Wait until <i>n</i> bytes may be written, and take them.
+    *
+    * @throws InterruptedIOException If interrupted while waiting.
+    */
+   public void acquire(int n) throws InterruptedIOException {
+      while (n > 0) {
+         int chunk = (int) Math.min(n, minBurst());
+         long d;
+         while ((d = delay(chunk)) > 0) {
+            try {
+               Thread.sleep(d / 1000000L, (int) (d % 1000000L));
+            } catch (InterruptedException ie) {
+               throw new InterruptedIOException("interrupted in bwlimit");
+            }
+         }
+         consume(chunk);
+         n -= chunk;
+      }
+   }
+
+   // Own methods.
+   // -----------------------------------------------------------------------
+
+   private long minBurst() {
+      return parent != null ? Math.min(burst, parent.minBurst()) : burst;
+   }
+
+   private void refill() {
+      long now = System.nanoTime();
+      tokens = Math.min(burst, tokens + (now - last) * (double) rate / 1e9);
+      last = now;
+   }
+}
@@ -36,12 +36,13 @@ package org.metastatic.rsync.v2;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -53,6 +54,7 @@ import org.metastatic.rsync.GeneratorEvent;
 import org.metastatic.rsync.GeneratorListener;
 import org.metastatic.rsync.GeneratorStream;
 import org.metastatic.rsync.ListenerException;
+import org.metastatic.rsync.Metrics;
 import org.metastatic.rsync.Offsets;
 import org.metastatic.rsync.RebuilderEvent;
 import org.metastatic.rsync.RebuilderListener;
@@ -77,6 +79,9 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
   private static final Logger logger =
     Logger.getLogger(Receiver.class.getName());
 
+  /** The most the strong sum bias is raised to by redone files. */
+  private static final int MAX_SUM_BIAS = BLOCKSUM_BIAS + 32;
+
   private final MultiplexedInputStream in;
   private final MultiplexedOutputStream out;
 
@@ -84,6 +89,8 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
 
   private Statistics stats;
 
+  private Options options;
+
   private final Configuration genConfig, recvConfig;
 
   private final int remoteVersion;
@@ -92,10 +99,41 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
 
   private int retryIndex;
 
+  /** Files held back from the first pass, to be sent full sums. */
+  private int[] deferred;
+
+  private int deferredIndex;
+
+  /**
+   * The bias used to size strong sums in this transfer. It grows each
+   * time a file has to be redone, so that after a collision more files
+   * skip straight to full-length sums, up to {@link #MAX_SUM_BIAS}.
+   */
+  private volatile int sumBias = BLOCKSUM_BIAS;
+
   private int genPhase = 0, recvPhase = 0;
   private int saveBlockLength;
 
-  private RandomAccessFile rebuildFile;
+  /** The file being received. */
+  private TargetWriter target;
+
+  /** Received files waiting to be renamed into place. */
+  private final List<TargetWriter> received = new ArrayList<TargetWriter>();
+
+  /**
+   * The directory that file names are relative to on the sending side,
+   * for finding files under --compare-dest; null if not known.
+   */
+  private File destination;
+
+  /** The write buffer, shared by all files received. */
+  private ByteBuffer writeBuffer;
+
+  /**
+   * When replaying a batch, the files whose last try did not come out
+   * right; otherwise null.
+   */
+  private BitSet unmatched;
 
   private ChecksumEncoder checkOut;
   private DeltaDecoder deltasIn;
@@ -122,6 +160,7 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
     this.recvConfig = (Configuration) config.clone();
     this.remoteVersion = remoteVersion;
     stats = new Statistics();
+    options = new Options();
   }
 
   // Instance methods.
@@ -147,6 +186,29 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
     if (stats != null) this.stats = stats;
   }
 
+  /**
+   * Set the options for this session, which decide how unchanged
+   * files are recognized.
+   *
+   * @param options The options to use.
+   */
+  public void setOptions(Options options)
+  {
+    if (options != null) this.options = options;
+  }
+
+  /**
+   * Set the destination the file list was mapped to by {@link
+   * FileList#toLocalList(List,String)}.
+   *
+   * @param dest The destination argument.
+   */
+  public void setDestination(String dest)
+  {
+    File f = new File(dest).getAbsoluteFile();
+    destination = f.isDirectory() ? f : f.getParentFile();
+  }
+
   /**
    * Generate the checksums for a list of files and send them to the
    * other side.
@@ -158,16 +220,36 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
   {
     logger.debug("generateFiles starting thread=" + Thread.currentThread());
     genPhase = 0;
+    sumBias = BLOCKSUM_BIAS;
 
     retryIndex = 0;
     retry = new int[files.size()];
     for (int i = 0; i < retry.length; i++)
       retry[i] = -1;
+    deferredIndex = 0;
+    deferred = new int[files.size()];
 
     for (int i = 0; i < files.size(); i++)
       {
         FileInfo f = (FileInfo) files.get(i);
-        sendSums(new File(f.filename()), i);
+        File file = new File(f.filename());
+        if (!f.S_ISREG())
+          {
+            logger.debug("skipping non-regular file " + f.filename());
+            continue;
+          }
+        if (RsyncUtil.skipFile(file, f, options))
+          {
+            logger.debug(f.filename() + " is uptodate");
+            continue;
+          }
+        if (needsFullSums(file))
+          {
+            logger.debug("deferring " + f.filename() + " to the second pass");
+            deferred[deferredIndex++] = i;
+            continue;
+          }
+        sendSums(file, i);
       }
 
     genPhase++;
@@ -191,11 +273,16 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
         genConfig.strongSumLength = SUM_LENGTH;
         // in newer versions of the protocol the files can cycle
         // through the system more than once to catch initial checksum
-        // errors.
+        // errors. Files that were too large for short sums go first.
         //
         // Rsync uses a socket with two processes talking to one
         // another. Here, since we are running two threads with the
         // same object, we just use an array of integers.
+        for (int i = 0; i < deferredIndex; i++)
+          {
+            FileInfo f = (FileInfo) files.get(deferred[i]);
+            sendSums(new File(f.filename()), deferred[i]);
+          }
         for (int i = 0; i < retryIndex && retry[i] != -1; i++)
           {
             FileInfo f = (FileInfo) files.get(retry[i]);
@@ -220,6 +307,56 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
     logger.debug("receiveFiles starting thread=" + Thread.currentThread());
     recvPhase = 0;
 
+    // Files are renamed together, once all are in; a file that is
+    // redone keeps its old contents as the basis until then.
+    try
+      {
+        receiveFiles0(files);
+      }
+    catch (Throwable t)
+      {
+        IOException failed = commitReceived();
+        if (failed != null)
+          t.addSuppressed(failed);
+        throw t;
+      }
+    IOException failed = commitReceived();
+    if (failed != null)
+      throw failed;
+    logger.debug("receiveFiles finished");
+  }
+
+  /**
+   * Rename every received file into place. A file that cannot be
+   * renamed is logged and aborted, and the rest are still renamed.
+   *
+   * @return The first failure, or null.
+   */
+  private IOException commitReceived()
+  {
+    IOException first = null;
+    for (TargetWriter w : received)
+      {
+        try
+          {
+            w.commit();
+          }
+        catch (IOException ioe)
+          {
+            logger.error("could not commit " + w.getTarget() + ": "
+                         + ioe.getMessage());
+            // Keep it as partial data, or else remove it.
+            w.abort();
+            if (first == null)
+              first = ioe;
+          }
+      }
+    received.clear();
+    return first;
+  }
+
+  private void receiveFiles0(List files) throws IOException
+  {
     while (true)
       {
         int i = in.readInt();
@@ -253,24 +390,66 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
         stats.num_transferred_files++;
         stats.total_transferred_size += f.length();
 
-        if (!receiveData(f))
+        if (receiveData(f, finfo.length))
+          {
+            received.add(target);
+            if (unmatched != null)
+              unmatched.clear(i);
+          }
+        else if (unmatched != null)
+          {
+            // The batch holds the sender's second try, if it made one.
+            target.discard();
+            unmatched.set(i);
+            if (recvPhase > 0 || remoteVersion < 13)
+              logger.error(f.getName() + " does not match the batch; "
+                           + "left unchanged");
+          }
+        else
           {
             if (genConfig.strongSumLength == SUM_LENGTH)
               {
                 logger.error("File corruption in " + f.getName()
                              + ". File changed during transfer?");
+                received.add(target);
               }
             else
               {
+                target.discard();
                 // We need to retry this file. See the generateFiles
                 // method above for how these integers are used.
                 logger.warn("redoing " + f.getName() + "(" + i + ")");
                 retry[retryIndex++] = i;
+                Metrics.GLOBAL.redoneFiles.increment();
+                if (sumBias < MAX_SUM_BIAS)
+                  sumBias += 8;
               }
           }
       }
+  }
 
-    logger.debug("receiveFiles finished");
+  /**
+   * Rebuild files from deltas recorded in a batch file, instead of
+   * from a live sender. There is no generator: the sums the deltas were
+   * made against are those of the first replica, so a file whose
+   * checksum does not match here is discarded, not kept.
+   *
+   * @param files The file list, as read from the batch.
+   * @return The number of files that could not be rebuilt.
+   * @throws IOException If an I/O error occurs.
+   */
+  public int replayFiles(List files) throws IOException
+  {
+    unmatched = new BitSet(files.size());
+    try
+      {
+        receiveFiles(files);
+        return unmatched.cardinality();
+      }
+    finally
+      {
+        unmatched = null;
+      }
   }
 
   public void update(GeneratorEvent e) throws ListenerException
@@ -291,8 +470,8 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
     try
       {
         logger.debug("inserting data at=" + e.getOffset());
-        rebuildFile.seek(e.getOffset());
-        rebuildFile.write(e.getData());
+        byte[] data = e.getData();
+        target.write(e.getOffset(), data, 0, data.length);
       }
     catch (IOException ioe)
       {
@@ -300,9 +479,40 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
       }
   }
 
-// Own methods.
+  // Own methods.
   // -------------------------------------------------------------------------
 
+  /**
+   * Tell if the first pass's short strong sums are too weak for a file
+   * of this size, so that it is better sent full sums in the second
+   * pass than risk a collision, which would mean sending it twice.
+   *
+   * @param f The file.
+   */
+  private boolean needsFullSums(File f)
+  {
+    if (remoteVersion < 13 || genConfig.strongSumLength >= SUM_LENGTH
+        || (options.whole_file && !options.no_whole_file))
+      return false;
+    long length = expectedBasisLength(f);
+    if (length == 0)
+      return false;
+    int blength = RsyncUtil.adaptBlockSize(length, genConfig.blockLength);
+    return RsyncUtil.strongSumLength(length, blength, SHORT_SUM_LENGTH,
+                                     sumBias)
+      > genConfig.strongSumLength;
+  }
+
+  private long expectedBasisLength(File f)
+  {
+    return Basis.expectedLength(f, destination, options);
+  }
+
+  private Basis openBasis(File f, int blockLength)
+  {
+    return Basis.open(f, blockLength, destination, options);
+  }
+
   /**
    * Generate and send the checksums for a file.
    *
@@ -313,23 +523,15 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
   private void sendSums(File f, int i) throws IOException
   {
     int blen = genConfig.blockLength;
-    if (genConfig.blockLength == BLOCK_LENGTH)
-      {
-        int l = (int) (f.length() / 10000) & ~15;
-        if (l < genConfig.blockLength)
-          l = genConfig.blockLength;
-        if (l > CHUNK_SIZE / 2)
-          l = CHUNK_SIZE / 2;
-        genConfig.blockLength = l;
-      }
+    genConfig.blockLength = RsyncUtil.adaptBlockSize(expectedBasisLength(f),
+                                                     genConfig.blockLength);
 
     out.writeInt(i);
-    if (f.exists())
+    Basis basis = openBasis(f, genConfig.blockLength);
+    if (!basis.isEmpty() && !(options.whole_file && !options.no_whole_file))
       {
-        int count = (int) (f.length() / genConfig.blockLength);
-        int rem = (int) (f.length() % genConfig.blockLength);
-        if (rem > 0)
-          count++;
+        int count = basis.blockCount();
+        int rem = basis.remainder();
         out.writeInt(count);
         out.writeInt(genConfig.blockLength);
         out.writeInt(rem);
@@ -338,28 +540,25 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
                      " blockLen=" + genConfig.blockLength + " rem=" +
                      rem);
 
-        FileInputStream fin = new FileInputStream(f);
         byte[] buf = new byte[CHUNK_SIZE];
-        int len = 0;
         checkOut = new ChecksumEncoder(genConfig, out);
         GeneratorStream gen = new GeneratorStream(genConfig);
         gen.addListener(this);
-        logger.debug("generating=" + fin);
+        logger.debug("generating=" + f);
         try
           {
-            logger.debug("about to read; available=" + fin.available());
-            while ((len = fin.read(buf)) > 0)
-              {
-                logger.debug("read " + len + " bytes from file");
-                gen.update(buf, 0, len);
-                out.flush();
-              }
+            basis.generate(gen, buf);
             gen.doFinal();
+            out.flush();
           }
         catch (ListenerException le)
           {
             throw (IOException) le.getCause();
           }
+        finally
+          {
+            basis.close();
+          }
       }
     else
       {
@@ -372,12 +571,15 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
   }
 
   /**
-   * Receive the deltas for a file, and rebuild it.
+   * Receive the deltas for a file, and rebuild it into {@link
+   * #target}.
    *
-   * @param f The file to rebuild.
+   * @param f      The file to rebuild.
+   * @param length The length the sender gave for it.
+   * @return True if the rebuilt file's checksum matches the sender's.
    * @throws IOException If an I/O error occurs.
    */
-  private boolean receiveData(File f) throws IOException
+  private boolean receiveData(File f, long length) throws IOException
   {
     int count = in.readInt();
     int n = in.readInt();
@@ -391,24 +593,36 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
 
     recvConfig.blockLength = n;
     DeltaDecoder deltasIn = new PlainDeltaDecoder(recvConfig, in);
-    RebuilderStream rebuilder = new RebuilderStream();
+    final Basis basis = openBasis(f, n);
+    RebuilderStream rebuilder = new RebuilderStream()
+      {
+        protected long basisLength() throws IOException
+        {
+          if (basis.isEmpty())
+            throw new IOException("offsets found but no basis file specified");
+          return basis.length();
+        }
+
+        protected int readBasis(long offset, byte[] buf, int off, int len)
+          throws IOException
+        {
+          return basis.read(offset, buf, off, len);
+        }
+      };
     rebuilder.addListener(this);
+    Delta delta = null;
+    if (writeBuffer == null)
+      writeBuffer = ByteBuffer.allocateDirect(TargetWriter.BUFFER_SIZE);
     try
       {
-        rebuilder.setBasisFile(f);
+        target = new TargetWriter(f, length, options.sparse_files, writeBuffer,
+                                  options.keep_partial);
       }
-    catch (FileNotFoundException fnfe)
+    catch (IOException ioe)
       {
-        // Ok, we might be writing a new file.
+        basis.close();
+        throw ioe;
       }
-    Delta delta = null;
-    File newf = null;
-    if (f.getParentFile() != null)
-      newf = File.createTempFile(".jarsync", ".tmp", f.getParentFile());
-    else
-      newf = File.createTempFile(".jarsync", ".tmp",
-                                 new File(System.getProperty("user.dir")));
-    rebuildFile = new RandomAccessFile(newf, "rw");
     try
       {
         int i = 0;
@@ -430,14 +644,20 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
       }
     catch (ListenerException le)
       {
+        target.abort();
         throw (IOException) le.getCause();
       }
-    rebuilder.doFinal();
-    rebuildFile.close();
-    if (!newf.renameTo(f))
+    catch (IOException ioe)
       {
-        throw new IOException("cannot rename " + newf + " to " + f);
+        target.abort();
+        throw ioe;
       }
+    finally
+      {
+        basis.close();
+      }
+    rebuilder.doFinal();
+    target.close();
 
     if (remoteVersion >= 14)
       {
@@ -451,13 +671,14 @@ public class Receiver implements Constants, GeneratorListener, RebuilderListener
             logger.fatal("could not create message digest");
             throw new Error(nsae);
           }
-        FileInputStream fin = new FileInputStream(f);
+        FileInputStream fin = new FileInputStream(target.getTempFile());
         int i = 0;
         md.update(recvConfig.checksumSeed);
         while ((i = fin.read(data)) != -1)
           {
             md.update(data, 0, i);
           }
+        fin.close();
         file_sum1 = md.digest();
         file_sum2 = new byte[file_sum1.length];
         in.read(file_sum2);
@@ -29,6 +29,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.StringTokenizer;
@@ -38,9 +39,6 @@ import org.metastatic.HASH_ALGORITHM;
 class RsyncUtil implements Constants
 {
 
-  // Fields.
-  // -------------------------------------------------------------------------
-
   // Constructor.
   // -------------------------------------------------------------------------
 
@@ -68,11 +66,18 @@ class RsyncUtil implements Constants
         throw new Error(nse);
       }
     FileInputStream fin = new FileInputStream(file);
-    byte[] buf = new byte[4096];
-    int len;
-    while ((len = fin.read(buf)) != -1)
+    try
+      {
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = fin.read(buf)) != -1)
+          {
+            mdfour.update(buf, 0, len);
+          }
+      }
+    finally
       {
-        mdfour.update(buf, 0, len);
+        fin.close();
       }
     return mdfour.digest();
   }
@@ -96,15 +101,57 @@ class RsyncUtil implements Constants
         throw new Error(nse);
       }
     FileInputStream fin = new FileInputStream(fname);
-    byte[] buf = new byte[4096];
-    int len;
-    while ((len = fin.read(buf)) != -1)
+    try
+      {
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = fin.read(buf)) != -1)
+          {
+            mdfour.update(buf, 0, len);
+          }
+      }
+    finally
       {
-        mdfour.update(buf, 0, len);
+        fin.close();
       }
     return mdfour.digest();
   }
 
+  /**
+   * The quick check: decide whether the local copy of a file is
+   * already identical to the sender's, in which case the generator
+   * never asks for it. This is skip_file() in generate.c.
+   *
+   * @param f       The local file.
+   * @param file    The sender's description of that file.
+   * @param options The options in effect.
+   * @return true if the file needs no update.
+   * @throws IOException If the local file cannot be checksummed.
+   */
+  static boolean skipFile(File f, FileInfo file, Options options)
+    throws IOException
+  {
+    if (!file.S_ISREG() || !f.isFile())
+      return false;
+    if (f.length() != file.length)
+      return false;
+    if (options.always_checksum && file.sum != null)
+      {
+        // Older protocols only send the first two bytes of the sum.
+        byte[] sum = fileChecksum(f);
+        for (int i = 0; i < file.sum.length && i < sum.length; i++)
+          if (sum[i] != file.sum[i])
+            return false;
+        return true;
+      }
+    if (options.size_only)
+      return true;
+    if (options.ignore_times)
+      return false;
+    long diff = f.lastModified() / 1000L - file.modtime;
+    return Math.abs(diff) <= options.modify_window;
+  }
+
   /**
    * Remove all ".." and ".", returning the new path.
    *
@@ -140,14 +187,111 @@ class RsyncUtil implements Constants
   }
 
   static int adaptBlockSize(File file, int bsize)
+  {
+    return adaptBlockSize(file.length(), bsize);
+  }
+
+  static int adaptBlockSize(long length, int bsize)
   {
     if (bsize != BLOCK_LENGTH)
       return bsize;
-    int ret = (int) (file.length() / 10000) & ~15;
+    int ret = (int) (length / 10000) & ~15;
     if (ret < bsize)
       return bsize;
     if (ret > CHUNK_SIZE/2)
       ret = CHUNK_SIZE/2;
     return ret;
   }
+
+  /**
+   * Return the strong sum length needed to keep the chance of a
+   * collision going unnoticed acceptably small, as sum_sizes_sqroot in
+   * generator.c works it out: about 2 bits per bit of file length,
+   * less 1 per bit of block length, plus <i>bias</i>, less the 32 bits
+   * the rolling sum already provides. The result is between
+   * <i>minimum</i> and {@link #SUM_LENGTH}.
+   *
+   * @param len     The file length.
+   * @param blength The block length.
+   * @param minimum The smallest length to return.
+   * @param bias    The safety margin, in bits.
+   */
+  static int strongSumLength(long len, int blength, int minimum, int bias)
+  {
+    int b = bias;
+    for (long l = len; (l >>= 1) != 0; b += 2);
+    for (int c = blength; (c >>= 1) != 0 && b > 0; b--);
+    int s2length = (b + 1 - 32 + 7) / 8;
+    s2length = Math.max(s2length, minimum);
+    return Math.min(s2length, SUM_LENGTH);
+  }
+
+  /**
+   * Find a file in the same directory as <i>f</i> whose name is close
+   * to its name, to use as a basis when <i>f</i> does not exist; this
+   * catches renamed files and rotated logs. Names are compared by edit
+   * distance, a differing extension counting extra, and a candidate
+   * must be no further from the name than half its length. Hidden
+   * files (which include our temporary files) are never chosen, and
+   * ties go to the first name in sorted order, so that the same file
+   * is found each time for as long as the directory does not change.
+   *
+   * @param f The file being received.
+   * @return The nearest match, or null.
+   */
+  static File findFuzzyBasis(File f)
+  {
+    File dir = f.getAbsoluteFile().getParentFile();
+    String[] names = dir != null ? dir.list() : null;
+    if (names == null)
+      return null;
+    Arrays.sort(names);
+    String name = f.getName();
+    File best = null;
+    int bestDistance = name.length() / 2 + 1;
+    for (int i = 0; i < names.length; i++)
+      {
+        if (names[i].equals(name) || names[i].startsWith("."))
+          continue;
+        int d = fuzzyDistance(name, names[i]);
+        if (d >= bestDistance)
+          continue;
+        File c = new File(dir, names[i]);
+        if (!c.isFile() || c.length() == 0)
+          continue;
+        best = c;
+        bestDistance = d;
+      }
+    return best;
+  }
+
+  private static int fuzzyDistance(String a, String b)
+  {
+    int d = editDistance(a, b);
+    int i = a.lastIndexOf('.'), j = b.lastIndexOf('.');
+    String ea = i > 0 ? a.substring(i) : "", eb = j > 0 ? b.substring(j) : "";
+    if (!ea.equals(eb))
+      d += 2;
+    return d;
+  }
+
+  private static int editDistance(String a, String b)
+  {
+    int[] row = new int[b.length() + 1];
+    for (int j = 0; j <= b.length(); j++)
+      row[j] = j;
+    for (int i = 1; i <= a.length(); i++)
+      {
+        int diag = row[0];
+        row[0] = i;
+        for (int j = 1; j <= b.length(); j++)
+          {
+            int up = row[j];
+            int cost = a.charAt(i-1) == b.charAt(j-1) ? 0 : 1;
+            row[j] = Math.min(Math.min(row[j] + 1, row[j-1] + 1), diag + cost);
+            diag = up;
+          }
+      }
+    return row[b.length()];
+  }
 }
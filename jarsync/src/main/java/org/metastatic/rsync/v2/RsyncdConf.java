@@ -44,6 +44,8 @@ public class RsyncdConf implements ParameterListener {
 
    private String logFile;
 
+   private int bwlimit;
+
    private Map modules;
 
    private Module current;
@@ -74,6 +76,10 @@ public class RsyncdConf implements ParameterListener {
       return logFile;
    }
 
+   public int getBwLimit() {
+      return bwlimit;
+   }
+
    public void beginSection(String name) {
       if (name.equals("#stats"))
          current = new StatsModule();
@@ -90,6 +96,10 @@ public class RsyncdConf implements ParameterListener {
             pidFile = value;
          else if (name.equalsIgnoreCase("log file"))
             logFile = value;
+         else if (name.equalsIgnoreCase("bwlimit"))
+            try {
+               bwlimit = Integer.parseInt(value);
+            } catch (NumberFormatException nfe) { }
       } else {
          if (name.equalsIgnoreCase("path"))
             current.path = value;
@@ -144,6 +154,10 @@ public class RsyncdConf implements ParameterListener {
             try {
                current.maxConnections = Integer.parseInt(value);
             } catch (NumberFormatException nfe) { }
+         else if (name.equalsIgnoreCase("bwlimit"))
+            try {
+               current.bwlimit = Integer.parseInt(value);
+            } catch (NumberFormatException nfe) { }
          else
             System.err.println("extra parameter " + name);
       }
@@ -38,6 +38,7 @@ package org.metastatic.rsync.v2;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -54,6 +55,7 @@ import org.metastatic.rsync.ListenerException;
 import org.metastatic.rsync.MatcherEvent;
 import org.metastatic.rsync.MatcherListener;
 import org.metastatic.rsync.MatcherStream;
+import org.metastatic.rsync.Metrics;
 import org.metastatic.rsync.Offsets;
 import org.metastatic.rsync.Util;
 
@@ -64,6 +66,9 @@ public class Sender implements Constants, MatcherListener {
 
   private static Logger logger = Logger.getLogger(Sender.class.getName());
 
+  /** How much of a file to map at once when sending it whole. */
+  private static final long WHOLE_FILE_WINDOW = 8 * 1024 * 1024;
+
   private final Configuration config;
 
   private final MultiplexedInputStream in;
@@ -151,9 +156,18 @@ public class Sender implements Constants, MatcherListener {
 
          FileInfo finfo = (FileInfo) files.get(i);
          File file = new File(finfo.filename());
+         if (!finfo.S_ISREG())
+           {
+             // Only regular files have deltas; the receiver goes on
+             // to whichever index comes next.
+             receiveSums();
+             logger.warn(finfo.filename() + " is not a regular file");
+             continue;
+           }
 
          stats.num_transferred_files++;
          stats.total_transferred_size += file.length();
+         Metrics.GLOBAL.addPhaseBytes(phase, file.length());
          if (phase == 0)
            stats.total_size += file.length();
          logger.info(finfo.filename());
@@ -165,6 +179,12 @@ public class Sender implements Constants, MatcherListener {
          out.writeInt(remainder);
          out.flush();
          config.blockLength = n;
+         if (count == 0)
+           {
+             // No basis to match against; skip the matcher entirely.
+             sendWholeFile(file);
+             continue;
+           }
          MatcherStream match = new MatcherStream(config);
          match.setChecksums(sums);
          match.addListener(this);
@@ -186,6 +206,9 @@ public class Sender implements Constants, MatcherListener {
                }
              match.doFinal();
              deltasOut.doFinal();
+             if (match.getCollisions() > 0)
+               logger.debug(finfo.filename() + ": " + match.getCollisions()
+                            + " weak sum collisions");
              byte[] digest = md.digest();
              logger.debug("file_sum=" + Util.toHexString(digest));
              out.write(digest);
@@ -225,9 +248,62 @@ public class Sender implements Constants, MatcherListener {
       }
   }
 
-// Own methods.
+  // Own methods.
   // -------------------------------------------------------------------------
 
+  /**
+   * Send a file as a run of literal tokens, followed by its checksum.
+   * The file is mapped a window at a time for the checksum, and each
+   * token's data is copied to the stream with {@link
+   * MultiplexedOutputStream#transferFrom}, which can avoid copying it
+   * through the heap at all.
+   *
+   * @param file The file to send.
+   * @throws IOException If an I/O error occurs.
+   */
+  private void sendWholeFile(File file) throws IOException
+  {
+    MessageDigest md = null;
+    try
+      {
+        md = MessageDigest.getInstance(HASH_ALGORITHM.DIGEST_NAME);
+      }
+    catch (NoSuchAlgorithmException nsae)
+      {
+        throw new IOException("could not create message digest");
+      }
+    md.update(config.checksumSeed);
+    FileInputStream fin = new FileInputStream(file);
+    try
+      {
+        FileChannel fc = fin.getChannel();
+        long size = fc.size();
+        for (long pos = 0; pos < size; )
+          {
+            long window = Math.min(WHOLE_FILE_WINDOW, size - pos);
+            md.update(fc.map(FileChannel.MapMode.READ_ONLY, pos, window));
+            for (long end = pos + window; pos < end; )
+              {
+                int len = (int) Math.min(CHUNK_SIZE, end - pos);
+                out.writeInt(len);
+                out.transferFrom(fc, pos, len);
+                pos += len;
+              }
+          }
+        stats.literal_data += size;
+        Metrics.GLOBAL.literalBytes.add(size);
+        out.writeInt(0);
+        byte[] digest = md.digest();
+        logger.debug("file_sum=" + Util.toHexString(digest));
+        out.write(digest);
+        out.flush();
+      }
+    finally
+      {
+        fin.close();
+      }
+  }
+
   private List receiveSums() throws IOException {
     count = in.readInt();
     n = in.readInt();
@@ -30,6 +30,8 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeSet;
 
+import org.metastatic.rsync.Metrics;
+
 class StatsModule extends Module {
 
    // Fields.
@@ -97,6 +99,8 @@ class StatsModule extends Module {
          result.append(line.toString());
          result.append("\n");
       }
+      result.append("\nTransfer metrics:\n");
+      result.append(Metrics.GLOBAL.report());
       return result.toString();
    }
 }
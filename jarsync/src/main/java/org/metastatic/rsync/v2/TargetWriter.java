@@ -0,0 +1,430 @@
+/* TargetWriter -- buffered, sparse-aware writing of received files.
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of Jarsync.
+
+Jarsync is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Jarsync is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jarsync; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA  */
+
+package org.metastatic.rsync.v2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a file being received into a temporary file next to it, to
+ * be renamed over the target once it is known to be good. Writes that
+ * follow one another, which is how the rebuilder produces them, are
+ * gathered into a large buffer and written with one positional write
+ * instead of a seek and a write each.
+ *
+ * <p>Unless sparse files are wanted, the temporary file is extended to
+ * its expected length before anything is written, so it does not grow
+ * a write at a time. With sparse files, blocks of zeros are not written
+ * at all and are left as holes (as write_sparse in fileio.c does).
+ *
+ * <p>Renaming is left to the caller, through {@link #commit()}, so a
+ * receiver may rename all its files together at the end of a
+ * transfer. Until then the target keeps its old contents, which remain
+ * the basis if the file must be sent again.
+ *
+ * <p>When partial files are kept, the writer also keeps track of how
+ * much of the file has been written contiguously from its start. Every
+ * {@link #CHECKPOINT_INTERVAL} bytes it forces that much to disk and
+ * records it in a {@link PartialFile}, and a writer that is aborted
+ * leaves its temporary file behind for the next transfer to resume
+ * from, if it got further than the one before it.
+ *
+ * @version $Revision$
+ */
+public class TargetWriter
+{
+
+  // Constants and fields.
+  // -------------------------------------------------------------------------
+
+  /** The size of write buffer receivers should share between files. */
+  public static final int BUFFER_SIZE = 256 * 1024;
+
+  /** The granularity at which zeros are left as holes. */
+  private static final int SPARSE_BLOCK = 4096;
+
+  /** How often, in bytes, a partial file's progress is recorded. */
+  public static final long CHECKPOINT_INTERVAL = 16 * 1024 * 1024;
+
+  private final File target;
+  private final File tempFile;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final ByteBuffer buffer;
+  private final boolean sparse;
+  private final boolean keepPartial;
+
+  /** The partial file this transfer may resume from, or null. */
+  private final PartialFile previous;
+
+  /** The file offset of the first byte in the buffer. */
+  private long bufferOffset;
+
+  /** The end of the data written thusfar. */
+  private long end;
+
+  /** How many bytes from the start of the file have been written. */
+  private long prefix;
+
+  /** The prefix last recorded in the partial file record. */
+  private long checkpoint;
+
+  private boolean closed;
+
+  // Constructors.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Begin writing a file.
+   *
+   * @param target The file being received.
+   * @param length The expected length, or 0 if unknown.
+   * @param sparse Whether to leave runs of zeros as holes.
+   * @param buffer The buffer to gather writes in; it must not be used
+   *    by anyone else until this writer is closed.
+   * @throws IOException If the temporary file cannot be created.
+   */
+  public TargetWriter(File target, long length, boolean sparse,
+                      ByteBuffer buffer)
+    throws IOException
+  {
+    this(target, length, sparse, buffer, false);
+  }
+
+  /**
+   * Begin writing a file, possibly keeping what is written if the
+   * transfer fails.
+   *
+   * @param target      The file being received.
+   * @param length      The expected length, or 0 if unknown.
+   * @param sparse      Whether to leave runs of zeros as holes.
+   * @param buffer      The buffer to gather writes in.
+   * @param keepPartial Whether to checkpoint progress and keep the
+   *    data of an aborted transfer.
+   * @throws IOException If the temporary file cannot be created.
+   */
+  public TargetWriter(File target, long length, boolean sparse,
+                      ByteBuffer buffer, boolean keepPartial)
+    throws IOException
+  {
+    this.target = target;
+    this.sparse = sparse;
+    this.buffer = buffer;
+    this.keepPartial = keepPartial;
+    previous = keepPartial ? PartialFile.read(target) : null;
+    File dir = target.getAbsoluteFile().getParentFile();
+    tempFile = File.createTempFile(".jarsync", ".tmp", dir);
+    file = new RandomAccessFile(tempFile, "rw");
+    channel = file.getChannel();
+    if (!sparse && length > 0)
+      file.setLength(length);
+    buffer.clear();
+    bufferOffset = 0;
+    end = 0;
+    prefix = 0;
+    checkpoint = previous != null ? previous.getPrefix() : 0;
+    closed = false;
+  }
+
+  // Instance methods.
+  // -------------------------------------------------------------------------
+
+  public File getTarget()
+  {
+    return target;
+  }
+
+  /**
+   * Return the temporary file, whose contents are complete once this
+   * writer is closed.
+   */
+  public File getTempFile()
+  {
+    return tempFile;
+  }
+
+  /**
+   * Write data at the given offset.
+   *
+   * @param offset The offset in the file.
+   * @param buf    The data.
+   * @param off    Where the data begin in <i>buf</i>.
+   * @param len    How many bytes to write.
+   * @throws IOException If the data cannot be written.
+   */
+  public void write(long offset, byte[] buf, int off, int len)
+    throws IOException
+  {
+    int start = off;
+    if (buffer.position() > 0 && offset != bufferOffset + buffer.position())
+      flush();
+    if (buffer.position() == 0)
+      bufferOffset = offset;
+    while (len > 0)
+      {
+        int n = Math.min(len, buffer.remaining());
+        buffer.put(buf, off, n);
+        off += n;
+        len -= n;
+        if (!buffer.hasRemaining())
+          flush();
+      }
+    end = Math.max(end, bufferOffset + buffer.position());
+    if (offset <= prefix)
+      prefix = Math.max(prefix, offset + (off - start));
+    if (keepPartial && prefix - checkpoint >= CHECKPOINT_INTERVAL)
+      checkpoint();
+  }
+
+  /**
+   * Copy <i>count</i> bytes from the start of <i>src</i> to the end of
+   * what has been written, with {@link FileChannel#transferTo}, so the
+   * data never pass through this JVM's heap and the platform may copy
+   * them however it copies files fastest. Holes are not made; sparse
+   * files should be written with {@link #write(long,byte[],int,int)}.
+   *
+   * @param src   The channel to copy from.
+   * @param count The number of bytes to copy.
+   * @return The number of bytes copied, which is less than
+   *    <i>count</i> only if <i>src</i> is shorter.
+   * @throws IOException If the data cannot be copied.
+   */
+  public long transferFrom(FileChannel src, long count) throws IOException
+  {
+    if (buffer.position() > 0)
+      flush();
+    long start = end;
+    long done = 0;
+    channel.position(start);
+    while (done < count)
+      {
+        long n = src.transferTo(done, count - done, channel);
+        if (n <= 0)
+          break;
+        done += n;
+      }
+    end = start + done;
+    bufferOffset = end;
+    if (start <= prefix)
+      prefix = Math.max(prefix, end);
+    return done;
+  }
+
+  /**
+   * Write out buffered data, trim the file to the length actually
+   * written, and close it. Closing twice is harmless.
+   *
+   * @throws IOException If the data cannot be written.
+   */
+  public void close() throws IOException
+  {
+    if (closed)
+      return;
+    closed = true;
+    try
+      {
+        flush();
+        end = Math.max(end, bufferOffset);
+        if (file.length() != end)
+          file.setLength(end);
+      }
+    finally
+      {
+        file.close();
+      }
+  }
+
+  /**
+   * Close this writer after a failed transfer. If partial files are
+   * kept and this transfer got further than the last one, the
+   * temporary file is kept in place of the older partial file;
+   * otherwise it is thrown away.
+   */
+  public void abort()
+  {
+    boolean written = true;
+    try
+      {
+        close();
+      }
+    catch (IOException ioe)
+      {
+        written = false;
+      }
+    long before = previous != null ? previous.getPrefix() : 0;
+    if (keepPartial && written && prefix > before)
+      {
+        try
+          {
+            new PartialFile(target, tempFile, prefix).save();
+            if (previous != null)
+              previous.getData().delete();
+            return;
+          }
+        catch (IOException ignore)
+          {
+          }
+      }
+    discard();
+  }
+
+  /**
+   * Close this writer and throw away the temporary file, leaving any
+   * older partial file as it was. This is for files that will be sent
+   * again at once, whose basis must not change in between.
+   */
+  public void discard()
+  {
+    try
+      {
+        close();
+      }
+    catch (IOException ignore)
+      {
+      }
+    tempFile.delete();
+    if (!keepPartial || checkpoint == (previous != null ? previous.getPrefix() : 0))
+      return;
+    try
+      {
+        if (previous != null)
+          previous.save();
+        else
+          PartialFile.remove(target);
+      }
+    catch (IOException ioe)
+      {
+        PartialFile.remove(target);
+      }
+  }
+
+  /**
+   * Close this writer if it is not closed, and rename the temporary
+   * file to the target.
+   *
+   * @throws IOException If the file cannot be written or renamed.
+   */
+  public void commit() throws IOException
+  {
+    close();
+    if (!tempFile.renameTo(target))
+      {
+        // Windows will not rename over an existing file.
+        if (!target.delete() || !tempFile.renameTo(target))
+          throw new IOException("cannot rename " + tempFile + " to " + target);
+      }
+    if (keepPartial)
+      {
+        PartialFile.remove(target);
+        if (previous != null)
+          previous.getData().delete();
+      }
+  }
+
+  // Own methods.
+  // -------------------------------------------------------------------------
+
+  /**
+   * Force what has been written to disk, then record it, so that a
+   * crash cannot leave a record promising data that were never
+   * written. The previous partial file is still being read from, so
+   * the record names it for removal rather than it being removed now.
+   */
+  private void checkpoint() throws IOException
+  {
+    flush();
+    channel.force(false);
+    new PartialFile(target, tempFile, prefix,
+                    previous != null ? previous.getData() : null).save();
+    checkpoint = prefix;
+  }
+
+  private void flush() throws IOException
+  {
+    buffer.flip();
+    int start = buffer.position();
+    int limit = buffer.limit();
+    if (!sparse)
+      {
+        writeFully(start, limit);
+      }
+    else
+      {
+        int i = start;
+        while (i < limit)
+          {
+            int n = Math.min(SPARSE_BLOCK, limit - i);
+            if (isZero(i, n))
+              {
+                i += n;
+                continue;
+              }
+            int j = i + n;
+            while (j < limit)
+              {
+                n = Math.min(SPARSE_BLOCK, limit - j);
+                if (isZero(j, n))
+                  break;
+                j += n;
+              }
+            writeFully(i, j);
+            i = j;
+          }
+      }
+    end = Math.max(end, bufferOffset + (limit - start));
+    bufferOffset += limit - start;
+    buffer.clear();
+  }
+
+  /**
+   * Write the part of the buffer between <i>from</i> and <i>to</i> to
+   * its place in the file.
+   */
+  private void writeFully(int from, int to) throws IOException
+  {
+    ByteBuffer b = buffer.duplicate();
+    b.limit(to).position(from);
+    long pos = bufferOffset + from;
+    while (b.hasRemaining())
+      pos += channel.write(b, pos);
+  }
+
+  private boolean isZero(int off, int len)
+  {
+    int i = off;
+    for (int stop = off + len - 7; i < stop; i += 8)
+      if (buffer.getLong(i) != 0)
+        return false;
+    for (; i < off + len; i++)
+      if (buffer.get(i) != 0)
+        return false;
+    return true;
+  }
+}
@@ -0,0 +1,149 @@
+/* vim:set softtabstop=3 shiftwidth=3 tabstop=3 expandtab tw=72:
+   $Id$
+  
+   ChunkerTest: test of content-defined chunking.
+   Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+  
+   This file is a part of Jarsync
+  
+   Jarsync is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the
+   Free Software Foundation; either version 2 of the License, or (at
+   your option) any later version.
+  
+   Jarsync is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+   General Public License for more details.
+  
+   You should have received a copy of the GNU General Public License
+   along with Jarsync; if not, write to the
+  
+      Free Software Foundation, Inc.,
+      59 Temple Place, Suite 330,
+      Boston, MA  02111-1307
+      USA
+  
+   Linking Jarsync statically or dynamically with other modules is
+   making a combined work based on Jarsync.  Thus, the terms and
+   conditions of the GNU General Public License cover the whole
+   combination.
+  
+   As a special exception, the copyright holders of Jarsync give you
+   permission to link Jarsync with independent modules to produce an
+   executable, regardless of the license terms of these independent
+   modules, and to copy and distribute the resulting executable under
+   terms of your choice, provided that you also meet, for each linked
+   independent module, the terms and conditions of the license of that
+   module.  An independent module is a module which is not derived from
+   or based on Jarsync.  If you modify Jarsync, you may extend this
+   exception to your version of it, but you are not obligated to do so.
+   If you do not wish to do so, delete this exception statement from
+   your version.  */
+
+
+// Tags: JARSYNC
+
+package gnu.testlet.org.metastatic.rsync;
+
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.metastatic.rsync.Checksum32;
+import org.metastatic.rsync.ChecksumPair;
+import org.metastatic.rsync.Chunker;
+import org.metastatic.rsync.Configuration;
+import org.metastatic.rsync.DataBlock;
+import org.metastatic.rsync.Delta;
+import org.metastatic.rsync.Offsets;
+
+/**
+ * Check that {@link Chunker} covers its input with chunks of the right
+ * sizes, and that a small edit leaves most chunks matching.
+ *
+ * @version $Revision $
+ */
+public class ChunkerTest
+{
+
+  // Fields.
+  // -----------------------------------------------------------------------
+
+  Random rand = new Random(1L);
+
+  // Instance methods.
+  // -----------------------------------------------------------------------
+
+  @Test
+  public void test() throws Exception
+  {
+    Configuration conf = new Configuration();
+    conf.strongSum = MessageDigest.getInstance("MD5");
+    conf.strongSumLength = conf.strongSum.getDigestLength();
+    conf.weakSum = new Checksum32();
+    conf.blockLength = 1024;
+    Chunker chunker = new Chunker(conf);
+
+    byte[] data = new byte[256 * 1024];
+    rand.nextBytes(data);
+    List<ChecksumPair> sums = chunker.generateSums(data);
+    long offset = 0;
+    for (int i = 0; i < sums.size(); i++)
+      {
+        ChecksumPair p = sums.get(i);
+        Assert.assertEquals(offset, p.getOffset());
+        Assert.assertTrue(p.getLength() <= chunker.getMaxSize());
+        if (i < sums.size() - 1)
+          Assert.assertTrue(p.getLength() >= chunker.getMinSize());
+        offset += p.getLength();
+      }
+    Assert.assertEquals(data.length, offset);
+    int average = data.length / sums.size();
+    Assert.assertTrue("average " + average, average > 512 && average < 2048);
+
+    // Insert a byte near the front and delete a run in the middle.
+    byte[] edited = new byte[data.length];
+    System.arraycopy(data, 0, edited, 0, 100);
+    edited[100] = 42;
+    System.arraycopy(data, 100, edited, 101, 100000);
+    System.arraycopy(data, 100200, edited, 100101, data.length - 100200);
+    int len = data.length - 99;
+
+    // Match from the middle of a larger buffer, so that offsets into
+    // the buffer and into the new data differ.
+    int off = 7;
+    byte[] buf = new byte[off + len + 5];
+    System.arraycopy(edited, 0, buf, off, len);
+    List<Delta> deltas = chunker.match(sums, buf, off, len);
+    long matched = 0;
+    offset = 0;
+    for (Delta d : deltas)
+      {
+        Assert.assertEquals(offset, d.getWriteOffset());
+        if (d instanceof Offsets)
+          {
+            Offsets o = (Offsets) d;
+            for (int i = 0; i < o.getBlockLength(); i++)
+              Assert.assertEquals(data[(int) o.getOldOffset() + i],
+                                  edited[(int) o.getNewOffset() + i]);
+            matched += o.getBlockLength();
+          }
+        else
+          {
+            DataBlock b = (DataBlock) d;
+            byte[] bytes = b.getData();
+            Assert.assertEquals(b.getBlockLength(), bytes.length);
+            for (int i = 0; i < bytes.length; i++)
+              Assert.assertEquals(edited[(int) b.getWriteOffset() + i],
+                                  bytes[i]);
+          }
+        offset += d.getBlockLength();
+      }
+    Assert.assertEquals(len, offset);
+    Assert.assertTrue("matched " + matched, matched > len * 9 / 10);
+  }
+}
@@ -0,0 +1,178 @@
+/* vim:set softtabstop=3 shiftwidth=3 tabstop=3 expandtab tw=72:
+   $Id$
+  
+   CompactFileListTest: test of the columnar file list.
+   Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+  
+   This file is a part of Jarsync
+  
+   Jarsync is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the
+   Free Software Foundation; either version 2 of the License, or (at
+   your option) any later version.
+  
+   Jarsync is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+   General Public License for more details.
+  
+   You should have received a copy of the GNU General Public License
+   along with Jarsync; if not, write to the
+  
+      Free Software Foundation, Inc.,
+      59 Temple Place, Suite 330,
+      Boston, MA  02111-1307
+      USA
+  
+   Linking Jarsync statically or dynamically with other modules is
+   making a combined work based on Jarsync.  Thus, the terms and
+   conditions of the GNU General Public License cover the whole
+   combination.
+  
+   As a special exception, the copyright holders of Jarsync give you
+   permission to link Jarsync with independent modules to produce an
+   executable, regardless of the license terms of these independent
+   modules, and to copy and distribute the resulting executable under
+   terms of your choice, provided that you also meet, for each linked
+   independent module, the terms and conditions of the license of that
+   module.  An independent module is a module which is not derived from
+   or based on Jarsync.  If you modify Jarsync, you may extend this
+   exception to your version of it, but you are not obligated to do so.
+   If you do not wish to do so, delete this exception statement from
+   your version.  */
+
+
+// Tags: JARSYNC
+
+package gnu.testlet.org.metastatic.rsync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.metastatic.rsync.v2.CompactFileList;
+import org.metastatic.rsync.v2.FileInfo;
+
+/**
+ * Check that {@link CompactFileList} gives back what was put into it,
+ * including after insertions and removals in the middle of a run of
+ * prefix-compressed names.
+ *
+ * @version $Revision $
+ */
+public class CompactFileListTest
+{
+
+  // Fields.
+  // -----------------------------------------------------------------------
+
+  Random rand = new Random(1L);
+
+  // Instance methods.
+  // -----------------------------------------------------------------------
+
+  @Test
+  public void test()
+  {
+    CompactFileList flist = new CompactFileList(4);
+    List<FileInfo> expect = new ArrayList<FileInfo>();
+    for (int i = 0; i < 2000; i++)
+      {
+        FileInfo f = randomFile(i);
+        flist.add(f);
+        expect.add(f);
+      }
+    check(expect, flist);
+
+    for (int i = 0; i < 500; i++)
+      {
+        int j = rand.nextInt(expect.size());
+        switch (rand.nextInt(3))
+          {
+          case 0:
+            expect.remove(j);
+            flist.remove(j);
+            break;
+          case 1:
+            FileInfo f = randomFile(rand.nextInt());
+            expect.add(j, f);
+            flist.add(j, f);
+            break;
+          default:
+            f = randomFile(rand.nextInt());
+            f.basename = rand.nextBoolean() ? f.basename
+              : expect.get(j).basename;
+            expect.set(j, f);
+            flist.set(j, f);
+          }
+      }
+    check(expect, flist);
+    Assert.assertTrue(flist.directoryCount() <= 10);
+  }
+
+  @Test
+  public void testRenameInPlace()
+  {
+    CompactFileList flist = new CompactFileList(4);
+    List<FileInfo> expect = new ArrayList<FileInfo>();
+    for (int i = 0; i < 100; i++)
+      {
+        FileInfo f = randomFile(i);
+        flist.add(f);
+        expect.add(f);
+      }
+    // Enough renames that the name table must reclaim old names.
+    for (int i = 0; i < 20000; i++)
+      {
+        int j = rand.nextInt(expect.size());
+        FileInfo f = randomFile(rand.nextInt());
+        expect.set(j, f);
+        flist.set(j, f);
+      }
+    check(expect, flist);
+    flist.trimToSize();
+    check(expect, flist);
+  }
+
+  // Own methods.
+  // -----------------------------------------------------------------------
+
+  private FileInfo randomFile(int i)
+  {
+    FileInfo f = new FileInfo();
+    f.dirname = "dir/sub" + rand.nextInt(10);
+    f.basename = "file-" + (i / 7) + (rand.nextBoolean() ? "-\u00e9" : "")
+      + "-" + i;
+    f.mode = rand.nextInt();
+    f.modtime = rand.nextInt();
+    f.length = rand.nextLong();
+    f.uid = rand.nextInt();
+    f.gid = rand.nextInt();
+    f.inode = rand.nextInt();
+    if (rand.nextInt(10) == 0)
+      f.link = "target" + i;
+    return f;
+  }
+
+  private void check(List<FileInfo> expect, CompactFileList flist)
+  {
+    Assert.assertEquals(expect.size(), flist.size());
+    for (int i = 0; i < expect.size(); i++)
+      {
+        FileInfo a = expect.get(i);
+        FileInfo b = flist.get(i);
+        Assert.assertEquals(a.basename, b.basename);
+        Assert.assertEquals(a.dirname, b.dirname);
+        Assert.assertEquals(a.link, b.link);
+        Assert.assertEquals(a.mode, b.mode);
+        Assert.assertEquals(a.modtime, b.modtime);
+        Assert.assertEquals(a.length, b.length);
+        Assert.assertEquals(a.uid, b.uid);
+        Assert.assertEquals(a.gid, b.gid);
+        Assert.assertEquals(a.inode, b.inode);
+      }
+  }
+}
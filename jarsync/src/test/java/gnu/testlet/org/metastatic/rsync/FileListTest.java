@@ -0,0 +1,139 @@
+/* vim:set softtabstop=3 shiftwidth=3 tabstop=3 expandtab tw=72:
+   $Id$
+  
+   FileListTest: test of sending and receiving file lists.
+   Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+  
+   This file is a part of Jarsync
+  
+   Jarsync is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the
+   Free Software Foundation; either version 2 of the License, or (at
+   your option) any later version.
+  
+   Jarsync is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+   General Public License for more details.
+  
+   You should have received a copy of the GNU General Public License
+   along with Jarsync; if not, write to the
+  
+      Free Software Foundation, Inc.,
+      59 Temple Place, Suite 330,
+      Boston, MA  02111-1307
+      USA
+  
+   Linking Jarsync statically or dynamically with other modules is
+   making a combined work based on Jarsync.  Thus, the terms and
+   conditions of the GNU General Public License cover the whole
+   combination.
+  
+   As a special exception, the copyright holders of Jarsync give you
+   permission to link Jarsync with independent modules to produce an
+   executable, regardless of the license terms of these independent
+   modules, and to copy and distribute the resulting executable under
+   terms of your choice, provided that you also meet, for each linked
+   independent module, the terms and conditions of the license of that
+   module.  An independent module is a module which is not derived from
+   or based on Jarsync.  If you modify Jarsync, you may extend this
+   exception to your version of it, but you are not obligated to do so.
+   If you do not wish to do so, delete this exception statement from
+   your version.  */
+
+
+// Tags: JARSYNC
+
+package gnu.testlet.org.metastatic.rsync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.metastatic.rsync.v2.Constants;
+import org.metastatic.rsync.v2.FileInfo;
+import org.metastatic.rsync.v2.FileList;
+import org.metastatic.rsync.v2.MultiplexedInputStream;
+import org.metastatic.rsync.v2.MultiplexedOutputStream;
+import org.metastatic.rsync.v2.Options;
+import org.metastatic.rsync.v2.Statistics;
+
+/**
+ * Check that a file list holding a symbolic link reads back as it was
+ * written, with the link's target, and that the stream stays in step
+ * after it.
+ *
+ * @version $Revision $
+ */
+public class FileListTest
+{
+
+  // Instance methods.
+  // -----------------------------------------------------------------------
+
+  @Test
+  public void testSymlink() throws Exception
+  {
+    File dir = Files.createTempDirectory("flist").toFile();
+    try
+      {
+        new FileOutputStream(new File(dir, "a")).close();
+        FileOutputStream out = new FileOutputStream(new File(dir, "c"));
+        out.write(new byte[100]);
+        out.close();
+        Files.createSymbolicLink(new File(dir, "b").toPath(),
+                                 new File("a").toPath());
+
+        Options options = new Options();
+        options.recurse = true;
+        options.preserve_links = true;
+        options.preserve_perms = true;
+        options.always_checksum = true;
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        FileList sender =
+          new FileList(null, new MultiplexedOutputStream(bout, false),
+                       Constants.PROTOCOL_VERSION, false, options);
+        sender.setStatistics(new Statistics());
+        List sent = sender.createFileList(new String[] { dir.getPath() },
+                                          0, 1);
+        sender.sendFileList(sent);
+
+        FileList receiver =
+          new FileList(new MultiplexedInputStream(
+                         new ByteArrayInputStream(bout.toByteArray()), false),
+                       null, Constants.PROTOCOL_VERSION, false, options);
+        receiver.setStatistics(new Statistics());
+        List got = receiver.receiveFileList();
+
+        Assert.assertEquals(sent.size(), got.size());
+        boolean sawLink = false;
+        for (int i = 0; i < sent.size(); i++)
+          {
+            FileInfo f1 = (FileInfo) sent.get(i);
+            FileInfo f2 = (FileInfo) got.get(i);
+            Assert.assertEquals(f1.filename(), f2.filename());
+            Assert.assertEquals(f1.mode, f2.mode);
+            Assert.assertEquals(f1.length, f2.length);
+            if (f1.S_ISLNK())
+              {
+                Assert.assertEquals("a", f2.link);
+                sawLink = true;
+              }
+          }
+        Assert.assertTrue(sawLink);
+        Assert.assertEquals(100, receiver.getStatistics().total_size);
+      }
+    finally
+      {
+        for (File f : dir.listFiles())
+          f.delete();
+        dir.delete();
+      }
+  }
+}
@@ -277,6 +277,29 @@ public class PngEncoderB extends PngEncoder
         crc.update( allPal );
         crcValue = crc.getValue();
         bytePos = writeInt4( (int) crcValue, bytePos );
+
+        if (icm.hasAlpha())
+        {
+            writeTransparency( icm );
+        }
+    }
+
+    /**
+     * Write a PNG "tRNS" chunk holding the alpha of each palette entry.
+     */
+    protected void writeTransparency( IndexColorModel icm )
+    {
+        byte[] alphaPal = new byte[icm.getMapSize()];
+
+        icm.getAlphas( alphaPal );
+        bytePos = writeInt4( alphaPal.length, bytePos );
+        bytePos = writeString( "tRNS", bytePos );
+        crc.reset();
+        crc.update("tRNS".getBytes());
+        bytePos = writeBytes( alphaPal, bytePos );
+        crc.update( alphaPal );
+        crcValue = crc.getValue();
+        bytePos = writeInt4( (int) crcValue, bytePos );
     }
 
     /**
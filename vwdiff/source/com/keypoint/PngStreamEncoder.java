@@ -0,0 +1,475 @@
+package com.keypoint;
+
+/**
+ * PngStreamEncoder writes a Java BufferedImage to an OutputStream as a
+ * PNG file, a band of rows at a time, without holding the whole image
+ * in memory. Images with an eight-bit IndexColorModel are written as
+ * indexed-color PNGs, with a PLTE chunk and, if the palette has alpha,
+ * a tRNS chunk; all others are written as RGB or RGBA.
+ *
+ * Large images are compressed in parallel, as pigz does: the image is
+ * cut into bands of rows, each band is deflated on its own with the end
+ * of the band before it as a preset dictionary and ended with a sync
+ * flush, and the bands are written in order as IDAT chunks. The result
+ * is a single ordinary zlib stream. Deflaters are pooled and reused.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * A copy of the GNU LGPL may be found at
+ * http://www.gnu.org/copyleft/lesser.html,
+ */
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+public class PngStreamEncoder
+{
+    /** The number of uncompressed bytes in a band, about. */
+    protected static final int BAND_SIZE = 128 * 1024;
+
+    /** The deflate window; no more dictionary than this is useful. */
+    protected static final int WINDOW = 32768;
+
+    private static final byte[] SIGNATURE = { -119, 80, 78, 71, 13, 10, 26, 10 };
+
+    /** Idle deflaters, by compression level (plus one). */
+    private static final LinkedList[] deflaters = new LinkedList[11];
+
+    private static ExecutorService executor;
+
+    protected OutputStream out;
+    protected int compressionLevel;
+    protected int threads;
+    protected CRC32 crc = new CRC32();
+
+    /**
+     * Class constructor
+     *
+     * @param out The stream to write to.
+     */
+    public PngStreamEncoder( OutputStream out )
+    {
+        this( out, Deflater.DEFAULT_COMPRESSION );
+    }
+
+    /**
+     * Class constructor specifying the compression level.
+     *
+     * @param out The stream to write to.
+     * @param compressionLevel 0 (none) to 9 (most), or -1 for the default.
+     */
+    public PngStreamEncoder( OutputStream out, int compressionLevel )
+    {
+        this.out = out;
+        setCompressionLevel( compressionLevel );
+        threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Set the compression level to use.
+     *
+     * @param level 0 (none) to 9 (most), or -1 for the default.
+     */
+    public void setCompressionLevel( int level )
+    {
+        if (level >= -1 && level <= 9)
+        {
+            this.compressionLevel = level;
+        }
+    }
+
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    /**
+     * Set the most bands to compress at once. With one, everything is
+     * done on the calling thread.
+     */
+    public void setThreads( int threads )
+    {
+        this.threads = Math.max( 1, threads );
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * Write an image as a PNG.
+     *
+     * @param image The image.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void encode( BufferedImage image ) throws IOException
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ColorModel cm = image.getColorModel();
+        Raster raster = image.getRaster();
+        boolean indexed = (cm instanceof IndexColorModel)
+            && cm.getPixelSize() <= 8
+            && raster.getTransferType() == DataBuffer.TYPE_BYTE
+            && raster.getNumDataElements() == 1;
+        int bytesPerPixel = indexed ? 1 : (cm.hasAlpha() ? 4 : 3);
+
+        out.write( SIGNATURE );
+        writeHeader( width, height, indexed ? 3 : (cm.hasAlpha() ? 6 : 2) );
+        if (indexed)
+        {
+            writePalette( (IndexColorModel) cm );
+        }
+        writeImageData( image, bytesPerPixel );
+        writeChunk( "IEND", new byte[0], 0, 0 );
+        out.flush();
+    }
+
+    /**
+     * Write the "IHDR" chunk.
+     */
+    protected void writeHeader( int width, int height, int colorType )
+        throws IOException
+    {
+        byte[] b = new byte[13];
+
+        putInt4( b, 0, width );
+        putInt4( b, 4, height );
+        b[8] = 8;                   // bit depth
+        b[9] = (byte) colorType;
+        b[10] = 0;                  // compression method
+        b[11] = 0;                  // filter method
+        b[12] = 0;                  // no interlace
+        writeChunk( "IHDR", b, 0, b.length );
+    }
+
+    /**
+     * Write the "PLTE" chunk, with only as many entries as the palette
+     * has, and a "tRNS" chunk if the palette has alpha.
+     */
+    protected void writePalette( IndexColorModel icm ) throws IOException
+    {
+        int n = icm.getMapSize();
+        byte[] r = new byte[n];
+        byte[] g = new byte[n];
+        byte[] b = new byte[n];
+        byte[] pal = new byte[n * 3];
+
+        icm.getReds( r );
+        icm.getGreens( g );
+        icm.getBlues( b );
+        for (int i = 0; i < n; i++)
+        {
+            pal[i*3  ] = r[i];
+            pal[i*3+1] = g[i];
+            pal[i*3+2] = b[i];
+        }
+        writeChunk( "PLTE", pal, 0, pal.length );
+        if (icm.hasAlpha())
+        {
+            byte[] a = new byte[n];
+            icm.getAlphas( a );
+            writeChunk( "tRNS", a, 0, n );
+        }
+    }
+
+    /**
+     * Write the image data as a zlib stream over one IDAT chunk per
+     * band. At most twice as many bands as there are threads are in
+     * memory at once.
+     */
+    protected void writeImageData( BufferedImage image, int bytesPerPixel )
+        throws IOException
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowBytes = width * bytesPerPixel + 1;
+        int bandRows = Math.max( 1, BAND_SIZE / rowBytes );
+        boolean parallel = threads > 1 && height > bandRows;
+        Adler32 adler = new Adler32();
+        LinkedList pending = new LinkedList();
+        byte[] previous = null;
+        boolean first = true;
+
+        try
+        {
+            for (int y = 0; y < height; y += bandRows)
+            {
+                int n = Math.min( bandRows, height - y );
+                byte[] raw = getRows( image, y, n, bytesPerPixel );
+                adler.update( raw );
+                Band band = new Band( raw, previous, y + n == height );
+                previous = raw;
+                if (parallel)
+                {
+                    pending.add( executor().submit( band ) );
+                    while (pending.size() > threads * 2)
+                    {
+                        Future f = (Future) pending.removeFirst();
+                        writeData( (byte[]) f.get(), first, false, adler );
+                        first = false;
+                    }
+                }
+                else
+                {
+                    writeData( (byte[]) band.call(), first, y + n == height, adler );
+                    first = false;
+                }
+            }
+            while (!pending.isEmpty())
+            {
+                Future f = (Future) pending.removeFirst();
+                writeData( (byte[]) f.get(), first, pending.isEmpty(), adler );
+                first = false;
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            throw new InterruptedIOException( "interrupted while encoding" );
+        }
+        catch (ExecutionException ee)
+        {
+            IOException ioe = new IOException( "encoding failed" );
+            ioe.initCause( ee.getCause() );
+            throw ioe;
+        }
+        finally
+        {
+            for (Iterator it = pending.iterator(); it.hasNext(); )
+            {
+                ((Future) it.next()).cancel( false );
+            }
+        }
+    }
+
+    /**
+     * Write one IDAT chunk: the zlib header first, the Adler-32 of all
+     * the image data last.
+     */
+    protected void writeData( byte[] data, boolean first, boolean last,
+                              Adler32 adler ) throws IOException
+    {
+        int len = data.length + (first ? 2 : 0) + (last ? 4 : 0);
+        byte[] b = new byte[4];
+
+        putInt4( b, 0, len );
+        out.write( b );
+        crc.reset();
+        writeCrc( "IDAT".getBytes(), 0, 4 );
+        if (first)
+        {
+            writeCrc( zlibHeader(), 0, 2 );
+        }
+        writeCrc( data, 0, data.length );
+        if (last)
+        {
+            putInt4( b, 0, (int) adler.getValue() );
+            writeCrc( b, 0, 4 );
+        }
+        putInt4( b, 0, (int) crc.getValue() );
+        out.write( b );
+    }
+
+    /**
+     * Write a whole chunk.
+     */
+    protected void writeChunk( String type, byte[] data, int off, int len )
+        throws IOException
+    {
+        byte[] b = new byte[4];
+
+        putInt4( b, 0, len );
+        out.write( b );
+        crc.reset();
+        writeCrc( type.getBytes(), 0, 4 );
+        writeCrc( data, off, len );
+        putInt4( b, 0, (int) crc.getValue() );
+        out.write( b );
+    }
+
+    private void writeCrc( byte[] b, int off, int len ) throws IOException
+    {
+        out.write( b, off, len );
+        crc.update( b, off, len );
+    }
+
+    private byte[] zlibHeader()
+    {
+        int level = compressionLevel == -1 ? 6 : compressionLevel;
+        int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int cmf = 0x78;             // deflate, 32K window
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[] { (byte) cmf, (byte) flg };
+    }
+
+    /**
+     * Return <i>n</i> rows starting at <i>y</i> as raw scanlines, each
+     * led by a filter byte of none.
+     */
+    private static byte[] getRows( BufferedImage image, int y, int n,
+                                   int bytesPerPixel )
+    {
+        int width = image.getWidth();
+        int rowBytes = width * bytesPerPixel + 1;
+        byte[] raw = new byte[rowBytes * n];
+
+        if (bytesPerPixel == 1)
+        {
+            byte[] pixels = (byte[]) image.getRaster().getDataElements(
+                0, y, width, n, null );
+            for (int i = 0; i < n; i++)
+            {
+                System.arraycopy( pixels, i * width, raw, i * rowBytes + 1, width );
+            }
+            return raw;
+        }
+
+        int[] argb = image.getRGB( 0, y, width, n, null, 0, width );
+        int pos = 0;
+        for (int i = 0; i < argb.length; i++)
+        {
+            if (i % width == 0)
+            {
+                raw[pos++] = 0;
+            }
+            raw[pos++] = (byte) (argb[i] >> 16);
+            raw[pos++] = (byte) (argb[i] >> 8);
+            raw[pos++] = (byte) argb[i];
+            if (bytesPerPixel == 4)
+            {
+                raw[pos++] = (byte) (argb[i] >>> 24);
+            }
+        }
+        return raw;
+    }
+
+    private static void putInt4( byte[] b, int off, int n )
+    {
+        b[off  ] = (byte) (n >>> 24);
+        b[off+1] = (byte) (n >>> 16);
+        b[off+2] = (byte) (n >>> 8);
+        b[off+3] = (byte) n;
+    }
+
+    private static synchronized ExecutorService executor()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory()
+                {
+                    public Thread newThread( Runnable r )
+                    {
+                        Thread t = new Thread( r, "png-deflate" );
+                        t.setDaemon( true );
+                        return t;
+                    }
+                } );
+        }
+        return executor;
+    }
+
+    private static Deflater takeDeflater( int level )
+    {
+        synchronized (deflaters)
+        {
+            LinkedList idle = deflaters[level + 1];
+            if (idle != null && !idle.isEmpty())
+            {
+                return (Deflater) idle.removeFirst();
+            }
+        }
+        return new Deflater( level, true );
+    }
+
+    private static void giveDeflater( int level, Deflater d )
+    {
+        d.reset();
+        synchronized (deflaters)
+        {
+            if (deflaters[level + 1] == null)
+            {
+                deflaters[level + 1] = new LinkedList();
+            }
+            deflaters[level + 1].add( d );
+        }
+    }
+
+    /**
+     * Deflates one band, primed with the last window of the band before
+     * it. Every band but the last ends on a byte boundary with a sync
+     * flush, so that the next band's output can follow it directly.
+     */
+    private class Band implements Callable
+    {
+        private final byte[] raw;
+        private final byte[] previous;
+        private final boolean last;
+
+        Band( byte[] raw, byte[] previous, boolean last )
+        {
+            this.raw = raw;
+            this.previous = previous;
+            this.last = last;
+        }
+
+        public Object call()
+        {
+            int level = compressionLevel;
+            Deflater d = takeDeflater( level );
+            ByteArrayOutputStream bout = new ByteArrayOutputStream( raw.length / 4 + 64 );
+            byte[] buf = new byte[8192];
+            int n;
+
+            try
+            {
+                if (previous != null)
+                {
+                    int len = Math.min( WINDOW, previous.length );
+                    d.setDictionary( previous, previous.length - len, len );
+                }
+                d.setInput( raw );
+                if (last)
+                {
+                    d.finish();
+                    while (!d.finished())
+                    {
+                        n = d.deflate( buf );
+                        bout.write( buf, 0, n );
+                    }
+                }
+                else
+                {
+                    do
+                    {
+                        n = d.deflate( buf, 0, buf.length, Deflater.SYNC_FLUSH );
+                        bout.write( buf, 0, n );
+                    }
+                    while (n == buf.length);
+                }
+            }
+            finally
+            {
+                giveDeflater( level, d );
+            }
+            return bout.toByteArray();
+        }
+    }
+}
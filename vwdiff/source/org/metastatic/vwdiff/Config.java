@@ -31,11 +31,9 @@ import java.awt.Color;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -43,10 +41,15 @@ import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
 
 import org.metastatic.rsync.ParameterException;
 import org.metastatic.rsync.ParameterListener;
@@ -56,6 +59,8 @@ class Config implements ParameterListener {
    // Fields.
    // -----------------------------------------------------------------------
 
+   private static final Logger logger = Logger.getLogger(Config.class);
+
    public static final String STYLESHEET =
       "body { background-color: white; color: black; }\n" +
       "tr.header { background-color: #eee; }" +
@@ -72,11 +77,20 @@ class Config implements ParameterListener {
    String logfile;
    int logsize;
    String datafile;
+   String datadir;
    String stylesheet = STYLESHEET;
    boolean debug;
+   int threads;
+   int hostConnections;
 
-   LinkedHashMap targets;
+   /**
+    * The targets by name, in the order configured. Handler threads, the
+    * scheduler and a reload all use it at once, so it is synchronized;
+    * iterate over {@link #targetList()} or {@link #targetNames()}.
+    */
+   Map targets;
    Target current;
+   Store store;
 
    // Constructor.
    // -----------------------------------------------------------------------
@@ -84,20 +98,24 @@ class Config implements ParameterListener {
    public Config() {
       port = 8008;
       debug = false;
-      targets = new LinkedHashMap();
+      targets = Collections.synchronizedMap(new LinkedHashMap());
       datafile = "vwdiff.dat.gz";
+      datadir = "vwdiff.data";
       logsize = 512;
+      threads = 8;
+      hostConnections = 2;
    }
 
    // ParameterListener methods.
    // -----------------------------------------------------------------------
 
    public void beginSection(String name) {
-      if (targets.containsKey(name)) {
+      synchronized (targets) {
          current = (Target) targets.get(name);
-      } else {
-         current = new Target(name);
-         targets.put(name, current);
+         if (current == null) {
+            current = new Target(name);
+            targets.put(name, current);
+         }
       }
    }
 
@@ -135,6 +153,8 @@ class Config implements ParameterListener {
             }
          } else if (name.equalsIgnoreCase("data file")) {
             datafile = value;
+         } else if (name.equalsIgnoreCase("data directory")) {
+            datadir = value;
          } else if (name.equalsIgnoreCase("stylesheet")) {
             try {
                FileReader fr = new FileReader(value);
@@ -149,6 +169,10 @@ class Config implements ParameterListener {
                throw new IllegalArgumentException("bad stylesheet: " +
                                                   ioe.getMessage());
             }
+         } else if (name.equalsIgnoreCase("threads")) {
+            threads = makeCount(value, "threads");
+         } else if (name.equalsIgnoreCase("host connections")) {
+            hostConnections = makeCount(value, "host connections");
          } else if (name.equalsIgnoreCase("debug")) {
             debug = value.equalsIgnoreCase("true")
                  || value.equalsIgnoreCase("yes");
@@ -195,6 +219,13 @@ class Config implements ParameterListener {
             } catch (NumberFormatException nfe) {
                throw new IllegalArgumentException("malformed sum size");
             }
+         } else if (name.equalsIgnoreCase("chunking")) {
+            if (value.equalsIgnoreCase("content"))
+               current.setContentChunking(true);
+            else if (value.equalsIgnoreCase("fixed"))
+               current.setContentChunking(false);
+            else
+               throw new IllegalArgumentException("bad chunking");
          } else if (name.equalsIgnoreCase("HTTP user")) {
             current.setHTTPUser(value);
          } else if (name.equalsIgnoreCase("HTTP password")) {
@@ -219,14 +250,68 @@ class Config implements ParameterListener {
       }
    }
 
+   /**
+    * Open the data directory and read what it holds about each target.
+    * If the directory is new and an old-style data file exists, the
+    * targets are taken from that file instead, and written to the
+    * directory on the next {@link #store()}.
+    */
    public void mergeSaved() throws IOException, ClassNotFoundException {
+      store = new Store(new File(datadir));
+      if (store.isEmpty() && new File(datafile).exists()) {
+         mergeDataFile();
+         return;
+      }
+      for (Iterator it = targetList().iterator(); it.hasNext(); ) {
+         Target t = (Target) it.next();
+         try {
+            store.load(t);
+         } catch (IOException ioe) {
+            logger.warn("could not load [" + t.getName() + "]: "
+                        + ioe.getMessage());
+         }
+      }
+   }
+
+   /**
+    * Write the targets that have changed since they were last written.
+    */
+   public void store() throws IOException {
+      if (store != null)
+         store.storeChanged(targetList());
+   }
+
+   /**
+    * Return a copy of the targets, which may be iterated over while
+    * the configuration is reloaded.
+    */
+   List targetList() {
+      synchronized (targets) {
+         return new ArrayList(targets.values());
+      }
+   }
+
+   /**
+    * Return a copy of the target names.
+    */
+   List targetNames() {
+      synchronized (targets) {
+         return new ArrayList(targets.keySet());
+      }
+   }
+
+   // Own methods.
+   // -----------------------------------------------------------------------
+
+   private void mergeDataFile() throws IOException, ClassNotFoundException {
       ObjectInputStream oin =
          new ObjectInputStream(new GZIPInputStream(new FileInputStream(datafile)));
       LinkedHashMap old = (LinkedHashMap) oin.readObject();
+      oin.close();
       for (Iterator it = old.keySet().iterator(); it.hasNext(); ) {
          String name = (String) it.next();
-         if (targets.containsKey(name)) {
-            Target t1 = (Target) targets.get(name);
+         Target t1 = (Target) targets.get(name);
+         if (t1 != null) {
             Target t2 = (Target) old.get(name);
             t1.setBasis(t2.getBasis());
             t1.setImage(t2.getImage());
@@ -235,21 +320,11 @@ class Config implements ParameterListener {
             t1.setLength(t2.getLength());
             t1.setNewLength(t2.getNewLength());
             t1.setMovedLength(t2.getMovedLength());
+            t1.setChanged();
          }
       }
    }
 
-   public void store() throws IOException {
-      ObjectOutputStream oout =
-         new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(datafile)));
-      oout.writeObject(targets);
-      oout.flush();
-      oout.close();
-   }
-
-   // Own methods.
-   // -----------------------------------------------------------------------
-
    private long makeFreak(String str) {
       long mult = 1, ret = 1;
       if (str.endsWith("d") || str.endsWith("D")) {
@@ -268,6 +343,17 @@ class Config implements ParameterListener {
       return ret * mult * 3600000L;
    }
 
+   private int makeCount(String value, String what) {
+      try {
+         int n = Integer.parseInt(value);
+         if (n <= 0)
+            throw new IllegalArgumentException("bad " + what);
+         return n;
+      } catch (NumberFormatException nfe) {
+         throw new IllegalArgumentException("bad " + what);
+      }
+   }
+
    private Color makeColor(String name) {
       if (name.charAt(0) == '#') {
          try {
@@ -0,0 +1,200 @@
+/* ConnectionPool.java -- shared HTTP connections, by host.
+   vim:set softtabstop=3 shiftwidth=3 tabstop=3 expandtab tw=72:
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of vwdiff.
+
+Vwdiff is free software; you can redistribute it and/or modify it under
+the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Vwdiff is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along
+with vwdiff; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA  */
+
+
+package org.metastatic.vwdiff;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import HTTPClient.HTTPConnection;
+import HTTPClient.NVPair;
+import HTTPClient.ProtocolNotSuppException;
+
+/**
+ * Hands out one {@link HTTPConnection} per host, shared by every target
+ * on that host. An HTTPConnection keeps its socket open between
+ * requests and pipelines requests made at the same time, so targets on
+ * the same host reuse one TCP (and TLS) connection rather than each
+ * opening their own. Every {@link #get(URL)} is matched by a {@link
+ * #release(HTTPConnection,boolean)} once the response has been read;
+ * a connection is only stopped when no request is using it, whether it
+ * sat idle for a while or a request on it failed.
+ *
+ * <p>Host names are resolved by HTTPClient through the JVM's address
+ * cache, whose lifetime vwdiff sets at startup; the pool resolves a
+ * host itself only once, when it first connects to it, to log it.
+ */
+class ConnectionPool {
+
+   // Fields.
+   // -----------------------------------------------------------------------
+
+   private static final Logger logger = Logger.getLogger(ConnectionPool.class);
+
+   private final long idleTimeout;
+   private final int readTimeout;
+   private final NVPair[] headers;
+   private final HashMap connections;
+   private final IdentityHashMap entries;
+   private long lastSweep;
+
+   // Constructor.
+   // -----------------------------------------------------------------------
+
+   /**
+    * @param idleTimeout How long, in milliseconds, an unused connection
+    *    is kept.
+    * @param readTimeout How long, in milliseconds, connecting or a read
+    *    may take before it fails.
+    * @param headers     The headers to send with every request.
+    */
+   ConnectionPool(long idleTimeout, int readTimeout, NVPair[] headers) {
+      this.idleTimeout = idleTimeout;
+      this.readTimeout = readTimeout;
+      this.headers = headers;
+      connections = new HashMap();
+      entries = new IdentityHashMap();
+      lastSweep = System.currentTimeMillis();
+   }
+
+   // Instance methods.
+   // -----------------------------------------------------------------------
+
+   /**
+    * Return the connection to the host of <i>url</i>, making it if
+    * there is none. The caller must {@link #release(HTTPConnection,boolean)}
+    * it when done.
+    */
+   HTTPConnection get(URL url) throws ProtocolNotSuppException {
+      String key = keyOf(url);
+      long now = System.currentTimeMillis();
+      Entry e;
+      boolean created = false;
+      synchronized (connections) {
+         if (now - lastSweep > idleTimeout / 2) {
+            sweep(now);
+            lastSweep = now;
+         }
+         e = (Entry) connections.get(key);
+         if (e == null) {
+            e = new Entry(key, new HTTPConnection(url));
+            e.conn.setDefaultHeaders(headers);
+            e.conn.setTimeout(readTimeout);
+            connections.put(key, e);
+            entries.put(e.conn, e);
+            created = true;
+         }
+         e.users++;
+         e.lastUse = now;
+      }
+      if (created) {
+         try {
+            logger.info("connecting to " + key + " at "
+                        + InetAddress.getByName(url.getHost()));
+         } catch (UnknownHostException uhe) {
+            logger.info("connecting to " + key);
+         }
+      }
+      return e.conn;
+   }
+
+   /**
+    * Give back a connection from {@link #get(URL)}. If the request
+    * <i>failed</i>, later requests to the host get a new connection, and
+    * this one is stopped once the requests still using it are done.
+    */
+   void release(HTTPConnection conn, boolean failed) {
+      Entry e;
+      boolean stop = false;
+      synchronized (connections) {
+         e = (Entry) entries.get(conn);
+         if (e == null)
+            return;
+         e.users--;
+         e.lastUse = System.currentTimeMillis();
+         if (failed && !e.retired) {
+            if (connections.get(e.key) == e)
+               connections.remove(e.key);
+            e.retired = true;
+         }
+         if (e.retired && e.users == 0) {
+            entries.remove(conn);
+            stop = true;
+         }
+      }
+      if (stop) {
+         logger.debug("closing failed connection to " + e.key);
+         conn.stop();
+      }
+   }
+
+   // Own methods.
+   // -----------------------------------------------------------------------
+
+   private void sweep(long now) {
+      for (Iterator it = connections.entrySet().iterator(); it.hasNext(); ) {
+         Map.Entry me = (Map.Entry) it.next();
+         Entry e = (Entry) me.getValue();
+         if (e.users == 0 && now - e.lastUse > idleTimeout) {
+            logger.debug("closing idle connection to " + me.getKey());
+            it.remove();
+            entries.remove(e.conn);
+            e.conn.stop();
+         }
+      }
+   }
+
+   private static String keyOf(URL url) {
+      int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+      return url.getProtocol().toLowerCase() + "://"
+         + url.getHost().toLowerCase() + ":" + port;
+   }
+
+   // Inner class.
+   // -----------------------------------------------------------------------
+
+   private static class Entry {
+      final String key;
+      final HTTPConnection conn;
+      long lastUse;
+      int users;
+      boolean retired;
+
+      Entry(String key, HTTPConnection conn) {
+         this.key = key;
+         this.conn = conn;
+      }
+   }
+}
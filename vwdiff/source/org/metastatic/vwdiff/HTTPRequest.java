@@ -35,6 +35,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 
 import java.util.HashMap;
+import java.util.StringTokenizer;
 
 import org.apache.log4j.Logger;
 
@@ -54,6 +55,7 @@ public class HTTPRequest {
    private URI uri;
    private String version;
    private HashMap headers;
+   private boolean keepAlive;
 
    // Constructors.
    // -----------------------------------------------------------------------
@@ -118,9 +120,14 @@ public class HTTPRequest {
                throw new HTTPException("Malformed header");
             String name = buf.substring(0, buf.indexOf(":"));
             String value = buf.substring(buf.indexOf(":") + 1).trim();
-            req.headers.put(name, value);
+            req.headers.put(name.toLowerCase(), value);
          }
       } while (buf.length() > 0);
+      String conn = req.getHeader("Connection");
+      if (req.version.equals("HTTP/1.1"))
+         req.keepAlive = conn == null || !conn.equalsIgnoreCase("close");
+      else
+         req.keepAlive = conn != null && conn.equalsIgnoreCase("keep-alive");
       return req;
    }
 
@@ -139,7 +146,45 @@ public class HTTPRequest {
       return version;
    }
 
+   /**
+    * Return the value of a header, whose name is matched regardless of
+    * case, or null if the request has no such header.
+    */
    public String getHeader(String name) {
-      return (String) headers.get(name);
+      return (String) headers.get(name.toLowerCase());
+   }
+
+   /**
+    * Tell if the connection should stay open after the response, as
+    * HTTP/1.1 requests do unless they say "Connection: close".
+    */
+   public boolean isKeepAlive() {
+      return keepAlive;
+   }
+
+   public void setKeepAlive(boolean keepAlive) {
+      this.keepAlive = keepAlive;
+   }
+
+   /**
+    * Tell if the client accepts the given content coding, by its
+    * Accept-Encoding header.
+    */
+   public boolean accepts(String coding) {
+      String accept = getHeader("Accept-Encoding");
+      if (accept == null)
+         return false;
+      StringTokenizer tok = new StringTokenizer(accept, ",");
+      while (tok.hasMoreTokens()) {
+         String s = tok.nextToken().trim();
+         String q = null;
+         if (s.indexOf(';') >= 0) {
+            q = s.substring(s.indexOf(';') + 1).trim();
+            s = s.substring(0, s.indexOf(';')).trim();
+         }
+         if (s.equalsIgnoreCase(coding) || s.equals("*"))
+            return q == null || !q.matches("q\\s*=\\s*0(\\.0*)?");
+      }
+      return false;
    }
 }
@@ -35,6 +35,7 @@ import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 public class HTTPResponse {
 
@@ -46,6 +47,9 @@ public class HTTPResponse {
    protected HashMap headers;
    protected ByteArrayOutputStream body;
 
+   /** Bodies smaller than this are not worth compressing. */
+   private static final int MIN_COMPRESS = 256;
+
    // Constructors.
    // -----------------------------------------------------------------------
 
@@ -75,6 +79,30 @@ public class HTTPResponse {
       headers.put(name, value);
    }
 
+   public String getHeader(String name) {
+      return (String) headers.get(name);
+   }
+
+   public int getStatus() {
+      return status;
+   }
+
+   /**
+    * Compress the body written so far with gzip, if it is big enough to
+    * gain from it, and mark it so.
+    */
+   public void compress() throws IOException {
+      if (body.size() < MIN_COMPRESS)
+         return;
+      ByteArrayOutputStream zipped = new ByteArrayOutputStream(body.size() / 4);
+      GZIPOutputStream gzip = new GZIPOutputStream(zipped);
+      body.writeTo(gzip);
+      gzip.close();
+      body = zipped;
+      setHeader("Content-Encoding", "gzip");
+      setHeader("Vary", "Accept-Encoding");
+   }
+
    public void writeBody(byte[] body) {
       if (body == null)
          throw new NullPointerException();
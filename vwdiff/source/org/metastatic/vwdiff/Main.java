@@ -31,7 +31,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 
 import java.security.Security;
-import java.util.Iterator;
 
 import gnu.getopt.Getopt;
 import gnu.getopt.LongOpt;
@@ -52,11 +51,16 @@ public final class Main {
    private static final Logger logger =
       Logger.getLogger("org.metastatic.vwdiff");
 
+   /** How often to save the targets' data. */
+   private static final long STORE_INTERVAL = 300000;
+
    private static String conffile;
    private static boolean virgin = true;
 
    static MemoryAppender memoryAppender;
 
+   private static volatile Scheduler scheduler;
+
    // Class methods.
    // -----------------------------------------------------------------------
 
@@ -123,33 +127,27 @@ public final class Main {
 
       try {
          conf.mergeSaved();
-      } catch (IOException ioe) {
-         logger.warn("could not load stored data: " + ioe.getMessage());
+      } catch (Exception e) {
+         // Run with what could be loaded rather than not at all.
+         logger.warn("could not load stored data: " + e);
       }
 
+      scheduler = new Scheduler(conf);
+      Thread t = new Thread(scheduler, "scheduler");
+      t.setDaemon(true);
+      t.start();
+      logger.info("scheduled " + conf.targets.size() + " targets on "
+         + conf.threads + " threads");
+
       while (true) {
          try {
-            logger.info("beginning run");
-            long now = System.currentTimeMillis();
-            for (Iterator i = conf.targets.values().iterator(); i.hasNext(); ) {
-               Target t = (Target) i.next();
-               t.update(false, false);
-            }
-            try {
-               conf.store();
-            } catch (Exception e) {
-               logger.warn("could not store data: " + e.getMessage());
-            }
-            try {
-               long elapsed = System.currentTimeMillis() - now;
-               logger.info("ended run; elapsed time=" + (elapsed / 1000) + " seconds");
-               if (elapsed < 300000)
-                  Thread.sleep(300000 - elapsed);
-            } catch (InterruptedException ie) {
-            }
-         } catch (Exception x) {
-            logger.fatal("FATAL: " + x);
-            System.exit(1);
+            Thread.sleep(STORE_INTERVAL);
+         } catch (InterruptedException ie) {
+         }
+         try {
+            conf.store();
+         } catch (Exception e) {
+            logger.warn("could not store data: " + e.getMessage());
          }
       }
    }
@@ -174,6 +172,8 @@ public final class Main {
          }
       }
       conf.current = null;
+      if (scheduler != null)
+         scheduler.sync();
    }
 
    private static void usage() {
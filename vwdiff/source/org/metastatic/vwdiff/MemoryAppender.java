@@ -27,20 +27,31 @@ with vwdiff; if not, write to the
 
 package org.metastatic.vwdiff;
 
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.Layout;
+import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
 
+/**
+ * Keeps the last few log events in memory, for the web interface. The
+ * events sit in a fixed ring of slots that appending threads claim with
+ * one atomic increment, without taking a lock; they are only formatted
+ * when the log is shown.
+ */
 public class MemoryAppender extends AppenderSkeleton {
 
    // Fields.
    // -----------------------------------------------------------------------
 
-   private final LinkedList messages;
+   private final AtomicReferenceArray ring;
+
+   /** The sequence number of the next event. */
+   private final AtomicLong next;
 
    private final int logsize;
 
@@ -48,22 +59,58 @@ public class MemoryAppender extends AppenderSkeleton {
    // -----------------------------------------------------------------------
 
    public MemoryAppender(int logsize, Layout layout) {
-      messages = new LinkedList();
       this.logsize = logsize;
       this.layout = layout;
+      ring = new AtomicReferenceArray(Math.max(logsize, 1));
+      next = new AtomicLong();
    }
 
    // Instance methods.
    // -----------------------------------------------------------------------
 
+   /**
+    * Return the events in the ring, oldest first, formatted.
+    */
    public List getLog() {
-      return Collections.unmodifiableList(messages);
+      long end = next.get();
+      long start = Math.max(0, end - logsize);
+      List log = new ArrayList((int) (end - start));
+      synchronized (layout) {
+         for (long seq = start; seq < end; seq++) {
+            Slot slot = (Slot) ring.get((int) (seq % logsize));
+            // Skip slots claimed but not yet filled, or already reused.
+            if (slot != null && slot.seq == seq)
+               log.add(layout.format(slot.event));
+         }
+      }
+      return log;
+   }
+
+   /**
+    * Append an event, checking the threshold and filters as {@link
+    * AppenderSkeleton} does, but without its lock.
+    */
+   public void doAppend(LoggingEvent event) {
+      if (closed || !isAsSevereAsThreshold(event.getLevel()))
+         return;
+      for (Filter f = getFirstFilter(); f != null; f = f.getNext()) {
+         int d = f.decide(event);
+         if (d == Filter.DENY)
+            return;
+         if (d == Filter.ACCEPT)
+            break;
+      }
+      append(event);
    }
 
    public void append(LoggingEvent event) {
-      if (messages.size() == logsize)
-         messages.removeFirst();
-      messages.addLast(layout.format(event));
+      if (logsize == 0)
+         return;
+      // Take what the layout may need from the logging thread now.
+      event.getThreadName();
+      event.getNDC();
+      long seq = next.getAndIncrement();
+      ring.set((int) (seq % logsize), new Slot(seq, event));
    }
 
    public void close() {
@@ -72,4 +119,17 @@ public class MemoryAppender extends AppenderSkeleton {
    public boolean requiresLayout() {
       return true;
    }
+
+   // Inner class.
+   // -----------------------------------------------------------------------
+
+   private static class Slot {
+      final long seq;
+      final LoggingEvent event;
+
+      Slot(long seq, LoggingEvent event) {
+         this.seq = seq;
+         this.event = event;
+      }
+   }
 }
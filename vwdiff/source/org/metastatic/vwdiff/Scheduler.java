@@ -0,0 +1,228 @@
+/* Scheduler.java -- concurrent, time-ordered target updates.
+   vim:set softtabstop=3 shiftwidth=3 tabstop=3 expandtab tw=72:
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of vwdiff.
+
+Vwdiff is free software; you can redistribute it and/or modify it under
+the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Vwdiff is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along
+with vwdiff; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA  */
+
+
+
+package org.metastatic.vwdiff;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs target updates as they fall due, several at a time. Targets wait
+ * in a queue ordered by when each is next due (its last update plus its
+ * frequency), and a single thread hands due targets to a fixed pool of
+ * workers. No more than a set number of updates run against any one
+ * host at once; a target whose host is busy is put back for a moment.
+ * A target whose update fails is retried after a backoff that doubles
+ * with each failure, up to its frequency, and is randomized so that
+ * targets that failed together do not all come back together. A
+ * failed update includes one that timed out reading from its server.
+ * Targets added when the configuration is reloaded join the queue on
+ * {@link #sync()}.
+ */
+public class Scheduler implements Runnable {
+
+   // Fields.
+   // -----------------------------------------------------------------------
+
+   private static final Logger logger = Logger.getLogger(Scheduler.class);
+
+   /** The first retry delay after a failure. */
+   private static final long BACKOFF = 60000;
+
+   /** How long to put aside a target whose host is busy. */
+   private static final long HOST_BUSY_DELAY = 1000;
+
+   private final Config conf;
+   private final PriorityQueue queue;
+   private final Set scheduled;
+   private final Map hosts;
+   private final int hostLimit;
+   private final ExecutorService pool;
+   private final Random random;
+
+   // Constructor.
+   // -----------------------------------------------------------------------
+
+   /**
+    * @param conf The configuration, giving the targets, the number of
+    *    threads and the per-host limit.
+    */
+   public Scheduler(Config conf) {
+      this.conf = conf;
+      queue = new PriorityQueue();
+      scheduled = new HashSet();
+      hosts = new HashMap();
+      hostLimit = conf.hostConnections;
+      random = new Random();
+      pool = Executors.newFixedThreadPool(conf.threads, new ThreadFactory() {
+         private int count = 0;
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "update-" + (++count));
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      sync();
+   }
+
+   // Instance methods.
+   // -----------------------------------------------------------------------
+
+   /**
+    * Queue any targets in the configuration that are not queued yet.
+    */
+   public synchronized void sync() {
+      long now = System.currentTimeMillis();
+      boolean added = false;
+      for (Iterator it = conf.targetList().iterator(); it.hasNext(); ) {
+         Target t = (Target) it.next();
+         if (t.getURL() == null || scheduled.contains(t))
+            continue;
+         Entry e = new Entry(t);
+         e.due = Math.max(now, t.getLastUpdate() + t.getFrequency());
+         queue.add(e);
+         scheduled.add(t);
+         added = true;
+      }
+      if (added)
+         notify();
+   }
+
+   public void run() {
+      try {
+         while (true) {
+            Entry e;
+            synchronized (this) {
+               while (true) {
+                  e = (Entry) queue.peek();
+                  long now = System.currentTimeMillis();
+                  if (e != null && e.due <= now)
+                     break;
+                  wait(e == null ? 0 : e.due - now);
+               }
+               queue.poll();
+               e.host = e.target.getURL().getHost().toLowerCase();
+               if (!acquire(e.host)) {
+                  e.due = System.currentTimeMillis() + HOST_BUSY_DELAY
+                        + random.nextInt((int) HOST_BUSY_DELAY);
+                  queue.add(e);
+                  continue;
+               }
+            }
+            pool.execute(e);
+         }
+      } catch (InterruptedException ie) {
+         pool.shutdownNow();
+      }
+   }
+
+   // Own methods.
+   // -----------------------------------------------------------------------
+
+   private boolean acquire(String host) {
+      Integer n = (Integer) hosts.get(host);
+      int active = n == null ? 0 : n.intValue();
+      if (active >= hostLimit)
+         return false;
+      hosts.put(host, Integer.valueOf(active + 1));
+      return true;
+   }
+
+   private void release(String host) {
+      int active = ((Integer) hosts.get(host)).intValue() - 1;
+      if (active == 0)
+         hosts.remove(host);
+      else
+         hosts.put(host, Integer.valueOf(active));
+   }
+
+   private synchronized void finished(Entry e, boolean ok) {
+      release(e.host);
+      long now = System.currentTimeMillis();
+      long frequency = e.target.getFrequency();
+      if (ok) {
+         e.failures = 0;
+         e.due = Math.max(now, e.target.getLastUpdate() + frequency);
+      } else {
+         e.failures++;
+         long backoff = BACKOFF << Math.min(e.failures - 1, 20);
+         backoff = Math.min(backoff, frequency);
+         // Anywhere from half the backoff to all of it.
+         backoff = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+         e.due = now + backoff;
+         logger.info("[" + e.target.getName() + "] failed " + e.failures
+            + " times; next try in " + (backoff / 1000) + " seconds");
+      }
+      queue.add(e);
+      notify();
+   }
+
+   // Inner class.
+   // -----------------------------------------------------------------------
+
+   /**
+    * A target in the queue.
+    */
+   private class Entry implements Comparable, Runnable {
+      final Target target;
+      /** The host counted against, since a reload may change the URL. */
+      String host;
+      long due;
+      int failures;
+
+      Entry(Target target) {
+         this.target = target;
+      }
+
+      public int compareTo(Object o) {
+         long other = ((Entry) o).due;
+         return due < other ? -1 : (due > other ? 1 : 0);
+      }
+
+      public void run() {
+         boolean ok = false;
+         try {
+            ok = target.update(false, false);
+         } catch (RuntimeException x) {
+            logger.error("[" + target.getName() + "] " + x);
+         } finally {
+            finished(this, ok);
+         }
+      }
+   }
+}
@@ -27,26 +27,36 @@ with vwdiff; if not, write to the
 
 package org.metastatic.vwdiff;
 
-import java.io.InputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.Reader;
 
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Locale;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import java.security.MessageDigest;
 
@@ -72,11 +82,23 @@ public class Server implements Runnable {
       "<link rel=\"stylesheet\" href=\"/styles.css\" type=\"text/css\"/>\n" +
       "</head>\n\n";
 
+   /** The number of connections served at once. */
+   private static final int HANDLERS = 16;
+
+   /** How long an idle connection is kept open, in milliseconds. */
+   private static final int KEEP_ALIVE_TIMEOUT = 15000;
+
+   /** The most requests served on one connection. */
+   private static final int MAX_REQUESTS = 100;
+
+   private static final String HTTP_DATE = "EEE, dd MMM yyyy HH:mm:ss 'GMT'";
+
    private SimpleDateFormat fmt =
       new SimpleDateFormat("EEEE, dd MMMM yyyy, HH:mm:ss z");
    private MessageDigest md5;
    private ServerSocket server;
-   private Socket client;
+   private ExecutorService handlers;
+   private ExecutorService background;
    private Config conf;
    private HashMap nonces;
    private String footer;
@@ -97,6 +119,8 @@ public class Server implements Runnable {
       }
       logger.info("server socket=" + server);
       nonces = new HashMap();
+      handlers = Executors.newFixedThreadPool(HANDLERS, new Daemons("http"));
+      background = Executors.newSingleThreadExecutor(new Daemons("http-task"));
       footer = "<hr/><p class=\"footer\"><a href=\"http://jarsync.sourceforge.net/vwdiff/\">vwdiff/" +
          version.VERSION + "</a> on " + server.getInetAddress() +
          " port " + conf.port + "</p>\n</body>\n</html>\n";
@@ -105,61 +129,17 @@ public class Server implements Runnable {
    // Instance methods.
    // -----------------------------------------------------------------------
 
+   /**
+    * Accept connections, and hand each to the pool of handlers.
+    */
    public void run() {
       logger.info("server thread running");
       while (true) {
          try {
-            client = server.accept();
-            InputStream in = client.getInputStream();
-            HTTPRequest req = HTTPRequest.parse(new InputStreamReader(in));
-            logger.info(client.getInetAddress().getHostAddress() +
-                        " " + req.getRequestURI());
-            if (conf.passwdFile != null) {
-               if (!checkAuth(client.getOutputStream(), req)) {
-                  client.close();
-                  continue;
-               }
-            }
-            if (!(req.getMethod().equals("GET") || req.getMethod().equals("HEAD"))) {
-               badRequest(client.getOutputStream(),
-                          "Method " + req.getMethod() + " not supported.");
-               continue;
-            }
-            URI uri = req.getRequestURI();
-            if (uri.getPath().equals("/")) {
-               brief(client.getOutputStream(), req);
-            } else if (uri.getPath().equalsIgnoreCase("/about")) {
-               about(client.getOutputStream(), req);
-            } else if (uri.getPath().equalsIgnoreCase("/styles.css")) {
-               stylesheet(client.getOutputStream(), req);
-            } else if (uri.getPath().equalsIgnoreCase("/image")) {
-               image(client.getOutputStream(), req);
-            } else if (uri.getPath().equalsIgnoreCase("/go")) {
-               access(client.getOutputStream(), req);
-            } else if (uri.getPath().equalsIgnoreCase("/detail")) {
-               detail(client.getOutputStream(), req);
-            } else if (uri.getPath().equalsIgnoreCase("/update")) {
-               update(client.getOutputStream(), req);
-            } else if (uri.getPath().equalsIgnoreCase("/refresh")) {
-               refresh(client.getOutputStream(), req);
-            } else if (uri.getPath().equalsIgnoreCase("/log")) {
-               showLog(client.getOutputStream(), req);
-            } else {
-               notFound(client.getOutputStream(), req);
-            }
-            client.close();
-         } catch (HTTPException he) {
-            try {
-               badRequest(client.getOutputStream(),
-                  conf.debug ? (Object) he : (Object) he.getMessage());
-            } catch (IOException ioe) {
-               logger.warn(ioe.toString());
-            }
+            Socket client = server.accept();
+            handlers.execute(new Connection(client));
          } catch (IOException ioe) {
             logger.warn(ioe.toString());
-         } catch (Exception x) {
-            logger.fatal("FATAL: " + x);
-            System.exit(1);
          }
       }
    }
@@ -167,6 +147,23 @@ public class Server implements Runnable {
    // Own methods.
    // -----------------------------------------------------------------------
 
+   /**
+    * Send a response, compressing HTML and other text if the client
+    * takes gzip, and telling whether the connection stays open.
+    */
+   private void send(OutputStream out, HTTPRequest req, HTTPResponse resp)
+      throws IOException
+   {
+      resp.setHeader("Server", SERVER);
+      resp.setHeader("Connection", req.isKeepAlive() ? "keep-alive" : "close");
+      String type = resp.getHeader("Content-Type");
+      if (type != null && type.startsWith("text/") && req.accepts("gzip")
+          && req.getMethod().equals("GET"))
+         resp.compress();
+      resp.write(out);
+      out.flush();
+   }
+
    private void badRequest(OutputStream out, Object why)
       throws IOException
    {
@@ -188,15 +185,14 @@ public class Server implements Runnable {
       }
       resp.writeBody(footer);
       resp.write(out);
+      out.flush();
    }
 
    private void brief(OutputStream out, HTTPRequest req)
       throws IOException
    {
       HTTPResponse resp = new HTTPResponse(200, "HTTP/1.1");
-      resp.setHeader("Server", SERVER);
       resp.setHeader("Content-Type", "text/html; charset=utf-8");
-      resp.setHeader("Connection", "close");
       if (req.getMethod().equals("GET")) {
          resp.writeBody
          (
@@ -211,7 +207,7 @@ public class Server implements Runnable {
             "<th></th></tr>\n"
          );
          boolean ab = true;
-         for (Iterator it = conf.targets.values().iterator(); it.hasNext(); ) {
+         for (Iterator it = conf.targetList().iterator(); it.hasNext(); ) {
             Target t = (Target) it.next();
             String encodedName = URLEncoder.encode(t.getName(), "UTF-8");
             resp.writeBody("<tr class=\"" + (ab?"a":"b") + "\">");
@@ -238,16 +234,14 @@ public class Server implements Runnable {
          resp.writeBody("</table>");
          resp.writeBody(footer);
       }
-      resp.write(out);
+      send(out, req, resp);
    }
 
    private void about(OutputStream out, HTTPRequest req)
       throws IOException
    {
       HTTPResponse resp = new HTTPResponse(200, "HTTP/1.1");
-      resp.setHeader("Server", SERVER);
       resp.setHeader("Content-Type", "text/html; charset=utf-8");
-      resp.setHeader("Connection", "close");
       if (req.getMethod().equals("GET")) {
          resp.writeBody(HEAD);
          resp.writeBody(
@@ -271,7 +265,7 @@ public class Server implements Runnable {
          );
          resp.writeBody(footer);
       }
-      resp.write(out);
+      send(out, req, resp);
    }
 
    private void access(OutputStream out, HTTPRequest req)
@@ -284,11 +278,14 @@ public class Server implements Runnable {
          return;
       }
       HTTPResponse resp = new HTTPResponse(302, "HTTP/1.1");
-      resp.setHeader("Server", SERVER);
       resp.setHeader("Location", t.getURL().toString());
-      resp.setHeader("Connection", "close");
-      resp.write(out);
-      t.access();
+      send(out, req, resp);
+      final Target target = t;
+      background.execute(new Runnable() {
+         public void run() {
+            target.access();
+         }
+      });
    }
 
    private void detail(OutputStream out, HTTPRequest req)
@@ -296,7 +293,7 @@ public class Server implements Runnable {
    {
       LinkedList toShow = new LinkedList();
       if (req.getRequestURI().getQuery() == null) {
-         toShow.addAll(conf.targets.keySet());
+         toShow.addAll(conf.targetNames());
       } else {
          String name = URLDecoder.decode(req.getRequestURI().getQuery(), "UTF-8");
          if (!conf.targets.containsKey(name)) {
@@ -306,9 +303,7 @@ public class Server implements Runnable {
          toShow.add(name);
       }
       HTTPResponse resp = new HTTPResponse(200, "HTTP/1.1");
-      resp.setHeader("Server", SERVER);
       resp.setHeader("Content-Type", "text/html; charset=utf-8");
-      resp.setHeader("Connection", "close");
       if (req.getMethod().equals("GET")) {
          resp.writeBody(HEAD);
          resp.writeBody(
@@ -331,9 +326,9 @@ public class Server implements Runnable {
                            URLEncoder.encode(t.getName(), "UTF-8") +
                            "\" alt=\"" + t.getName() + "\" /></td>\n");
             resp.writeBody("<td class=\"info\">Last update: " +
-                           fmt.format(new Date(t.getLastUpdate())) + "<br/>\n"+
+                           formatDate(t.getLastUpdate()) + "<br/>\n"+
                            "Last accessed: " +
-                           fmt.format(new Date(t.getLastAccess())) + "<br/>\n"+
+                           formatDate(t.getLastAccess()) + "<br/>\n"+
                            "Length: " + t.getLength() + "<br/>\n" +
                            "Moved Bytes: " + t.getMovedLength() + "(" +
                            (int) perMoved + "%)<br/>\n" +
@@ -349,7 +344,7 @@ public class Server implements Runnable {
          }
          resp.writeBody(footer);
       }
-      resp.write(out);
+      send(out, req, resp);
    }
 
    private void image(OutputStream out, HTTPRequest req)
@@ -361,38 +356,45 @@ public class Server implements Runnable {
          notFound(out, req);
          return;
       }
-      HTTPResponse resp = new HTTPResponse(200, "HTTP/1.1");
-      resp.setHeader("Server", SERVER);
-      resp.setHeader("Content-Type", "image/png");
-      resp.setHeader("Connection", "close");
-      resp.writeBody(t.getImage());
-      resp.write(out);
+      long modified = t.getLastUpdate() / 1000 * 1000;
+      String etag = "\"" + Long.toHexString(t.getLastUpdate()) + "\"";
+      HTTPResponse resp = new HTTPResponse(notModified(req, etag, modified)
+                                           ? 304 : 200, "HTTP/1.1");
+      resp.setHeader("ETag", etag);
+      resp.setHeader("Last-Modified", httpDate(modified));
+      resp.setHeader("Cache-Control", "no-cache");
+      if (resp.getStatus() == 200) {
+         resp.setHeader("Content-Type", "image/png");
+         if (req.getMethod().equals("GET"))
+            resp.writeBody(t.getImage());
+      }
+      send(out, req, resp);
    }
 
    private void stylesheet(OutputStream out, HTTPRequest req)
       throws IOException
    {
       HTTPResponse resp = new HTTPResponse(200, "HTTP/1.1");
-      resp.setHeader("Server", SERVER);
       resp.setHeader("Content-Type", "text/css; charset=utf-8");
-      resp.setHeader("Connection", "close");
       resp.writeBody(conf.stylesheet);
-      resp.write(out);
+      send(out, req, resp);
    }
    private void refresh(OutputStream out, HTTPRequest req)
       throws IOException
    {
       HTTPResponse resp = new HTTPResponse(302, "HTTP/1.1");
-      resp.setHeader("Server", SERVER);
       resp.setHeader("Location", req.getHeader("Referer") != null ?
                      req.getHeader("Referer") : "/");
-      resp.setHeader("Connection", "close");
-      resp.write(out);
-      try {
-         Main.loadConfig(conf);
-      } catch (IOException ioe) {
-         logger.warn("could not refresh config: " + ioe.getMessage());
-      }
+      send(out, req, resp);
+      background.execute(new Runnable() {
+         public void run() {
+            try {
+               Main.loadConfig(conf);
+            } catch (IOException ioe) {
+               logger.warn("could not refresh config: " + ioe.getMessage());
+            }
+         }
+      });
    }
 
    private void update(OutputStream out, HTTPRequest req)
@@ -400,7 +402,7 @@ public class Server implements Runnable {
    {
       LinkedList toUpdate = new LinkedList();
       if (req.getRequestURI().getQuery() == null) {
-         toUpdate.addAll(conf.targets.keySet());
+         toUpdate.addAll(conf.targetNames());
       } else {
          String name = URLDecoder.decode(req.getRequestURI().getQuery(), "UTF-8");
          if (!conf.targets.containsKey(name)) {
@@ -410,19 +412,24 @@ public class Server implements Runnable {
          toUpdate.add(name);
       }
       HTTPResponse resp = new HTTPResponse(302, "HTTP/1.1");
-      resp.setHeader("Server", SERVER);
       resp.setHeader("Location", req.getHeader("Referer") != null ?
                      req.getHeader("Referer") : "/");
-      resp.setHeader("Connection", "close");
-      resp.write(out);
-      for (Iterator it = toUpdate.iterator(); it.hasNext(); ) {
-         ((Target) conf.targets.get(it.next())).update(true, false);
-      }
-      try {
-         conf.store();
-      } catch (IOException ioe) {
-         logger.warn("could not store data: " + ioe.getMessage());
-      }
+      send(out, req, resp);
+      final LinkedList names = toUpdate;
+      background.execute(new Runnable() {
+         public void run() {
+            for (Iterator it = names.iterator(); it.hasNext(); ) {
+               Target t = (Target) conf.targets.get(it.next());
+               if (t != null)
+                  t.update(true, false);
+            }
+            try {
+               conf.store();
+            } catch (IOException ioe) {
+               logger.warn("could not store data: " + ioe.getMessage());
+            }
+         }
+      });
    }
 
    private void showLog(OutputStream out, HTTPRequest req)
@@ -430,9 +437,7 @@ public class Server implements Runnable {
    {
       MemoryAppender app = Main.memoryAppender;
       HTTPResponse resp = new HTTPResponse(200, "HTTP/1.1");
-      resp.setHeader("Server", SERVER);
       resp.setHeader("Content-Type", "text/html; charset=utf-8");
-      resp.setHeader("Connection", "close");
       resp.writeBody(HEAD);
       resp.writeBody("<body>");
       resp.writeBody("<p><a href=\"/\">Brief View</a> | " +
@@ -446,22 +451,56 @@ public class Server implements Runnable {
       }
       resp.writeBody("</pre>\n");
       resp.writeBody(footer);
-      resp.write(out);
+      send(out, req, resp);
    }
 
    private void notFound(OutputStream out, HTTPRequest req)
       throws IOException
    {
       HTTPResponse resp = new HTTPResponse(404, "HTTP/1.1");
-      resp.setHeader("Server", SERVER);
       resp.setHeader("Content-Type", "text/html; charset=utf-8");
-      resp.setHeader("Connection", "close");
       resp.writeBody(HEAD);
       resp.writeBody("<body><h1>Not Found</h1>\n");
       resp.writeBody("<p>The requested URL " + req.getRequestURI() +
                      " was not found on this server.</p>\n");
       resp.writeBody(footer);
-      resp.write(out);
+      send(out, req, resp);
+   }
+
+   /**
+    * Tell if the client's copy, named by its If-None-Match or
+    * If-Modified-Since header, is current.
+    */
+   private static boolean notModified(HTTPRequest req, String etag,
+                                      long modified)
+   {
+      String match = req.getHeader("If-None-Match");
+      if (match != null)
+         return match.equals("*") || match.indexOf(etag) >= 0;
+      String since = req.getHeader("If-Modified-Since");
+      if (since != null) {
+         try {
+            return httpFormat().parse(since).getTime() >= modified;
+         } catch (ParseException pe) {
+         }
+      }
+      return false;
+   }
+
+   private String formatDate(long time) {
+      synchronized (fmt) {
+         return fmt.format(new Date(time));
+      }
+   }
+
+   private static String httpDate(long time) {
+      return httpFormat().format(new Date(time));
+   }
+
+   private static SimpleDateFormat httpFormat() {
+      SimpleDateFormat f = new SimpleDateFormat(HTTP_DATE, Locale.US);
+      f.setTimeZone(TimeZone.getTimeZone("GMT"));
+      return f;
    }
 
    private boolean checkAuth(OutputStream out, HTTPRequest req)
@@ -490,4 +529,115 @@ public class Server implements Runnable {
       }
       return result;
    }
+
+   // Inner classes.
+   // -----------------------------------------------------------------------
+
+   /**
+    * Serves the requests on one connection, for as long as the client
+    * keeps it open, up to a limit.
+    */
+   private class Connection implements Runnable {
+
+      private final Socket client;
+
+      Connection(Socket client) {
+         this.client = client;
+      }
+
+      public void run() {
+         OutputStream out = null;
+         try {
+            client.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            Reader in = new InputStreamReader(
+               new BufferedInputStream(client.getInputStream()), "ISO-8859-1");
+            out = new BufferedOutputStream(client.getOutputStream());
+            for (int n = 1; ; n++) {
+               HTTPRequest req = HTTPRequest.parse(in);
+               if (n == MAX_REQUESTS)
+                  req.setKeepAlive(false);
+               if (!serve(out, req) || !req.isKeepAlive())
+                  break;
+            }
+         } catch (HTTPException he) {
+            try {
+               badRequest(out, conf.debug ? (Object) he : (Object) he.getMessage());
+            } catch (IOException ioe) {
+               logger.warn(ioe.toString());
+            }
+         } catch (EOFException eofe) {
+            // The client closed the connection.
+         } catch (SocketTimeoutException ste) {
+            // The connection was idle too long.
+         } catch (IOException ioe) {
+            logger.warn(ioe.toString());
+         } finally {
+            try {
+               client.close();
+            } catch (IOException ignore) {
+            }
+         }
+      }
+
+      /**
+       * Serve one request, and return false if the connection must be
+       * closed after it.
+       */
+      private boolean serve(OutputStream out, HTTPRequest req)
+         throws IOException
+      {
+         logger.info(client.getInetAddress().getHostAddress() +
+                     " " + req.getRequestURI());
+         if (conf.passwdFile != null) {
+            if (!checkAuth(out, req))
+               return false;
+         }
+         if (!(req.getMethod().equals("GET") || req.getMethod().equals("HEAD"))) {
+            badRequest(out, "Method " + req.getMethod() + " not supported.");
+            return false;
+         }
+         URI uri = req.getRequestURI();
+         if (uri.getPath().equals("/")) {
+            brief(out, req);
+         } else if (uri.getPath().equalsIgnoreCase("/about")) {
+            about(out, req);
+         } else if (uri.getPath().equalsIgnoreCase("/styles.css")) {
+            stylesheet(out, req);
+         } else if (uri.getPath().equalsIgnoreCase("/image")) {
+            image(out, req);
+         } else if (uri.getPath().equalsIgnoreCase("/go")) {
+            access(out, req);
+         } else if (uri.getPath().equalsIgnoreCase("/detail")) {
+            detail(out, req);
+         } else if (uri.getPath().equalsIgnoreCase("/update")) {
+            update(out, req);
+         } else if (uri.getPath().equalsIgnoreCase("/refresh")) {
+            refresh(out, req);
+         } else if (uri.getPath().equalsIgnoreCase("/log")) {
+            showLog(out, req);
+         } else {
+            notFound(out, req);
+         }
+         return true;
+      }
+   }
+
+   /**
+    * Makes named daemon threads, so the pools do not keep vwdiff alive.
+    */
+   private static class Daemons implements ThreadFactory {
+
+      private final String name;
+      private int count;
+
+      Daemons(String name) {
+         this.name = name;
+      }
+
+      public synchronized Thread newThread(Runnable r) {
+         Thread t = new Thread(r, name + "-" + (++count));
+         t.setDaemon(true);
+         return t;
+      }
+   }
 }
@@ -0,0 +1,266 @@
+/* Store.java -- per-target records of vwdiff state.
+   vim:set softtabstop=3 shiftwidth=3 tabstop=3 expandtab tw=72:
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of vwdiff.
+
+Vwdiff is free software; you can redistribute it and/or modify it under
+the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Vwdiff is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along
+with vwdiff; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA  */
+
+
+package org.metastatic.vwdiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the state of each target in a file of its own, in a directory.
+ * A record begins with a fixed-size header holding the target's times,
+ * counters and the lengths of its basis and image, then the page's
+ * ETag and Last-Modified validators, then the basis and the image
+ * themselves. Only the header is read when the
+ * store is opened; the page and image are read the first time they are
+ * needed. Records are replaced whole, by writing a new file and renaming
+ * it over the old one, and only for targets that changed since they
+ * were last stored.
+ */
+class Store {
+
+   // Fields.
+   // -----------------------------------------------------------------------
+
+   private static final Logger logger = Logger.getLogger(Store.class);
+
+   private static final int MAGIC = 0x76776432; // "vwd2"
+
+   /** The magic of records without the page's validators. */
+   private static final int MAGIC_1 = 0x76776431; // "vwd1"
+
+   /** The magic, five longs and two lengths. */
+   private static final int HEADER_LENGTH = 4 + 5 * 8 + 2 * 4;
+
+   private static final String SUFFIX = ".rec";
+
+   private final File dir;
+
+   // Constructor.
+   // -----------------------------------------------------------------------
+
+   /**
+    * Open a store, creating its directory if needed.
+    *
+    * @param dir The directory.
+    * @throws IOException If the directory cannot be made.
+    */
+   Store(File dir) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("cannot create " + dir);
+      this.dir = dir;
+   }
+
+   // Instance methods.
+   // -----------------------------------------------------------------------
+
+   /**
+    * Tell if this store has no records at all.
+    */
+   boolean isEmpty() {
+      String[] names = dir.list();
+      if (names != null)
+         for (int i = 0; i < names.length; i++)
+            if (names[i].endsWith(SUFFIX))
+               return false;
+      return true;
+   }
+
+   /**
+    * Read the header of a target's record, if it has one, into the
+    * target. Its basis and image are left to be read on demand.
+    *
+    * @return True if there was a record.
+    */
+   boolean load(Target t) throws IOException {
+      File f = fileOf(t);
+      if (!f.exists())
+         return false;
+      DataInputStream in = new DataInputStream(
+         new BufferedInputStream(new FileInputStream(f), HEADER_LENGTH));
+      try {
+         int magic = in.readInt();
+         if (magic != MAGIC && magic != MAGIC_1)
+            throw new IOException(f + ": not a vwdiff record");
+         t.setLastUpdate(in.readLong());
+         t.setLastAccess(in.readLong());
+         t.setLength(in.readLong());
+         t.setNewLength(in.readLong());
+         t.setMovedLength(in.readLong());
+         if (magic == MAGIC) {
+            in.skipBytes(8);
+            t.setETag(readString(in));
+            t.setLastModified(readString(in));
+         }
+      } finally {
+         in.close();
+      }
+      t.setStore(this);
+      return true;
+   }
+
+   /**
+    * Read a target's basis and image from its record.
+    */
+   void loadData(Target t) throws IOException {
+      RandomAccessFile in = new RandomAccessFile(fileOf(t), "r");
+      try {
+         int magic = in.readInt();
+         in.seek(HEADER_LENGTH - 8);
+         int basisLength = in.readInt();
+         int imageLength = in.readInt();
+         if (magic == MAGIC) {
+            in.readUTF();
+            in.readUTF();
+         }
+         t.setBasis(readBytes(in, basisLength));
+         t.setImage(readBytes(in, imageLength));
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Write the record of every target that has changed since it was last
+    * written. A target whose record cannot be written stays changed, and
+    * is tried again next time.
+    *
+    * @return The number of records written.
+    * @throws IOException If any record could not be written.
+    */
+   int storeChanged(Collection targets) throws IOException {
+      int n = 0;
+      IOException failure = null;
+      for (Iterator it = targets.iterator(); it.hasNext(); ) {
+         Target t = (Target) it.next();
+         if (!t.takeChanged())
+            continue;
+         try {
+            store(t);
+            n++;
+         } catch (IOException ioe) {
+            t.setChanged();
+            failure = ioe;
+         }
+      }
+      if (failure != null)
+         throw failure;
+      return n;
+   }
+
+   /**
+    * Write the record of one target.
+    */
+   void store(Target t) throws IOException {
+      File f = fileOf(t);
+      File tmp = new File(dir, "." + f.getName() + ".tmp");
+      byte[] basis = t.getBasis();
+      byte[] image = t.getImage();
+      DataOutputStream out = new DataOutputStream(
+         new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+         out.writeInt(MAGIC);
+         out.writeLong(t.getLastUpdate());
+         out.writeLong(t.getLastAccess());
+         out.writeLong(t.getLength());
+         out.writeLong(t.getNewLength());
+         out.writeLong(t.getMovedLength());
+         out.writeInt(basis != null ? basis.length : -1);
+         out.writeInt(image != null ? image.length : -1);
+         out.writeUTF(t.getETag() != null ? t.getETag() : "");
+         out.writeUTF(t.getLastModified() != null ? t.getLastModified() : "");
+         if (basis != null)
+            out.write(basis);
+         if (image != null)
+            out.write(image);
+      } finally {
+         out.close();
+      }
+      if (!tmp.renameTo(f)) {
+         // Some platforms will not rename over an existing file.
+         f.delete();
+         if (!tmp.renameTo(f)) {
+            tmp.delete();
+            throw new IOException("cannot rename " + tmp + " to " + f);
+         }
+      }
+      logger.debug("stored [" + t.getName() + "] in " + f);
+   }
+
+   // Own methods.
+   // -----------------------------------------------------------------------
+
+   /**
+    * Return the file of a target's record, named by a digest of the
+    * target's name so that any name makes a safe file name.
+    */
+   private File fileOf(Target t) {
+      try {
+         MessageDigest md = MessageDigest.getInstance("MD5");
+         byte[] digest = md.digest(t.getName().getBytes("UTF-8"));
+         StringBuffer buf = new StringBuffer(digest.length * 2 + SUFFIX.length());
+         for (int i = 0; i < digest.length; i++) {
+            buf.append(Character.forDigit((digest[i] >>> 4) & 0x0f, 16));
+            buf.append(Character.forDigit(digest[i] & 0x0f, 16));
+         }
+         return new File(dir, buf.append(SUFFIX).toString());
+      } catch (NoSuchAlgorithmException nsae) {
+         throw new Error(nsae);
+      } catch (java.io.UnsupportedEncodingException uee) {
+         throw new Error(uee);
+      }
+   }
+
+   private static String readString(DataInputStream in) throws IOException {
+      String s = in.readUTF();
+      return s.length() > 0 ? s : null;
+   }
+
+   private static byte[] readBytes(RandomAccessFile in, int length)
+      throws IOException {
+      if (length < 0)
+         return null;
+      byte[] b = new byte[length];
+      in.readFully(b);
+      return b;
+   }
+}
@@ -28,33 +28,42 @@ with vwdiff; if not, write to the
 package org.metastatic.vwdiff;
 
 import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 
-import java.net.InetAddress;
 import java.net.URL;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
-import com.keypoint.PngEncoderB;
+import com.keypoint.PngStreamEncoder;
 
 import org.apache.log4j.Logger;
 
 import org.metastatic.rsync.Checksum32;
+import org.metastatic.rsync.Chunker;
 import org.metastatic.rsync.Configuration;
 import org.metastatic.rsync.Delta;
 import org.metastatic.rsync.Generator;
-import org.metastatic.rsync.Matcher;
+import org.metastatic.rsync.ListenerException;
+import org.metastatic.rsync.MatcherEvent;
+import org.metastatic.rsync.MatcherListener;
+import org.metastatic.rsync.MatcherStream;
 import org.metastatic.rsync.Offsets;
 
 import HTTPClient.HTTPConnection;
@@ -78,13 +87,34 @@ public class Target implements java.io.Serializable {
 
    private static final Logger logger = Logger.getLogger(Target.class);
 
-   private static final Color CLEAR = new Color(0, 0, 0, 0);
+   /** How long a connection to a host is kept with nothing to fetch. */
+   private static final long IDLE_TIMEOUT = 120000;
+
+   /**
+    * How long to wait for a connection, or for the next packet of a
+    * response, before the update fails.
+    */
+   private static final int READ_TIMEOUT = 60000;
+
+   /** The connections to every target's host. */
+   private static final ConnectionPool connections =
+      new ConnectionPool(IDLE_TIMEOUT, READ_TIMEOUT, USER_AGENT);
 
    private static final short CHAR_OFFSET = 31;
 
+   /** The size of the buffer pages are read through. */
+   private static final int BUFFER_SIZE = 8192;
+
+   /**
+    * Kinds of run, in {@link Runs}. One more than each is its index in
+    * the image's palette; index 0 is the clear background.
+    */
+   private static final byte SAME = 0, MOVED = 1, NEW = 2;
+
    private static final long serialVersionUID = -4218732007574903639L;
 
-   private final transient Object lock = new Object();
+   /** Not final, since {@link #readObject} must make it anew. */
+   private transient Object lock = new Object();
 
    private final String name;
    private String user;
@@ -98,8 +128,27 @@ public class Target implements java.io.Serializable {
    private byte[] image;
    private long lastUpdate, lastAccess;
    private long bytes, newBytes, movedBytes;
+
+   /** The validators of the page last compared, if the server sent any. */
+   private String etag, lastModified;
    private double threshold;
 
+   /** Whether pages are cut into content-defined chunks, not blocks. */
+   private boolean contentChunking;
+
+   /** The sums of {@link #basis}, kept until the basis changes. */
+   private transient List sums;
+   private transient byte[] sumsBasis;
+
+   /** The runs {@link #image} was drawn from. */
+   private transient Runs drawn;
+
+   /** Where the basis and image are still to be read from, if not null. */
+   private transient Store store;
+
+   /** Whether this target has changed since it was last stored. */
+   private transient boolean changed;
+
    // Constructor.
    // -----------------------------------------------------------------------
 
@@ -129,88 +178,128 @@ public class Target implements java.io.Serializable {
       logger.info("accessing [" + name + "] with URL " + url);
       ByteArrayOutputStream out = new ByteArrayOutputStream();
       byte[] buf = new byte[512];
+      URL u = getURL();
+      HTTPConnection conn = null;
+      boolean failed = false;
       try {
-         try {
-            InetAddress addr = InetAddress.getByName(url.getHost());
-            logger.info("Connecting to " + addr);
-         } catch (IOException ignore) {
-         }
-         HTTPConnection conn = new HTTPConnection(url);
-         conn.setDefaultHeaders(USER_AGENT);
-         HTTPResponse resp = conn.Get(url.getFile());
-         if (resp.getStatusCode() >= 400) {
-            throw new IOException(resp.getStatusCode() + resp.getReasonLine());
-         }
+         conn = connections.get(u);
+         HTTPResponse resp = fetch(conn, u, false);
          InputStream in = resp.getInputStream();
          int len = 0;
          while ((len = in.read(buf)) != -1)
             out.write(buf, 0, len);
+         synchronized (lock) {
+            etag = resp.getHeader("ETag");
+            lastModified = resp.getHeader("Last-Modified");
+         }
       } catch (HTTPClient.ModuleException me) {
          logger.warn(me.toString());
          return;
       } catch (IOException ioe) {
+         failed = true;
          logger.warn(ioe.toString());
          return;
+      } finally {
+         if (conn != null)
+            connections.release(conn, failed);
       }
       synchronized (lock) {
+         store = null;
          basis = out.toByteArray();
          lastAccess = System.currentTimeMillis();
+         changed = true;
       }
       update(true, true);
    }
 
-   public void update(boolean force, boolean basisOnly) {
+   /**
+    * Fetch the page and compare it with the basis.
+    *
+    * @param force     Update even if the last update is recent.
+    * @param basisOnly Compare the basis with itself, not the live page.
+    * @return false if the page could not be fetched.
+    */
+   public boolean update(boolean force, boolean basisOnly) {
+      HTTPConnection conn = null;
+      boolean failed = false;
       try {
          logger.info("updating [" + name + "] with URL " + url);
          if (!force && System.currentTimeMillis() - lastUpdate < frequency) {
             logger.info("[" + name + "] not ready for update");
-            return;
+            return true;
          }
-         try {
-            InetAddress addr = InetAddress.getByName(url.getHost());
-            logger.info("Connecting to " + addr);
-         } catch (IOException ignore) {
-         }
-         Generator gen = new Generator(config);
-         List sums = Collections.EMPTY_LIST;
-         if (basis != null)
-            sums = gen.generateSums(basis);
          InputStream in = null;
-         Matcher match = new Matcher(config);
+         String newTag = null, newModified = null;
          if (!basisOnly) {
-            HTTPConnection conn = new HTTPConnection(url);
-            conn.setDefaultHeaders(USER_AGENT);
-            HTTPResponse resp = conn.Get(url.getFile());
-            if (resp.getStatusCode() >= 400) {
-               throw new IOException(resp.getStatusCode() + resp.getReasonLine());
+            URL u = getURL();
+            conn = connections.get(u);
+            HTTPResponse resp = fetch(conn, u, true);
+            if (resp.getStatusCode() == 304) {
+               synchronized (lock) {
+                  lastUpdate = System.currentTimeMillis();
+               }
+               logger.info("[" + name + "] not modified");
+               return true;
             }
+            newTag = resp.getHeader("ETag");
+            newModified = resp.getHeader("Last-Modified");
             in = resp.getInputStream();
          } else {
-            in = new ByteArrayInputStream(basis);
+            synchronized (lock) {
+               newTag = etag;
+               newModified = lastModified;
+            }
+            in = new ByteArrayInputStream(getBasis());
          }
-         List deltas = match.hashSearch(sums, in);
-         bytes = newBytes = movedBytes = 0;
-         for (Iterator it = deltas.iterator(); it.hasNext(); ) {
-            Delta d = (Delta) it.next();
-            bytes += d.getBlockLength();
-            if (d instanceof Offsets) {
-               if (((Offsets) d).getOldOffset() != ((Offsets) d).getNewOffset())
-                  movedBytes += d.getBlockLength();
-            } else {
-               newBytes += d.getBlockLength();
+         Runs runs = new Runs();
+         if (contentChunking) {
+            byte[] page = readPage(in);
+            List deltas = new Chunker(config).match(basisSums(), page, 0,
+                                                    page.length);
+            for (Iterator it = deltas.iterator(); it.hasNext(); )
+               runs.add((Delta) it.next());
+         } else {
+            MatcherStream match = new MatcherStream(config);
+            match.setChecksums(basisSums());
+            match.addListener(runs);
+            try {
+               byte[] buf = new byte[BUFFER_SIZE];
+               int len;
+               while ((len = in.read(buf)) != -1)
+                  match.update(buf, 0, len);
+               match.doFinal();
+            } finally {
+               in.close();
             }
          }
          synchronized (lock) {
-            image = createImage(bytes, deltas);
+            bytes = runs.total;
+            newBytes = runs.lengthOf(NEW);
+            movedBytes = runs.lengthOf(MOVED);
+            if (image == null || !runs.equals(drawn)) {
+               image = createImage(bytes, runs);
+               drawn = runs;
+            }
             lastUpdate = System.currentTimeMillis();
-            logger.info("created " + deltas.size() + " deltas, read "
+            etag = newTag;
+            lastModified = newModified;
+            changed = true;
+            logger.info("created " + runs.deltas + " deltas, read "
                         + bytes + " bytes");
          }
+         return true;
+      } catch (ListenerException le) {
+         logger.error(le.getMessage());
       } catch (HTTPClient.ModuleException me) {
          logger.warn(me.toString());
       } catch (IOException ioe) {
+         failed = true;
          logger.error(ioe.getMessage());
+      } finally {
+         if (conn != null)
+            connections.release(conn, failed);
       }
+      return false;
    }
 
    // Property accessor methods.
@@ -258,22 +347,42 @@ public class Target implements java.io.Serializable {
 
    public void setColor(Color color) {
       this.color = color;
+      drawn = null;
    }
 
    public void setNewColor(Color newColor) {
       this.newColor = newColor;
+      drawn = null;
    }
 
    public void setMovedColor(Color movedColor) {
       this.movedColor = movedColor;
+      drawn = null;
+   }
+
+   /**
+    * Choose between fixed-size blocks, which are found wherever they
+    * moved to, and content-defined chunks, which keep their bounds when
+    * data before them changes and so suit small pages better.
+    */
+   public void setContentChunking(boolean contentChunking) {
+      synchronized (lock) {
+         this.contentChunking = contentChunking;
+         sums = null;
+         drawn = null;
+      }
    }
 
    public void setWidth(int width) {
       this.width = width;
+      drawn = null;
    }
 
    public byte[] getBasis() {
-      return basis;
+      synchronized (lock) {
+         loadData();
+         return basis;
+      }
    }
 
    public void setBasis(byte[] basis) {
@@ -281,7 +390,10 @@ public class Target implements java.io.Serializable {
    }
 
    public byte[] getImage() {
-      return image;
+      synchronized (lock) {
+         loadData();
+         return image;
+      }
    }
 
    public void setImage(byte[] image) {
@@ -304,6 +416,22 @@ public class Target implements java.io.Serializable {
       this.lastAccess = lastAccess;
    }
 
+   public String getETag() {
+      return etag;
+   }
+
+   public void setETag(String etag) {
+      this.etag = etag;
+   }
+
+   public String getLastModified() {
+      return lastModified;
+   }
+
+   public void setLastModified(String lastModified) {
+      this.lastModified = lastModified;
+   }
+
    public long getLength() {
       return bytes;
    }
@@ -336,38 +464,236 @@ public class Target implements java.io.Serializable {
       this.threshold = threshold;
    }
 
+   /**
+    * Have the basis and image read from <i>store</i> when first needed.
+    */
+   void setStore(Store store) {
+      synchronized (lock) {
+         this.store = store;
+      }
+   }
+
+   /**
+    * Return whether this target has changed since this was last called,
+    * and mark it unchanged.
+    */
+   boolean takeChanged() {
+      synchronized (lock) {
+         boolean b = changed;
+         changed = false;
+         return b;
+      }
+   }
+
+   /**
+    * Mark this target changed, so it is stored again.
+    */
+   void setChanged() {
+      changed = true;
+   }
+
    // Own methods.
    // -----------------------------------------------------------------------
 
-   private byte[] createImage(long bytes, List deltas) {
+   /**
+    * Read a target from an old-style data file. Field initializers do
+    * not run for deserialized objects, so the lock is made here.
+    */
+   private void readObject(ObjectInputStream in)
+      throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      lock = new Object();
+   }
+
+   /**
+    * Request the page. A conditional request carries the validators of
+    * the page last compared, if there is a comparison to keep, and may
+    * be answered with 304. The page may come gzipped; HTTPClient's
+    * content-encoding module unpacks it. The connection, from the pool,
+    * is shared with other targets on the same host.
+    */
+   private HTTPResponse fetch(HTTPConnection conn, URL url,
+                              boolean conditional)
+      throws IOException, HTTPClient.ModuleException {
+      ArrayList headers = new ArrayList();
+      headers.add(new NVPair("Accept-Encoding", "gzip"));
+      if (conditional) {
+         synchronized (lock) {
+            if (image != null || store != null) {
+               if (etag != null)
+                  headers.add(new NVPair("If-None-Match", etag));
+               if (lastModified != null)
+                  headers.add(new NVPair("If-Modified-Since", lastModified));
+            }
+         }
+      }
+      HTTPResponse resp = conn.Get(url.getFile(), (NVPair[]) null,
+         (NVPair[]) headers.toArray(new NVPair[headers.size()]));
+      if (resp.getStatusCode() >= 400) {
+         throw new IOException(resp.getStatusCode() + resp.getReasonLine());
+      }
+      return resp;
+   }
+
+   /**
+    * Read the basis and image, if they are still in the store. Called
+    * with the lock held.
+    */
+   private void loadData() {
+      if (store == null)
+         return;
+      Store s = store;
+      store = null;
+      try {
+         s.loadData(this);
+      } catch (IOException ioe) {
+         logger.warn("could not load data for [" + name + "]: "
+                     + ioe.getMessage());
+      }
+   }
+
+   /**
+    * Return the sums of the basis, generating them only if the basis
+    * has changed since they were last generated.
+    */
+   private List basisSums() {
+      synchronized (lock) {
+         loadData();
+         if (basis == null)
+            return Collections.EMPTY_LIST;
+         if (sums == null || sumsBasis != basis) {
+            if (contentChunking)
+               sums = new Chunker(config).generateSums(basis);
+            else
+               sums = new Generator(config).generateSums(basis);
+            sumsBasis = basis;
+         }
+         return sums;
+      }
+   }
+
+   private static byte[] readPage(InputStream in) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+      try {
+         byte[] buf = new byte[BUFFER_SIZE];
+         int len;
+         while ((len = in.read(buf)) != -1)
+            out.write(buf, 0, len);
+      } finally {
+         in.close();
+      }
+      return out.toByteArray();
+   }
+
+   /**
+    * Draw the runs as a map of the page, one pixel per byte and
+    * <i>width</i> bytes to a row, and return it as a PNG. Each run is
+    * one fill of its palette index into the raster, and the raster is
+    * written to the PNG a band at a time.
+    */
+   private byte[] createImage(long bytes, Runs runs) throws IOException {
       int h = (int) (bytes / width) + (bytes % width != 0 ? 1 : 0);
-      int x = 0, y = 0;
-      BufferedImage img = new BufferedImage(width, h,
-                                            BufferedImage.TYPE_4BYTE_ABGR);
-      Graphics2D g = img.createGraphics();
-      g.setBackground(CLEAR);
-      g.clearRect(0, 0, width, h);
-      for (Iterator it = deltas.iterator(); it.hasNext(); ) {
-         Delta d = (Delta) it.next();
+      h = Math.max(h, 1);
+      byte[] pixels = new byte[width * h];
+      int pos = 0;
+      for (int i = 0; i < runs.count; i++) {
+         int len = (int) runs.length[i];
+         Arrays.fill(pixels, pos, pos + len, (byte) (runs.kind[i] + 1));
+         pos += len;
+      }
+      Color[] colors = { new Color(0, 0, 0, 0), color, movedColor, newColor };
+      byte[] r = new byte[colors.length], g = new byte[colors.length];
+      byte[] b = new byte[colors.length], a = new byte[colors.length];
+      for (int i = 0; i < colors.length; i++) {
+         r[i] = (byte) colors[i].getRed();
+         g[i] = (byte) colors[i].getGreen();
+         b[i] = (byte) colors[i].getBlue();
+         a[i] = (byte) colors[i].getAlpha();
+      }
+      IndexColorModel palette = new IndexColorModel(8, colors.length, r, g, b, a);
+      WritableRaster raster = Raster.createInterleavedRaster(
+         new DataBufferByte(pixels, pixels.length), width, h, width, 1,
+         new int[] { 0 }, null);
+      BufferedImage img = new BufferedImage(palette, raster, false, null);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(pixels.length / 16 + 256);
+      new PngStreamEncoder(out, 7).encode(img);
+      return out.toByteArray();
+   }
+
+   // Inner class.
+   // -----------------------------------------------------------------------
+
+   /**
+    * Tallies the matcher's deltas as they come, as runs of unchanged,
+    * moved and new data. Neighbouring deltas of one kind are merged,
+    * so a page costs a few runs, not a list of deltas holding its new
+    * data.
+    */
+   private static class Runs implements MatcherListener {
+      byte[] kind = new byte[16];
+      long[] length = new long[16];
+      int count;
+      int deltas;
+      long total;
+
+      public void update(MatcherEvent event) {
+         add(event.getDelta());
+      }
+
+      void add(Delta d) {
+         byte k = NEW;
          if (d instanceof Offsets) {
-            if (((Offsets) d).getOldOffset() != ((Offsets) d).getNewOffset())
-               g.setColor(movedColor);
-            else
-               g.setColor(color);
-         } else {
-            g.setColor(newColor);
+            Offsets o = (Offsets) d;
+            k = o.getOldOffset() != o.getNewOffset() ? MOVED : SAME;
          }
-         for (long l = 0; l < d.getBlockLength(); l++) {
-            g.fillRect(x, y, 1, 1);
-            x++;
-            if (x == width) {
-               x = 0;
-               y++;
-            }
+         deltas++;
+         total += d.getBlockLength();
+         if (count > 0 && kind[count-1] == k) {
+            length[count-1] += d.getBlockLength();
+            return;
+         }
+         if (count == kind.length) {
+            byte[] k2 = new byte[count * 2];
+            long[] l2 = new long[count * 2];
+            System.arraycopy(kind, 0, k2, 0, count);
+            System.arraycopy(length, 0, l2, 0, count);
+            kind = k2;
+            length = l2;
          }
+         kind[count] = k;
+         length[count] = d.getBlockLength();
+         count++;
+      }
+
+      /**
+       * Tell if <i>o</i> holds the same runs as this, and so would draw
+       * the same image.
+       */
+      public boolean equals(Object o) {
+         if (!(o instanceof Runs))
+            return false;
+         Runs r = (Runs) o;
+         if (r.count != count)
+            return false;
+         for (int i = 0; i < count; i++)
+            if (r.kind[i] != kind[i] || r.length[i] != length[i])
+               return false;
+         return true;
+      }
+
+      public int hashCode() {
+         int h = count;
+         for (int i = 0; i < count; i++)
+            h = 31 * h + (int) length[i] + kind[i];
+         return h;
+      }
+
+      long lengthOf(byte k) {
+         long n = 0;
+         for (int i = 0; i < count; i++)
+            if (kind[i] == k)
+               n += length[i];
+         return n;
       }
-      PngEncoderB encoder = new PngEncoderB(img, true);
-      encoder.setCompressionLevel(7);
-      return encoder.pngEncode();
    }
 }
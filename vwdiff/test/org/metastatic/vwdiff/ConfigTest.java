@@ -0,0 +1,142 @@
+/* ConfigTest.java -- tests of importing old data files.
+   vim:set softtabstop=3 shiftwidth=3 tabstop=3 expandtab tw=72:
+   $Id$
+
+Copyright (C) 2003  Casey Marshall <rsdio@metastatic.org>
+
+This file is a part of vwdiff.
+
+Vwdiff is free software; you can redistribute it and/or modify it under
+the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your
+option) any later version.
+
+Vwdiff is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along
+with vwdiff; if not, write to the
+
+   Free Software Foundation, Inc.,
+   59 Temple Place, Suite 330,
+   Boston, MA  02111-1307
+   USA  */
+
+
+package org.metastatic.vwdiff;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+
+import java.security.MessageDigest;
+import java.security.MessageDigestSpi;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Check that the targets in an old-style data file, a serialized map
+ * of names to targets, are taken into a new data directory.
+ */
+public class ConfigTest {
+
+   /**
+    * Targets ask for MD4, which only Jarsync's provider has. The test
+    * does not compare sums, so any digest will do under that name.
+    */
+   @BeforeClass
+   public static void addProvider() {
+      if (Security.getProviders("MessageDigest.MD4") == null)
+         Security.addProvider(new TestProvider());
+   }
+
+   @Test
+   public void testMergeDataFile() throws Exception {
+      File dir = File.createTempFile("vwdiff", ".test");
+      dir.delete();
+      dir.mkdir();
+      File datafile = new File(dir, "vwdiff.dat.gz");
+      File datadir = new File(dir, "vwdiff.data");
+
+      Target old = new Target("page");
+      old.setBasis("<html>old page</html>".getBytes("US-ASCII"));
+      old.setImage(new byte[] { 1, 2, 3 });
+      old.setLastUpdate(1000L);
+      old.setLastAccess(2000L);
+      old.setLength(21L);
+      LinkedHashMap saved = new LinkedHashMap();
+      saved.put("page", old);
+      ObjectOutputStream out = new ObjectOutputStream(
+         new GZIPOutputStream(new FileOutputStream(datafile)));
+      out.writeObject(saved);
+      out.close();
+
+      Config conf = new Config();
+      conf.datafile = datafile.getPath();
+      conf.datadir = datadir.getPath();
+      conf.beginSection("page");
+      conf.current = null;
+      conf.mergeSaved();
+      conf.store();
+
+      // Read the target back from the directory it was written to.
+      Config again = new Config();
+      again.datafile = new File(dir, "missing").getPath();
+      again.datadir = datadir.getPath();
+      again.beginSection("page");
+      again.current = null;
+      again.mergeSaved();
+      Target t = (Target) again.targets.get("page");
+      Assert.assertTrue(Arrays.equals(old.getBasis(), t.getBasis()));
+      Assert.assertTrue(Arrays.equals(old.getImage(), t.getImage()));
+      Assert.assertEquals(1000L, t.getLastUpdate());
+      Assert.assertEquals(2000L, t.getLastAccess());
+      Assert.assertEquals(21L, t.getLength());
+   }
+
+   // Inner classes.
+   // -----------------------------------------------------------------------
+
+   public static class TestProvider extends Provider {
+      public TestProvider() {
+         super("VwdiffTest", 1.0, "MD4 for tests, made of MD5");
+         put("MessageDigest.MD4", MD4.class.getName());
+      }
+   }
+
+   public static class MD4 extends MessageDigestSpi {
+      private final MessageDigest md;
+
+      public MD4() throws NoSuchAlgorithmException {
+         md = MessageDigest.getInstance("MD5");
+      }
+
+      protected void engineUpdate(byte b) {
+         md.update(b);
+      }
+
+      protected void engineUpdate(byte[] buf, int off, int len) {
+         md.update(buf, off, len);
+      }
+
+      protected byte[] engineDigest() {
+         return md.digest();
+      }
+
+      protected void engineReset() {
+         md.reset();
+      }
+   }
+}